@@ -18,6 +18,8 @@
 package se.natusoft.osgi.aps.runtime;
 
 import org.osgi.framework.*;
+import se.natusoft.osgi.aps.runtime.internal.ActivationPolicy;
+import se.natusoft.osgi.aps.runtime.internal.BundleRegistry;
 import se.natusoft.osgi.aps.runtime.internal.ServiceRegistry;
 
 import java.io.File;
@@ -27,6 +29,7 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -35,13 +38,33 @@ import java.util.jar.Manifest;
  * This provides an implementation of a Bundle.
  *
  * Start with APSRuntime class, it will create instances of this.
+ *
+ * The bundle goes through the INSTALLED, RESOLVED, STARTING, ACTIVE, STOPPING and UNINSTALLED states.
+ * The state can be read at any time without locking, and each transition is a compare and set from
+ * the expected state, while start(), stop() and uninstall() are serialized per bundle. A bundle with
+ * a 'Bundle-ActivationPolicy: lazy' header started with START_ACTIVATION_POLICY stays in STARTING
+ * until it is first used, and only then is its activator called.
+ *
+ * As in OSGi, no lock is held while the activator or the bundle listeners are called. A lifecycle
+ * operation claims the bundle under a short lock and releases it when done, and other threads wait
+ * for that, for at most TRANSITION_TIMEOUT_MILLIS. The thread owning the operation, like an activator
+ * loading classes of its own bundle, does not wait. Stopping or uninstalling a bundle unregisters its
+ * services, releases the services it uses and removes its listeners.
  */
 public class OTRBundle implements Bundle {
+    //
+    // Constants
+    //
+
+    /** The max time a lifecycle operation waits for one running on another thread to complete. */
+    private static final long TRANSITION_TIMEOUT_MILLIS = 10000;
+
     //
     // Private Members
     //
 
     private ServiceRegistry serviceRegistry;
+    private BundleRegistry bundleRegistry;
     private Dictionary<Object, Object> headers = new Properties();
     private long id;
     private OTRBundleContext bundleContext = new OTRBundleContext( this );
@@ -49,6 +72,25 @@ public class OTRBundle implements Bundle {
     private String symbolicName;
     private List<String> entryPaths = new LinkedList<>();
     private ClassLoader bundleClassLoader;
+    private BundleActivator activator;
+
+    /** The lifecycle state of the bundle. */
+    private AtomicInteger state = new AtomicInteger( INSTALLED );
+
+    /**
+     * The lazy activation policy of a bundle waiting for its first use, otherwise null. Only cleared when the
+     * activator has returned, so that a first use on another thread waits for the activation to complete.
+     */
+    private volatile ActivationPolicy lazyActivation;
+
+    /** The thread running a lifecycle operation on the bundle, or null if none. Guarded by the lifecycle lock. */
+    private Thread transitionThread;
+
+    /** True while the activator is being started. Guarded by the lifecycle lock. */
+    private boolean activating = false;
+
+    /** Guards transitionThread, and is waited on for it to be released. */
+    private final Object lifecycleLock = new Object();
 
     //
     // Constructors
@@ -60,11 +102,13 @@ public class OTRBundle implements Bundle {
      * @param id              The id of the bundle.
      * @param symbolicName    The symbolic name of the bundle.
      * @param serviceRegistry The common service registry.
+     * @param bundleRegistry The bundles of the framework the bundle is installed in.
      */
-    OTRBundle( long id, String symbolicName, ServiceRegistry serviceRegistry ) {
+    OTRBundle( long id, String symbolicName, ServiceRegistry serviceRegistry, BundleRegistry bundleRegistry ) {
         this.id = id;
         this.symbolicName = symbolicName;
         this.serviceRegistry = serviceRegistry;
+        this.bundleRegistry = bundleRegistry;
     }
 
     //
@@ -194,23 +238,32 @@ public class OTRBundle implements Bundle {
     }
 
     /**
-     * A quickie method for providing a service instance.
+     * @return the bundles of the framework this bundle is installed in.
+     */
+    BundleRegistry getBundleRegistry() {
+        return this.bundleRegistry;
+    }
+
+    /**
+     * A quickie method for providing a service instance. The service is registered under all interfaces it
+     * implements.
      *
      * @param service The service to provide.
      */
     @SuppressWarnings("unused")
     public void addServiceInstance( Object service ) {
-        Properties properties = new Properties();
-        properties.setProperty( Constants.OBJECTCLASS, service.getClass().getInterfaces()[ 0 ].getName() );
-
+        Class<?>[] interfaces = service.getClass().getInterfaces();
+        String[] objectClasses = new String[ interfaces.length ];
+        for ( int i = 0; i < interfaces.length; i++ ) {
+            objectClasses[ i ] = interfaces[ i ].getName();
+        }
         this.serviceRegistry.registerService(
                 new OTRServiceRegistration(
-                        service.getClass().getName(),
-                        new OTRServiceReference( this.bundleContext, properties ),
-                        this
-                ),
-                service,
-                service.getClass().getInterfaces()[ 0 ]
+                        objectClasses,
+                        new OTRServiceReference( this.bundleContext, null, objectClasses, this.serviceRegistry.nextServiceId() ),
+                        this,
+                        service
+                )
         );
     }
 
@@ -381,43 +434,324 @@ public class OTRBundle implements Bundle {
     }
 
     /**
-     * Currently not supported. Returns 0.
+     * Provides the activator to call when the bundle is started and stopped.
+     *
+     * @param activator The activator to provide.
+     */
+    void setActivator( BundleActivator activator ) {
+        this.activator = activator;
+    }
+
+    /**
+     * Returns the lifecycle state of the bundle.
      */
     @Override
     public int getState() {
-        return 0;
+        return this.state.get();
     }
 
     /**
-     * Does nothing.
+     * Moves the bundle from one state to another.
+     *
+     * @param from The state the bundle must be in.
+     * @param to The state to move to.
+     *
+     * @throws IllegalStateException if the bundle is not in the expected state.
+     */
+    private void transition( int from, int to ) {
+        if ( !this.state.compareAndSet( from, to ) ) {
+            throw new IllegalStateException( "Bundle '" + this.symbolicName + "' expected to be in state " + from +
+                    " but was in state " + this.state.get() + "!" );
+        }
+    }
+
+    /**
+     * Claims the bundle for a lifecycle operation of the current thread, waiting for any operation running on
+     * another thread to complete. Must be followed by endTransition() if true is returned.
+     *
+     * @param lazyTrigger True for a lazy activation trigger, which does not wait for an ongoing activation.
+     *
+     * @return false if the current thread is already running a lifecycle operation on the bundle, or if a lazy
+     *         trigger finds the bundle being activated.
+     *
+     * @throws BundleException if another thread does not complete its operation in time, or if interrupted.
+     */
+    private boolean beginTransition( boolean lazyTrigger ) throws BundleException {
+        synchronized ( this.lifecycleLock ) {
+            if ( this.transitionThread == Thread.currentThread() ) {
+                return false;
+            }
+            long deadline = System.currentTimeMillis() + TRANSITION_TIMEOUT_MILLIS;
+            while ( this.transitionThread != null ) {
+                if ( lazyTrigger && this.activating ) {
+                    return false;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if ( remaining <= 0 ) {
+                    throw new BundleException( "Bundle '" + this.symbolicName + "' is still changing state in thread '" +
+                            this.transitionThread.getName() + "'!", BundleException.STATECHANGE_ERROR );
+                }
+                try {
+                    this.lifecycleLock.wait( remaining );
+                }
+                catch ( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                    throw new BundleException( "Interrupted waiting for bundle '" + this.symbolicName + "'!",
+                            BundleException.STATECHANGE_ERROR, ie );
+                }
+            }
+            if ( lazyTrigger && this.lazyActivation == null ) {
+                // Activated or stopped while we waited.
+                return false;
+            }
+            this.transitionThread = Thread.currentThread();
+            return true;
+        }
+    }
+
+    /**
+     * Releases the bundle claimed by beginTransition(...).
+     */
+    private void endTransition() {
+        synchronized ( this.lifecycleLock ) {
+            this.transitionThread = null;
+            this.activating = false;
+            this.lifecycleLock.notifyAll();
+        }
+    }
+
+    /**
+     * Starts the bundle. With the START_ACTIVATION_POLICY option a bundle having a lazy activation policy is only
+     * moved to STARTING, and is activated when first used.
+     *
+     * @param options START_ACTIVATION_POLICY or 0.
+     *
+     * @throws BundleException if the activator fails.
      */
-    @SuppressWarnings("RedundantThrows")
     @Override
     public void start( int options ) throws BundleException {
+        if ( !beginTransition( false ) ) {
+            // Started by the activator of this bundle.
+            return;
+        }
+        try {
+            int current = this.state.get();
+            if ( current == UNINSTALLED ) {
+                throw new IllegalStateException( "Bundle '" + this.symbolicName + "' has been uninstalled!" );
+            }
+            if ( current == ACTIVE ) {
+                return;
+            }
+
+            if ( current == INSTALLED ) {
+                transition( INSTALLED, RESOLVED );
+                this.bundleRegistry.bundleEvent( this, BundleEvent.RESOLVED );
+            }
+
+            if ( ( options & START_ACTIVATION_POLICY ) != 0 ) {
+                if ( this.lazyActivation != null ) {
+                    return;
+                }
+                ActivationPolicy policy = ActivationPolicy.of( this.headers );
+                if ( policy != null ) {
+                    transition( RESOLVED, STARTING );
+                    this.lazyActivation = policy;
+                    this.bundleRegistry.addLazyBundle( this );
+                    this.bundleRegistry.bundleEvent( this, BundleEvent.LAZY_ACTIVATION );
+                    return;
+                }
+            }
+
+            activate();
+        }
+        finally {
+            endTransition();
+        }
     }
 
     /**
-     * Does nothing.
+     * Starts the bundle eagerly, ignoring any lazy activation policy.
+     *
+     * @throws BundleException if the activator fails.
      */
-    @SuppressWarnings("RedundantThrows")
     @Override
     public void start() throws BundleException {
+        start( 0 );
     }
 
     /**
-     * Does nothing.
+     * Calls the activator of the bundle. Must be called by the thread owning the transition.
+     *
+     * @throws BundleException if the activator fails.
+     */
+    private void activate() throws BundleException {
+        boolean lazy = this.lazyActivation != null;
+        if ( !lazy ) {
+            transition( RESOLVED, STARTING );
+        }
+
+        try {
+            this.bundleRegistry.bundleEvent( this, BundleEvent.STARTING );
+
+            try {
+                if ( this.activator != null ) {
+                    setActivating( true );
+                    this.activator.start( this.bundleContext );
+                }
+            }
+            catch ( Exception e ) {
+                transition( STARTING, STOPPING );
+                this.bundleRegistry.bundleEvent( this, BundleEvent.STOPPING );
+                releaseResources();
+                transition( STOPPING, RESOLVED );
+                this.bundleRegistry.bundleEvent( this, BundleEvent.STOPPED );
+                throw new BundleException( "Activator of bundle '" + this.symbolicName + "' failed to start!",
+                        BundleException.ACTIVATOR_ERROR, e );
+            }
+
+            transition( STARTING, ACTIVE );
+            this.bundleRegistry.bundleEvent( this, BundleEvent.STARTED );
+        }
+        finally {
+            setActivating( false );
+            if ( lazy ) {
+                this.lazyActivation = null;
+                this.bundleRegistry.removeLazyBundle( this );
+            }
+        }
+    }
+
+    /**
+     * Sets whether the activator is being started.
+     */
+    private void setActivating( boolean activating ) {
+        synchronized ( this.lifecycleLock ) {
+            this.activating = activating;
+            this.lifecycleLock.notifyAll();
+        }
+    }
+
+    /**
+     * Activates the bundle if it is waiting for its first use and the use triggers activation. As in OSGi, a use
+     * while the activator runs does not wait for it, since the activator may itself be waiting for that use on
+     * another thread. Failures are reported as framework errors, since there is no caller to throw them to.
+     *
+     * @param className The name of the class being loaded, or the service API class name of a requested service.
+     * @param serviceRequest True for a service request, false for a class load.
+     *
+     * For internal use.
+     */
+    public void activateLazily( String className, boolean serviceRequest ) {
+        ActivationPolicy policy = this.lazyActivation;
+        if ( policy == null ||
+                !( serviceRequest ? policy.triggersOnService( className ) : policy.triggersOnClass( className ) ) ) {
+            return;
+        }
+
+        try {
+            if ( !beginTransition( true ) ) {
+                return;
+            }
+        }
+        catch ( BundleException be ) {
+            this.bundleRegistry.frameworkError( this, "Lazy activation of bundle '" + this.symbolicName +
+                    "' failed!", be );
+            return;
+        }
+        try {
+            activate();
+        }
+        catch ( BundleException be ) {
+            this.bundleRegistry.frameworkError( this, "Lazy activation of bundle '" + this.symbolicName +
+                    "' failed!", be );
+        }
+        finally {
+            endTransition();
+        }
+    }
+
+    /**
+     * Stops the bundle, calling its activator if it was activated, and then unregisters its services, releases
+     * the services it uses and removes its listeners.
+     *
+     * @param options Ignored.
+     *
+     * @throws BundleException if the activator fails. The bundle is stopped anyhow.
      */
-    @SuppressWarnings("RedundantThrows")
     @Override
     public void stop( int options ) throws BundleException {
+        if ( !beginTransition( false ) ) {
+            // Stopped by the activator of this bundle, which the ongoing operation takes care of.
+            return;
+        }
+        try {
+            if ( this.state.get() == UNINSTALLED ) {
+                throw new IllegalStateException( "Bundle '" + this.symbolicName + "' has been uninstalled!" );
+            }
+            deactivate();
+        }
+        finally {
+            endTransition();
+        }
     }
 
     /**
-     * Does nothing.
+     * Stops the bundle if ACTIVE or STARTING. Must be called by the thread owning the transition.
+     *
+     * @throws BundleException if the activator fails. The bundle is stopped anyhow.
+     */
+    private void deactivate() throws BundleException {
+        int current = this.state.get();
+        if ( current != ACTIVE && current != STARTING ) {
+            return;
+        }
+
+        if ( this.lazyActivation != null ) {
+            this.lazyActivation = null;
+            this.bundleRegistry.removeLazyBundle( this );
+        }
+        transition( current, STOPPING );
+        this.bundleRegistry.bundleEvent( this, BundleEvent.STOPPING );
+
+        Exception failure = null;
+        if ( current == ACTIVE && this.activator != null ) {
+            try {
+                this.activator.stop( this.bundleContext );
+            }
+            catch ( Exception e ) {
+                failure = e;
+            }
+        }
+
+        releaseResources();
+        transition( STOPPING, RESOLVED );
+        this.bundleRegistry.bundleEvent( this, BundleEvent.STOPPED );
+
+        if ( failure != null ) {
+            throw new BundleException( "Activator of bundle '" + this.symbolicName + "' failed to stop!",
+                    BundleException.ACTIVATOR_ERROR, failure );
+        }
+    }
+
+    /**
+     * Unregisters the services still registered by the bundle, releases the services it uses and removes its
+     * listeners.
+     */
+    private void releaseResources() {
+        this.serviceRegistry.removeServiceListeners( this );
+        this.bundleRegistry.removeListeners( this );
+        this.serviceRegistry.unregisterServices( this );
+        this.serviceRegistry.releaseServiceUses( this );
+    }
+
+    /**
+     * Stops the bundle.
+     *
+     * @throws BundleException if the activator fails. The bundle is stopped anyhow.
      */
-    @SuppressWarnings("RedundantThrows")
     @Override
     public void stop() throws BundleException {
+        stop( 0 );
     }
 
     /**
@@ -437,11 +771,58 @@ public class OTRBundle implements Bundle {
     }
 
     /**
-     * Does nothing.
+     * Stops the bundle if started and removes it from the framework.
+     *
+     * @throws IllegalStateException if already uninstalled, or still changing state.
      */
-    @SuppressWarnings("RedundantThrows")
     @Override
     public void uninstall() throws BundleException {
+        if ( !remove() ) {
+            throw new IllegalStateException( "Bundle '" + this.symbolicName + "' has already been uninstalled!" );
+        }
+    }
+
+    /**
+     * Stops the bundle if started and removes it, its services, and the service and bundle listeners it added,
+     * from the framework. A failing activator is reported as a framework error.
+     *
+     * @return false if already uninstalled.
+     *
+     * @throws IllegalStateException if this or another thread is still changing the state of the bundle.
+     */
+    boolean remove() {
+        try {
+            if ( !beginTransition( false ) ) {
+                throw new IllegalStateException( "Bundle '" + this.symbolicName +
+                        "' can not be uninstalled while changing state!" );
+            }
+        }
+        catch ( BundleException be ) {
+            throw new IllegalStateException( be.getMessage(), be );
+        }
+        try {
+            if ( this.state.get() == UNINSTALLED ) {
+                return false;
+            }
+
+            try {
+                deactivate();
+            }
+            catch ( BundleException be ) {
+                this.bundleRegistry.frameworkError( this, "Bundle '" + this.symbolicName +
+                        "' failed to stop on uninstall!", be );
+            }
+
+            // Also for a bundle never started, since a bundle can register services without being started.
+            releaseResources();
+            this.bundleRegistry.removeBundle( this );
+            this.state.set( UNINSTALLED );
+            this.bundleRegistry.bundleEvent( this, BundleEvent.UNINSTALLED );
+            return true;
+        }
+        finally {
+            endTransition();
+        }
     }
 
     /**
@@ -470,19 +851,19 @@ public class OTRBundle implements Bundle {
     }
 
     /**
-     * Returns all registered services.
+     * Returns the services registered by this bundle.
      */
     @Override
     public ServiceReference[] getRegisteredServices() {
-        return this.serviceRegistry.getRegisteredServices();
+        return this.serviceRegistry.getRegisteredServices( this );
     }
 
     /**
-     * Currently this returns the same as getRegisteredServices()!
+     * Returns the services this bundle has got and not yet ungot, or null if none.
      */
     @Override
     public ServiceReference[] getServicesInUse() {
-        return this.serviceRegistry.getServicesInUse();
+        return this.serviceRegistry.getServicesInUse( this );
     }
 
     /**
@@ -544,7 +925,9 @@ public class OTRBundle implements Bundle {
         }
         // Note that we do not provide OSGi correct Bundle class loaders! This is for testing.
         // So we make use of JUnits classpath.
-        return getClass().getClassLoader().loadClass( name );
+        Class loaded = getClass().getClassLoader().loadClass( name );
+        activateLazily( name, false );
+        return loaded;
     }
 
     /**
@@ -17,11 +17,11 @@
 package se.natusoft.osgi.aps.runtime;
 
 import org.osgi.framework.*;
+import se.natusoft.osgi.aps.runtime.internal.ServiceEventQueue;
 
 import java.io.File;
 import java.io.InputStream;
 import java.util.Dictionary;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 
@@ -38,8 +38,6 @@ public class OTRBundleContext implements BundleContext {
 
     private Properties props = new Properties();
 
-    private List<BundleListener> bundleListeners = new LinkedList<>();
-
     //
     // Constructors
     //
@@ -105,101 +103,164 @@ public class OTRBundleContext implements BundleContext {
     }
 
     /**
-     * Not supported!
+     * Returns the bundle with the specified id or null if there is none.
+     *
+     * @param id The id of the bundle to get.
      */
     @Override
     public Bundle getBundle( long id ) {
-        return this.bundle;
+        return this.bundle.getBundleRegistry().getBundle( id );
     }
 
     /**
-     * Returns an array of all bundles.
+     * Returns the bundle with the specified symbolic name or null if there is none. If several bundles have the
+     * name, the one with the highest version is returned.
+     *
+     * @param symbolicName The symbolic name of the bundle to get.
+     */
+    public Bundle getBundle( String symbolicName ) {
+        return this.bundle.getBundleRegistry().getBundle( symbolicName );
+    }
+
+    /**
+     * Returns the bundle with the specified symbolic name and version or null if there is none.
+     *
+     * @param symbolicName The symbolic name of the bundle to get.
+     * @param version The version of the bundle to get.
+     */
+    public Bundle getBundle( String symbolicName, Version version ) {
+        return this.bundle.getBundleRegistry().getBundle( symbolicName, version );
+    }
+
+    /**
+     * Returns an array of all bundles of the framework this bundle is installed in.
      */
     @Override
     public Bundle[] getBundles() {
-        int size = OTROSGiServiceTestTools.getInternalBundles().size();
-        return OTROSGiServiceTestTools.getInternalBundles().toArray( new Bundle[ size ] );
+        List<OTRBundle> bundles = this.bundle.getBundleRegistry().getBundles();
+        return bundles.toArray( new Bundle[ bundles.size() ] );
     }
 
-    @SuppressWarnings("RedundantThrows") // It is expected by the BundleContext API!
     @Override
     public void addServiceListener( ServiceListener listener, String filter ) throws InvalidSyntaxException {
-        this.bundle.getServiceRegistry().addServiceListener( listener, filter );
+        this.bundle.getServiceRegistry().addServiceListener( this.bundle, listener, filter, null );
     }
 
     @Override
     public void addServiceListener( ServiceListener listener ) {
-        this.bundle.getServiceRegistry().addServiceListener( listener );
+        try {
+            this.bundle.getServiceRegistry().addServiceListener( this.bundle, listener, null, null );
+        }
+        catch ( InvalidSyntaxException ise ) {
+            throw new IllegalStateException( "No filter can not have bad syntax!", ise );
+        }
+    }
+
+    /**
+     * Adds a service listener choosing between synchronous and asynchronous delivery of events. Asynchronous
+     * listeners get their events in order, but on another thread than the one registering the service.
+     *
+     * @param listener The listener to add.
+     * @param filter The filter of the listener. Can be null.
+     * @param async True for asynchronous delivery.
+     *
+     * @throws InvalidSyntaxException on bad filter syntax.
+     */
+    public void addServiceListener( ServiceListener listener, String filter, boolean async ) throws InvalidSyntaxException {
+        this.bundle.getServiceRegistry().addServiceListener( this.bundle, listener, filter, async );
     }
 
     @Override
     public void removeServiceListener( ServiceListener listener ) {
-        this.bundle.getServiceRegistry().removeServiceListener( listener );
+        this.bundle.getServiceRegistry().removeServiceListener( this.bundle, listener );
     }
 
     /**
-     * Not supported!
+     * Adds a listener getting the events of all bundles of the framework. The listener is removed when this bundle
+     * is removed.
+     *
+     * @param listener The listener to add.
      */
     @Override
     public void addBundleListener( BundleListener listener ) {
-        this.bundleListeners.add( listener );
+        this.bundle.getBundleRegistry().addBundleListener( this.bundle, listener );
     }
 
-    /**
-     * Not supported!
-     */
     @Override
     public void removeBundleListener( BundleListener listener ) {
-        this.bundleListeners.remove( listener );
+        this.bundle.getBundleRegistry().removeBundleListener( this.bundle, listener );
     }
 
     /**
-     * Sends bundle event to all listeners.
+     * Adds a listener getting the FrameworkEvent.ERROR events of errors that could not be thrown to a caller, like
+     * a failing lazy activation. The listener is removed when this bundle is stopped or removed.
      *
-     * @param bundle The Bundle the event is for.
-     * @param type The event type.
-     */
-    void bundleEvent( Bundle bundle, int type ) {
-        BundleEvent bundleEvent = new BundleEvent( type, bundle );
-        for (BundleListener bundleListener : this.bundleListeners) {
-            bundleListener.bundleChanged( bundleEvent );
-        }
-    }
-
-    /**
-     * Not supported!
+     * @param listener The listener to add.
      */
     @Override
     public void addFrameworkListener( FrameworkListener listener ) {
-        throw new RuntimeException( "Not yet supported!" );
+        this.bundle.getBundleRegistry().addFrameworkListener( this.bundle, listener );
     }
 
-    /**
-     * Not supported!
-     */
     @Override
     public void removeFrameworkListener( FrameworkListener listener ) {
-        throw new RuntimeException( "Not yet supported!" );
+        this.bundle.getBundleRegistry().removeFrameworkListener( this.bundle, listener );
     }
 
     @Override
     public ServiceRegistration registerService( String[] clazzes, Object service, Dictionary properties ) {
-        return registerService( clazzes[ 0 ], service, properties );
+        OTRServiceRegistration sr = createServiceRegistration( clazzes, service, properties, new ServiceEventQueue() );
+        this.bundle.getServiceRegistry().registerService( sr );
+        return sr;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public ServiceRegistration registerService( String clazz, Object service, Dictionary properties ) {
-        if ( properties.get( Constants.OBJECTCLASS ) == null ) {
-            properties.put( Constants.OBJECTCLASS, new String[]{ clazz } );
+        return registerService( new String[]{ clazz }, service, properties );
+    }
+
+    /**
+     * Creates a registration for a service to register.
+     *
+     * @param clazzes The service API class names to register the service under.
+     * @param service The service instance.
+     * @param properties The service properties. Can be null.
+     * @param eventQueue The event queue of the registration.
+     */
+    OTRServiceRegistration createServiceRegistration( String[] clazzes, Object service, Dictionary properties,
+                                                      ServiceEventQueue eventQueue ) {
+        if ( clazzes == null || clazzes.length == 0 ) {
+            throw new IllegalArgumentException( "At least one service API class name must be passed!" );
         }
-        OTRServiceRegistration sr = new OTRServiceRegistration( clazz, new OTRServiceReference( this, properties ), this.bundle );
-        try {
-            this.bundle.getServiceRegistry().registerService( sr, service, Class.forName( clazz ) );
-        } catch ( ClassNotFoundException cnfe ) {
-            throw new IllegalArgumentException( "Bad value passed for 'clazz' parameter!", cnfe );
+        for ( String clazz : clazzes ) {
+            try {
+                this.bundle.getServiceRegistry().getServiceClass( clazz );
+            } catch ( ClassNotFoundException cnfe ) {
+                throw new IllegalArgumentException( "Bad value passed for 'clazz' parameter!", cnfe );
+            }
         }
-        return sr;
+        String[] objectClasses = clazzes.clone();
+        return new OTRServiceRegistration( objectClasses, new OTRServiceReference( this, properties, objectClasses,
+                this.bundle.getServiceRegistry().nextServiceId() ), this.bundle, service, eventQueue );
+    }
+
+    /**
+     * Starts a batch of services to register together. Calling register() on the returned batch registers all added
+     * services in one atomic step, and listeners get the REGISTERED events of all of them in one pass.
+     */
+    public OTRServiceBatch serviceBatch() {
+        return new OTRServiceBatch( this );
+    }
+
+    /**
+     * Creates a tracker of the services matching a service API class and an optional filter. The services are
+     * tracked when open() is called on the returned tracker.
+     *
+     * @param clazz The service API class name of the services to track. Can be null if filter is not.
+     * @param filter An additional filter the services must match. Can be null.
+     */
+    public OTRServiceTracker trackService( String clazz, String filter ) {
+        return new OTRServiceTracker( this, clazz, filter );
     }
 
     @SuppressWarnings("RedundantThrows")
@@ -219,17 +280,25 @@ public class OTRBundleContext implements BundleContext {
         return this.bundle.getServiceRegistry().getServiceReference( clazz );
     }
 
+    /**
+     * Returns the service of a reference. For a ServiceFactory service this is the instance created for this bundle.
+     *
+     * @param reference The reference of the service to get.
+     */
     @Override
     public Object getService( ServiceReference reference ) {
-        return this.bundle.getServiceRegistry().getService( reference );
+        return this.bundle.getServiceRegistry().getService( this.bundle, reference );
     }
 
     /**
-     * Does nothing!
+     * Releases a service got by getService(reference). A ServiceFactory service instance is returned to the
+     * factory when released as many times as it was got.
+     *
+     * @param reference The reference of the service to release.
      */
     @Override
     public boolean ungetService( ServiceReference reference ) {
-        return true;
+        return this.bundle.getServiceRegistry().ungetService( this.bundle, reference );
     }
 
     /**
@@ -241,10 +310,10 @@ public class OTRBundleContext implements BundleContext {
     }
 
     /**
-     * Not supported!
+     * Returns a Filter from the framework wide filter cache.
      */
     @Override
     public Filter createFilter( String filter ) throws InvalidSyntaxException {
-        return FrameworkUtil.createFilter(filter);
+        return this.bundle.getServiceRegistry().getFilterCache().getFilter( filter );
     }
 }
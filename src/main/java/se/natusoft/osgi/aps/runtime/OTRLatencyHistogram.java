@@ -0,0 +1,103 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import se.natusoft.osgi.aps.runtime.internal.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The recorded latencies of one kind of service registry operation or listener callback, as returned by
+ * OTRRegistryStats.
+ *
+ * This is a live view, so the values grow as the framework keeps recording. Latencies are in nanoseconds
+ * unless a unit is given. A percentile is accurate to within 12.5%, and is never more than the max
+ * recorded latency.
+ */
+@SuppressWarnings( "unused" )
+public class OTRLatencyHistogram {
+
+    //
+    // Private Members
+    //
+
+    private LatencyHistogram histogram;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new OTRLatencyHistogram.
+     *
+     * @param histogram The histogram to view.
+     */
+    OTRLatencyHistogram( LatencyHistogram histogram ) {
+        this.histogram = histogram;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the number of recorded latencies.
+     */
+    public long getCount() {
+        return this.histogram.getCount();
+    }
+
+    /**
+     * Returns the max recorded latency in nanoseconds.
+     */
+    public long getMax() {
+        return this.histogram.getMax();
+    }
+
+    /**
+     * Returns the mean recorded latency in nanoseconds, or 0 if none has been recorded.
+     */
+    public long getMean() {
+        return this.histogram.getMean();
+    }
+
+    /**
+     * Returns the latency in nanoseconds that the specified percentage of the recorded latencies are at or below,
+     * or 0 if none has been recorded.
+     *
+     * @param percentile The percentile to get, for example 99.0.
+     */
+    public long getPercentile( double percentile ) {
+        return this.histogram.getPercentile( percentile );
+    }
+
+    /**
+     * Returns a percentile converted to the specified unit.
+     *
+     * @param percentile The percentile to get, for example 99.0.
+     * @param unit The unit to return the latency in.
+     */
+    public long getPercentile( double percentile, TimeUnit unit ) {
+        return this.histogram.getPercentile( percentile, unit );
+    }
+
+    @Override
+    public String toString() {
+        return this.histogram.toString();
+    }
+}
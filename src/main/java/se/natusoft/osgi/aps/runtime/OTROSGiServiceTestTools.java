@@ -21,6 +21,12 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.Version;
+import se.natusoft.osgi.aps.runtime.internal.BundleRegistry;
+import se.natusoft.osgi.aps.runtime.internal.ListenerWatchdog;
+import se.natusoft.osgi.aps.runtime.internal.RegistryStats;
 import se.natusoft.osgi.aps.runtime.internal.ServiceRegistry;
 
 import java.io.File;
@@ -61,6 +67,10 @@ import java.util.concurrent.TimeUnit;
  *     deploy( "aps-config-manager").with( new APSActivator() ).from( "APS-Core/APSConfigManager/target/classes");
  *
  *     deploy( "moon-whale-service").with( new APSActivator() ).from( "APS-Core/APSConfigManager/target/test-classes");
+ *
+ * Each instance is a framework of its own, with its own bundles and service registry. Several instances
+ * can be used in parallel in the same JVM, for example to simulate several nodes, without seeing each
+ * others bundles or services.
  */
 @SuppressWarnings({ "WeakerAccess", "SpellCheckingInspection" })
 public class OTROSGiServiceTestTools {
@@ -69,40 +79,37 @@ public class OTROSGiServiceTestTools {
     // Private Members
     //
 
-    /** Wee need to keep track of all created Bundles. */
-    private static final List<OTRBundle> bundles = new LinkedList<>();
-
-    private long idGen = 0;
-
     private ServiceRegistry serviceRegistry = new ServiceRegistry();
 
-    private Map<String, OTRBundle> bundleByName = new HashMap<>();
+    /** Wee need to keep track of all created Bundles. */
+    private BundleRegistry bundleRegistry = new BundleRegistry( this.serviceRegistry.getWatchdog() );
+
+    private List<BundleBuilder> bundleBuilders = Collections.synchronizedList( new LinkedList<>() );
 
-    private Map<Long, OTRBundle> bundleById = new HashMap<>();
+    //
+    // Constructors
+    //
 
-    private List<BundleBuilder> bundleBuilders = new LinkedList<>();
+    /**
+     * Creates a new framework.
+     */
+    public OTROSGiServiceTestTools() {
+        // Service requests activate the bundles waiting for lazy activation.
+        this.serviceRegistry.setServiceRequestHook( this.bundleRegistry::activateLazyBundles );
+    }
 
     //
     // Methods
     //
 
     /**
-     * Send a bundle event to bundles.
+     * Send a bundle event to the bundle listeners of all bundles.
      *
      * @param bundle The bundle the event is about.
      * @param type   The type of the event.
      */
     private void bundleEvent( Bundle bundle, int type ) {
-        for ( OTRBundle apsBundle : bundles ) {
-            ( (OTRBundleContext) apsBundle.getBundleContext() ).bundleEvent( bundle, type );
-        }
-    }
-
-    /**
-     * For internal use.
-     */
-    public static List<OTRBundle> getInternalBundles() {
-        return bundles;
+        this.bundleRegistry.bundleEvent( bundle, type );
     }
 
     /**
@@ -111,31 +118,22 @@ public class OTROSGiServiceTestTools {
      * @param symbolicName The symbolic name of the bundle to create.
      */
     public OTRBundle createBundle( String symbolicName ) {
-        OTRBundle bundle = new OTRBundle( ++idGen, symbolicName, this.serviceRegistry );
-        bundles.add( bundle );
-        this.bundleByName.put( symbolicName, bundle );
-        this.bundleById.put( bundle.getBundleId(), bundle );
+        OTRBundle bundle = new OTRBundle( this.bundleRegistry.nextBundleId(), symbolicName, this.serviceRegistry,
+                this.bundleRegistry );
+        this.bundleRegistry.addBundle( bundle );
 
-        for ( OTRBundle apsBundle : bundles ) {
-            ( (OTRBundleContext) apsBundle.getBundleContext() ).bundleEvent( bundle, BundleEvent.INSTALLED );
-        }
+        bundleEvent( bundle, BundleEvent.INSTALLED );
 
         return bundle;
     }
 
     /**
-     * Removes a created bundle.
+     * Removes a created bundle, stopping it first if started.
      *
      * @param bundle The bundle to remove.
      */
     public void removeBundle( OTRBundle bundle ) {
-        bundles.remove( bundle );
-        this.bundleByName.remove( bundle.getSymbolicName() );
-        this.bundleById.remove( bundle.getBundleId() );
-
-        for ( OTRBundle apsBundle : bundles ) {
-            ( (OTRBundleContext) apsBundle.getBundleContext() ).bundleEvent( bundle, BundleEvent.UNINSTALLED );
-        }
+        bundle.remove();
     }
 
     /**
@@ -149,20 +147,43 @@ public class OTROSGiServiceTestTools {
     }
 
     /**
-     * Returns all created bundles.
+     * Returns all created bundles. The returned list does not change when bundles are created or removed later.
      */
     public List<OTRBundle> getBundles() {
-        return bundles;
+        return this.bundleRegistry.getBundles();
+    }
+
+    /**
+     * Returns all created bundles of this framework. This used to be static, returning the bundles of all
+     * instances, and a live list.
+     *
+     * @deprecated Use getBundles().
+     */
+    @Deprecated
+    public List<OTRBundle> getInternalBundles() {
+        return getBundles();
     }
 
     /**
-     * Returns a specific bundle by its symbolic name.
+     * Returns a specific bundle by its symbolic name. If several bundles have the name, the one with the highest
+     * version is returned.
      *
      * @param name The name of the bundle to get.
      */
     @SuppressWarnings( "unused" )
     public OTRBundle getBundleBySymbolicName( String name ) {
-        return this.bundleByName.get( name );
+        return this.bundleRegistry.getBundle( name );
+    }
+
+    /**
+     * Returns a specific bundle by its symbolic name and version.
+     *
+     * @param name The name of the bundle to get.
+     * @param version The version of the bundle to get.
+     */
+    @SuppressWarnings( "unused" )
+    public OTRBundle getBundleBySymbolicName( String name, Version version ) {
+        return this.bundleRegistry.getBundle( name, version );
     }
 
     /**
@@ -172,16 +193,169 @@ public class OTROSGiServiceTestTools {
      */
     @SuppressWarnings( "unused" )
     public OTRBundle getBundleById( long id ) {
-        return this.bundleById.get( id );
+        return this.bundleRegistry.getBundle( id );
+    }
+
+    /**
+     * Selects if service listeners added from now on should have their events delivered asynchronously
+     * by default. Registering a service will then not wait for listeners. Events to a listener are still
+     * delivered in order. Default is false.
+     *
+     * @param async True for asynchronous delivery of service events.
+     */
+    public void setAsyncServiceEvents( boolean async ) {
+        this.serviceRegistry.setAsyncDelivery( async );
+    }
+
+    /**
+     * Waits for all bundle events sent so far to be delivered. Bundle listeners that are not
+     * SynchronousBundleListeners are called in order by a background thread, so this is needed before checking
+     * what such a listener has seen.
+     *
+     * @param timeout The max time to wait.
+     * @param unit The unit of the timeout.
+     *
+     * @return true if all events were delivered, false on timeout.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    public boolean awaitBundleEvents( long timeout, TimeUnit unit ) throws InterruptedException {
+        return this.bundleRegistry.awaitBundleEvents( timeout, unit );
+    }
+
+    /**
+     * Coalesces modifications of the properties of a service made within the specified window into one MODIFIED
+     * event per listener, sent when the window has passed. This avoids a flood of events when services change
+     * properties very often. 0, which is the default, sends an event for every modification.
+     *
+     * @param window The length of the window.
+     * @param unit The unit of the window.
+     */
+    public void setServiceModifiedEventWindow( long window, TimeUnit unit ) {
+        this.serviceRegistry.setModifiedEventWindow( window, unit );
+    }
+
+    /**
+     * Waits for all asynchronously delivered service events posted so far to be delivered. This includes the
+     * events of coalesced service modifications not yet sent.
+     *
+     * @param timeout The max time to wait.
+     * @param unit The unit of the timeout.
+     *
+     * @return true if all events were delivered, false on timeout.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    public boolean awaitServiceEvents( long timeout, TimeUnit unit ) throws InterruptedException {
+        return this.serviceRegistry.awaitAsyncDelivery( timeout, unit );
+    }
+
+    /**
+     * Declares service properties as indexed. Service lookups with filters having equality or presence terms on
+     * indexed properties, like '(&amp;(objectClass=...)(provider=kafka))', then only evaluate the filter against the
+     * services having a matching value. 'service.pid' is always indexed.
+     *
+     * @param keys The names of the properties to index.
+     */
+    public void indexServiceProperties( String... keys ) {
+        for ( String key : keys ) {
+            this.serviceRegistry.addIndexedProperty( key );
+        }
+    }
+
+    /**
+     * Returns a consistent view of all registered services at this point in time. The returned snapshot is
+     * not affected by later registrations and unregistrations.
+     */
+    public OTRRegistrySnapshot getServiceRegistrySnapshot() {
+        return new OTRRegistrySnapshot( this.serviceRegistry.getSnapshot() );
+    }
+
+    /**
+     * Enables or disables instrumentation of the service registry, which counts registrations, unregistrations,
+     * lookups and filter evaluations, and records latency histograms of them and of listener callbacks per listener
+     * class and per bundle. Enabling starts over with empty stats. Disabled by default, and then it costs next to
+     * nothing.
+     *
+     * @param enabled True to enable.
+     */
+    public void setServiceRegistryStats( boolean enabled ) {
+        this.serviceRegistry.setStatsEnabled( enabled );
+    }
+
+    /**
+     * Returns the stats collected since instrumentation was enabled, or null if disabled. For example:
+     *
+     *     assertTrue( getServiceRegistryStats().getDispatchLatency().getPercentile( 99, TimeUnit.MICROSECONDS ) &lt; 1000 );
+     */
+    public OTRRegistryStats getServiceRegistryStats() {
+        RegistryStats stats = this.serviceRegistry.getStats();
+        return stats != null ? new OTRRegistryStats( stats ) : null;
     }
 
     /**
-     * Shuts down all bundles started with deployBundle(...).
+     * Enables a watchdog timing every service and bundle listener callback. Callbacks taking longer than the
+     * threshold are reported by getSlowListeners() with the listener class, the bundle that added the listener and
+     * the stack of the listener while it was slow.
+     *
+     * @param threshold The max time a callback may take. 0 disables the watchdog, which is the default.
+     * @param unit The unit of the threshold.
+     * @param testResults If not null, slow callbacks also fail the test in this.
+     */
+    public void setSlowListenerWatchdog( long threshold, TimeUnit unit, OTRTestResults testResults ) {
+        this.serviceRegistry.getWatchdog().setThreshold( threshold, unit, testResults );
+    }
+
+    /**
+     * Enables the watchdog with a threshold of 100 milliseconds, or disables it and stops its thread.
+     *
+     * @param enabled True to enable.
+     */
+    public void setSlowListenerWatchdog( boolean enabled ) {
+        if ( enabled ) {
+            setSlowListenerWatchdog( 100, TimeUnit.MILLISECONDS, null );
+        }
+        else {
+            this.serviceRegistry.getWatchdog().close();
+        }
+    }
+
+    /**
+     * Returns the slow listener callbacks the watchdog has reported so far.
+     */
+    public List<OTRSlowListener> getSlowListeners() {
+        List<OTRSlowListener> slowListeners = new ArrayList<>();
+        for ( ListenerWatchdog.SlowListener slowListener : this.serviceRegistry.getWatchdog().getSlowListeners() ) {
+            slowListeners.add( new OTRSlowListener( slowListener ) );
+        }
+        return Collections.unmodifiableList( slowListeners );
+    }
+
+    /**
+     * Returns the FrameworkEvent.ERROR events reported so far for errors that could not be thrown to a caller, like
+     * an activator failing on lazy activation or on removeBundle(...). These also fail the test results given to
+     * setSlowListenerWatchdog(...).
+     */
+    public List<FrameworkEvent> getFrameworkErrors() {
+        return this.bundleRegistry.getFrameworkErrors();
+    }
+
+    /**
+     * Shuts down all bundles started with deployBundle(...), and then the event delivery and watchdog threads of
+     * this framework after delivering the events still pending.
      */
     public void shutdown() {
-        Collections.reverse( this.bundleBuilders );
-        this.bundleBuilders.forEach( BundleBuilder::shutdown );
-        this.bundleBuilders = new LinkedList<>();
+        List<BundleBuilder> builders;
+        synchronized ( this.bundleBuilders ) {
+            builders = new ArrayList<>( this.bundleBuilders );
+            this.bundleBuilders.clear();
+        }
+        Collections.reverse( builders );
+        builders.forEach( BundleBuilder::shutdown );
+
+        this.bundleRegistry.close();
+        this.serviceRegistry.close();
+        this.serviceRegistry.getWatchdog().close();
     }
 
     /**
@@ -210,9 +384,14 @@ public class OTROSGiServiceTestTools {
      */
     @SuppressWarnings( "unused" )
     public void undeploy( String name ) {
-        BundleBuilder bb = this.bundleBuilders.stream().filter( b -> b.getName().equals( name ) ).findFirst().orElse( null );
+        BundleBuilder bb;
+        synchronized ( this.bundleBuilders ) {
+            bb = this.bundleBuilders.stream().filter( b -> b.getName().equals( name ) ).findFirst().orElse( null );
+            if ( bb != null ) {
+                this.bundleBuilders.remove( bb );
+            }
+        }
         if ( bb != null ) {
-            this.bundleBuilders.remove( bb );
             bb.shutdown();
         }
     }
@@ -382,6 +561,9 @@ public class OTROSGiServiceTestTools {
         /**
          * Private support method that actually starts the bundle using its BundleActivator.
          *
+         * If the bundle has a 'Bundle-ActivationPolicy: lazy' manifest header, the activator is not called until
+         * the bundle is first used.
+         *
          * @return itself.
          * @throws Exception Any exceptions are forwarded.
          */
@@ -389,9 +571,17 @@ public class OTROSGiServiceTestTools {
             if ( this.activator == null ) {
                 throw new IllegalStateException( "Activator has not been provided! Add an 'with new MyActivator()'" );
             }
-            this.activator.start( this.bundle.getBundleContext() );
-
-            bundleEvent( bundle, BundleEvent.STARTED );
+            this.bundle.setActivator( this.activator );
+            try {
+                this.bundle.start( Bundle.START_ACTIVATION_POLICY );
+            }
+            catch ( BundleException be ) {
+                // Forward what the activator threw.
+                if ( be.getCause() instanceof Exception ) {
+                    throw (Exception) be.getCause();
+                }
+                throw be;
+            }
 
             return this;
         }
@@ -542,13 +732,11 @@ public class OTROSGiServiceTestTools {
          */
         public void shutdown() {
             try {
-                this.activator.stop( this.bundle.getBundleContext() );
+                this.bundle.stop();
             } catch ( Exception e ) {
                 e.printStackTrace( System.err );
             }
 
-            bundleEvent( bundle, BundleEvent.STOPPED );
-
             removeBundle( this.bundle );
         }
     }
@@ -0,0 +1,122 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import se.natusoft.osgi.aps.runtime.internal.RegistrySnapshot;
+
+import java.util.Set;
+
+/**
+ * A consistent view of all registered services at one point in time, as returned by
+ * OTROSGiServiceTestTools.getServiceRegistrySnapshot().
+ *
+ * The view never changes, so a test can hold on to it while services are registered and unregistered,
+ * and compare it with a later snapshot.
+ */
+@SuppressWarnings( "unused" )
+public class OTRRegistrySnapshot {
+
+    //
+    // Private Members
+    //
+
+    private RegistrySnapshot snapshot;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new OTRRegistrySnapshot.
+     *
+     * @param snapshot The snapshot of the service registry to view.
+     */
+    OTRRegistrySnapshot( RegistrySnapshot snapshot ) {
+        this.snapshot = snapshot;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the version of the snapshot. Every change of the registry increases the version.
+     */
+    public long getVersion() {
+        return this.snapshot.getVersion();
+    }
+
+    /**
+     * Returns the number of registered services.
+     */
+    public int size() {
+        return this.snapshot.size();
+    }
+
+    /**
+     * Returns the names of the service API classes having registered services.
+     */
+    public Set<String> getObjectClasses() {
+        return this.snapshot.getObjectClasses();
+    }
+
+    /**
+     * Returns the names of the indexed service properties.
+     */
+    public Set<String> getIndexedProperties() {
+        return this.snapshot.getIndexedProperties();
+    }
+
+    /**
+     * Returns the references of all registered services, with the best ranked first.
+     */
+    public ServiceReference[] getServiceReferences() {
+        return this.snapshot.getServiceReferences();
+    }
+
+    /**
+     * Returns the references of the services registered under a service API class, with the best ranked first.
+     *
+     * @param objectClass The name of the service API class.
+     */
+    public ServiceReference[] getServiceReferences( String objectClass ) {
+        return this.snapshot.getServiceReferences( objectClass );
+    }
+
+    /**
+     * Returns the references of the services registered by a bundle.
+     *
+     * @param bundle The bundle to get references for.
+     */
+    public ServiceReference[] getRegisteredServices( Bundle bundle ) {
+        return this.snapshot.getRegisteredServices( bundle );
+    }
+
+    /**
+     * Returns true if a service was registered when the snapshot was taken.
+     *
+     * @param registration The registration of the service.
+     */
+    public boolean contains( ServiceRegistration registration ) {
+        return registration instanceof OTRServiceRegistration &&
+                this.snapshot.contains( (OTRServiceRegistration) registration );
+    }
+}
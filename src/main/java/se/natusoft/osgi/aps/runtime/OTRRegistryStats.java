@@ -0,0 +1,187 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.osgi.framework.Bundle;
+import se.natusoft.osgi.aps.runtime.internal.LatencyHistogram;
+import se.natusoft.osgi.aps.runtime.internal.RegistryStats;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The counts and latencies of the service registry, as returned by
+ * OTROSGiServiceTestTools.getServiceRegistryStats() while instrumentation is enabled.
+ *
+ * This is a live view, so the values grow as the framework keeps recording. Usage:
+ *
+ *     OTRRegistryStats stats = getServiceRegistryStats();
+ *     assertTrue( stats.getDispatchLatency().getPercentile( 99, TimeUnit.MICROSECONDS ) &lt; 1000 );
+ *     assertTrue( stats.getDispatchLatency( MyListener.class ).getMax() &lt; 5_000_000 );
+ */
+@SuppressWarnings( "unused" )
+public class OTRRegistryStats {
+
+    //
+    // Private Members
+    //
+
+    private RegistryStats stats;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new OTRRegistryStats.
+     *
+     * @param stats The stats to view.
+     */
+    OTRRegistryStats( RegistryStats stats ) {
+        this.stats = stats;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the number of registered services.
+     */
+    public long getRegistrations() {
+        return this.stats.getRegistrations();
+    }
+
+    /**
+     * Returns the number of unregistered services.
+     */
+    public long getUnregistrations() {
+        return this.stats.getUnregistrations();
+    }
+
+    /**
+     * Returns the number of modifications of service properties.
+     */
+    public long getModifications() {
+        return this.stats.getModifications();
+    }
+
+    /**
+     * Returns the number of service lookups.
+     */
+    public long getLookups() {
+        return this.stats.getLookups();
+    }
+
+    /**
+     * Returns the number of filter evaluations, by both lookups and event delivery.
+     */
+    public long getFilterEvaluations() {
+        return this.stats.getFilterEvaluations();
+    }
+
+    /**
+     * Returns the number of listener callbacks.
+     */
+    public long getDispatches() {
+        return this.stats.getDispatches();
+    }
+
+    /**
+     * Returns the latencies of registrations. A batch of services counts as one.
+     */
+    public OTRLatencyHistogram getRegistrationLatency() {
+        return new OTRLatencyHistogram( this.stats.getRegistrationLatency() );
+    }
+
+    /**
+     * Returns the latencies of unregistrations.
+     */
+    public OTRLatencyHistogram getUnregistrationLatency() {
+        return new OTRLatencyHistogram( this.stats.getUnregistrationLatency() );
+    }
+
+    /**
+     * Returns the latencies of modifications of service properties.
+     */
+    public OTRLatencyHistogram getModificationLatency() {
+        return new OTRLatencyHistogram( this.stats.getModificationLatency() );
+    }
+
+    /**
+     * Returns the latencies of service lookups.
+     */
+    public OTRLatencyHistogram getLookupLatency() {
+        return new OTRLatencyHistogram( this.stats.getLookupLatency() );
+    }
+
+    /**
+     * Returns the latencies of all listener callbacks.
+     */
+    public OTRLatencyHistogram getDispatchLatency() {
+        return new OTRLatencyHistogram( this.stats.getDispatchLatency() );
+    }
+
+    /**
+     * Returns the latencies of the callbacks of listeners of a class. The histogram is empty if no such listener has
+     * been called.
+     *
+     * @param listenerClass The class of the listeners.
+     */
+    public OTRLatencyHistogram getDispatchLatency( Class<?> listenerClass ) {
+        return new OTRLatencyHistogram( this.stats.getDispatchLatency( listenerClass ) );
+    }
+
+    /**
+     * Returns the latencies of the callbacks of the listeners added by a bundle. The histogram is empty if no such
+     * listener has been called.
+     *
+     * @param bundle The bundle that added the listeners.
+     */
+    public OTRLatencyHistogram getDispatchLatency( Bundle bundle ) {
+        return new OTRLatencyHistogram( this.stats.getDispatchLatency( bundle ) );
+    }
+
+    /**
+     * Returns the callback latencies of all called listener classes.
+     */
+    public Map<Class<?>, OTRLatencyHistogram> getDispatchLatencyByListener() {
+        Map<Class<?>, OTRLatencyHistogram> byListener = new LinkedHashMap<>();
+        for ( Map.Entry<Class<?>, LatencyHistogram> entry : this.stats.getDispatchLatencyByListener().entrySet() ) {
+            byListener.put( entry.getKey(), new OTRLatencyHistogram( entry.getValue() ) );
+        }
+        return Collections.unmodifiableMap( byListener );
+    }
+
+    /**
+     * Returns the callback latencies of the listeners of all bundles.
+     */
+    public Map<Bundle, OTRLatencyHistogram> getDispatchLatencyByBundle() {
+        Map<Bundle, OTRLatencyHistogram> byBundle = new LinkedHashMap<>();
+        for ( Map.Entry<Bundle, LatencyHistogram> entry : this.stats.getDispatchLatencyByBundle().entrySet() ) {
+            byBundle.put( entry.getKey(), new OTRLatencyHistogram( entry.getValue() ) );
+        }
+        return Collections.unmodifiableMap( byBundle );
+    }
+
+    @Override
+    public String toString() {
+        return this.stats.toString();
+    }
+}
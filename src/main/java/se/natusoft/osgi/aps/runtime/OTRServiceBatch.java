@@ -0,0 +1,113 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.osgi.framework.ServiceRegistration;
+import se.natusoft.osgi.aps.runtime.internal.ServiceEventQueue;
+
+import java.util.*;
+
+/**
+ * Collects services to register together in one atomic step.
+ *
+ * Usage:
+ *
+ *     List&lt;ServiceRegistration&gt; regs = context.serviceBatch()
+ *         .add( MyService.class.getName(), new MyServiceProvider(), props )
+ *         .add( OtherService.class.getName(), new OtherServiceProvider(), otherProps )
+ *         .register();
+ *
+ * Listeners get the REGISTERED events of all services in the batch in one pass, after all of them
+ * have been registered.
+ */
+public class OTRServiceBatch {
+    //
+    // Private Members
+    //
+
+    private OTRBundleContext bundleContext;
+
+    /** Shared by all registrations of the batch to keep their events in order. */
+    private ServiceEventQueue eventQueue = new ServiceEventQueue();
+
+    private List<OTRServiceRegistration> registrations = new ArrayList<>();
+
+    private boolean registered = false;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new OTRServiceBatch.
+     *
+     * @param bundleContext The context of the bundle registering the services.
+     */
+    OTRServiceBatch( OTRBundleContext bundleContext ) {
+        this.bundleContext = bundleContext;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Adds a service to the batch.
+     *
+     * @param clazz The service API class name.
+     * @param service The service instance.
+     * @param properties The service properties.
+     *
+     * @return itself.
+     */
+    public OTRServiceBatch add( String clazz, Object service, Dictionary properties ) {
+        return add( new String[]{ clazz }, service, properties );
+    }
+
+    /**
+     * Adds a service registered under several service API class names to the batch.
+     *
+     * @param clazzes The service API class names.
+     * @param service The service instance.
+     * @param properties The service properties.
+     *
+     * @return itself.
+     */
+    public OTRServiceBatch add( String[] clazzes, Object service, Dictionary properties ) {
+        if ( this.registered ) {
+            throw new IllegalStateException( "This batch has already been registered!" );
+        }
+        this.registrations.add( this.bundleContext.createServiceRegistration( clazzes, service, properties, this.eventQueue ) );
+        return this;
+    }
+
+    /**
+     * Registers all added services.
+     *
+     * @return The registrations of the services in the order they were added.
+     */
+    public List<ServiceRegistration> register() {
+        if ( this.registered ) {
+            throw new IllegalStateException( "This batch has already been registered!" );
+        }
+        this.registered = true;
+        ( (OTRBundle) this.bundleContext.getBundle() ).getServiceRegistry().registerServices( this.registrations );
+
+        return Collections.unmodifiableList( this.registrations );
+    }
+}
@@ -18,11 +18,12 @@
 package se.natusoft.osgi.aps.runtime;
 
 import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
+import se.natusoft.osgi.aps.runtime.internal.ServiceProperties;
 
-import java.util.ArrayList;
-import java.util.Dictionary;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Provides an implementation of ServiceReference.
@@ -33,8 +34,11 @@ public class OTRServiceReference implements ServiceReference {
     //
 
     private OTRBundleContext bundleContext;
-    private List<Bundle> usingBundles = new ArrayList<>();
-    private Dictionary props;
+    private List<Bundle> usingBundles = new CopyOnWriteArrayList<>();
+    private volatile ServiceProperties props;
+    private OTRServiceRegistration registration;
+    private long serviceId;
+    private int ranking;
 
     //
     // Constructors
@@ -44,21 +48,54 @@ public class OTRServiceReference implements ServiceReference {
      * Creates a new ServiceReference.
      *
      * @param bundleContext The context of the bundle the service belongs to.
+     * @param props The properties of the service. Can be null.
+     * @param objectClasses The service API class names the service is registered under.
+     * @param serviceId The framework assigned id of the service.
      */
     //@SuppressWarnings("WeakerAccess")
-    OTRServiceReference( OTRBundleContext bundleContext, Dictionary props) {
+    OTRServiceReference( OTRBundleContext bundleContext, Dictionary props, String[] objectClasses, long serviceId) {
         this.bundleContext = bundleContext;
-        this.props = props;
+        this.serviceId = serviceId;
+        setProperties(ServiceProperties.of(props, objectClasses, serviceId));
     }
 
     //
     // Methods
     //
 
+    /**
+     * Replaces the properties of the service. The 'objectClass' and 'service.id' properties are kept.
+     *
+     * @param properties The new properties. Can be null.
+     */
     /*package*/ void setProperties(Dictionary properties) {
+        setProperties(ServiceProperties.of(properties, this.props.getObjectClasses(), this.serviceId));
+    }
+
+    private void setProperties(ServiceProperties properties) {
+        Object ranking = properties.get(Constants.SERVICE_RANKING);
+        this.ranking = ranking instanceof Integer ? (Integer) ranking : 0;
         this.props = properties;
     }
 
+    /**
+     * For internal use.
+     */
+    public ServiceProperties getServiceProperties() {
+        return this.props;
+    }
+
+    /*package*/ void setRegistration(OTRServiceRegistration registration) {
+        this.registration = registration;
+    }
+
+    /**
+     * Returns the registration this is a reference to.
+     */
+    public OTRServiceRegistration getRegistration() {
+        return this.registration;
+    }
+
     /**
      * Adds "using" bundle that will be returned by getUsingBundles().
      *
@@ -69,15 +106,37 @@ public class OTRServiceReference implements ServiceReference {
         this.usingBundles.add(usingBundle);
     }
 
+    /**
+     * Returns the framework assigned id of the service.
+     */
+    public long getServiceId() {
+        return this.serviceId;
+    }
+
+    /**
+     * Returns the 'service.ranking' of the service, which is 0 unless specified as an Integer property.
+     */
+    public int getRanking() {
+        return this.ranking;
+    }
+
+    /**
+     * Returns a property of the service. Keys are case insensitive. Array values are returned as copies.
+     *
+     * @param key The key of the property to get.
+     */
     @Override
     public Object getProperty(String key) {
-        return this.props.get(key);
+        Object value = this.props.get(key);
+        return value != null && value.getClass().isArray() ? ServiceProperties.copyOf(value) : value;
     }
 
+    /**
+     * Returns the keys of the properties of the service.
+     */
     @Override
     public String[] getPropertyKeys() {
-        String[] propKeys = new String[this.bundleContext.getProperties().stringPropertyNames().size()];
-        return this.bundleContext.getProperties().stringPropertyNames().toArray(propKeys);
+        return this.props.getKeys().clone();
     }
 
     @Override
@@ -85,10 +144,23 @@ public class OTRServiceReference implements ServiceReference {
         return this.bundleContext.getBundle();
     }
 
+    /**
+     * Returns the bundles currently using the service, or null if no bundle is. This includes bundles added
+     * by addUsingBundle().
+     */
     @Override
     public Bundle[] getUsingBundles() {
-        Bundle[] bundles = new Bundle[this.usingBundles.size()];
-        return this.usingBundles.toArray(bundles);
+        Bundle[] using = this.registration != null ?
+                ((OTRBundle) this.bundleContext.getBundle()).getServiceRegistry().getUsingBundles(this.registration) : null;
+        if (this.usingBundles.isEmpty()) {
+            return using;
+        }
+
+        Set<Bundle> bundles = new LinkedHashSet<>(this.usingBundles);
+        if (using != null) {
+            bundles.addAll(Arrays.asList(using));
+        }
+        return bundles.toArray(new Bundle[bundles.size()]);
     }
 
 
@@ -101,10 +173,22 @@ public class OTRServiceReference implements ServiceReference {
     }
 
     /**
-     * Always returns 0.
+     * Compares by 'service.ranking' and then by 'service.id'. A reference with higher ranking, or with equal ranking
+     * and lower id, is greater and would be returned by getServiceReference(clazz).
+     *
+     * @param reference The OTRServiceReference to compare to.
+     *
+     * @throws IllegalArgumentException if the reference is not an OTRServiceReference.
      */
     @Override
     public int compareTo(Object reference) {
-        return 0;
+        if (!(reference instanceof OTRServiceReference)) {
+            throw new IllegalArgumentException("Can not compare to a ServiceReference of another framework: " + reference);
+        }
+        OTRServiceReference other = (OTRServiceReference) reference;
+        if (this.ranking != other.ranking) {
+            return this.ranking > other.ranking ? 1 : -1;
+        }
+        return Long.compare(other.serviceId, this.serviceId);
     }
 }
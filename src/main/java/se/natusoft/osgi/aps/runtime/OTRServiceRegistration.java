@@ -18,9 +18,13 @@ package se.natusoft.osgi.aps.runtime;
 
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Bundle;
+import se.natusoft.osgi.aps.runtime.internal.ServiceEventQueue;
+import se.natusoft.osgi.aps.runtime.internal.ServiceUse;
 
 import java.util.Dictionary;
-import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides a ServiceRegistration implementation for testing.
@@ -30,11 +34,13 @@ public class OTRServiceRegistration implements ServiceRegistration {
     // Private Members
     //
 
-    private UUID id = UUID.randomUUID();
-
     private String serviceName;
+    private String[] objectClasses;
     private OTRServiceReference serviceReference;
     private OTRBundle bundle;
+    private Object service;
+    private ServiceEventQueue eventQueue;
+    private Map<Bundle, ServiceUse> serviceUses = new ConcurrentHashMap<>();
 
     //
     // Constructors
@@ -43,13 +49,34 @@ public class OTRServiceRegistration implements ServiceRegistration {
     /**
      * Creates a new TestServiceRegistration instance.
      *
-     * @param serviceName The name of the registered service.
+     * @param objectClasses The service API class names the service is registered under.
+     * @param serviceReference The reference of the registered service.
+     * @param bundle The bundle registering the service.
+     * @param service The registered service instance.
+     */
+    OTRServiceRegistration( String[] objectClasses, OTRServiceReference serviceReference, OTRBundle bundle, Object service ) {
+        this( objectClasses, serviceReference, bundle, service, new ServiceEventQueue() );
+    }
+
+    /**
+     * Creates a new TestServiceRegistration instance.
+     *
+     * @param objectClasses The service API class names the service is registered under.
      * @param serviceReference The reference of the registered service.
+     * @param bundle The bundle registering the service.
+     * @param service The registered service instance.
+     * @param eventQueue The queue keeping the events of this registration in order. This is shared by services
+     *                   registered together.
      */
-    OTRServiceRegistration( String serviceName, OTRServiceReference serviceReference, OTRBundle bundle ) {
-        this.serviceName = serviceName;
+    OTRServiceRegistration( String[] objectClasses, OTRServiceReference serviceReference, OTRBundle bundle, Object service,
+                            ServiceEventQueue eventQueue ) {
+        this.serviceName = objectClasses[ 0 ];
+        this.objectClasses = objectClasses;
         this.serviceReference = serviceReference;
         this.bundle = bundle;
+        this.service = service;
+        this.eventQueue = eventQueue;
+        serviceReference.setRegistration( this );
     }
 
     //
@@ -57,23 +84,64 @@ public class OTRServiceRegistration implements ServiceRegistration {
     //
 
     /**
-     * Returns the name of the registered service.
+     * Returns the name of the registered service. For a service registered under several names this is the first.
      */
     public String getServiceName() {
         return this.serviceName;
     }
 
+    /**
+     * Returns the service API class names the service is registered under. The returned array is shared and must
+     * not be modified!
+     */
+    public String[] getObjectClasses() {
+        return this.objectClasses;
+    }
+
+    /**
+     * Returns the bundle that registered the service.
+     */
+    public OTRBundle getBundle() {
+        return this.bundle;
+    }
+
+    /**
+     * Returns the registered service instance. For a ServiceFactory this is the factory.
+     */
+    public Object getService() {
+        return this.service;
+    }
+
+    /**
+     * For internal use.
+     */
+    public ServiceEventQueue getEventQueue() {
+        return this.eventQueue;
+    }
+
+    /**
+     * For internal use.
+     */
+    public Map<Bundle, ServiceUse> getServiceUses() {
+        return this.serviceUses;
+    }
+
     @Override
     public ServiceReference getReference() {
         return this.serviceReference;
     }
 
     /**
-     * Does nothing!
+     * Replaces the properties of the service and sends a MODIFIED event to listeners whose filters match the new
+     * properties, and a MODIFIED_ENDMATCH event to listeners whose filters only matched the old properties.
+     *
+     * @param properties The new properties.
+     *
+     * @throws IllegalStateException if the service has been unregistered.
      */
     @Override
     public void setProperties(Dictionary properties) {
-        serviceReference.setProperties(properties);
+        this.bundle.getServiceRegistry().modifyService(this, () -> this.serviceReference.setProperties(properties));
     }
 
     /**
@@ -86,10 +154,10 @@ public class OTRServiceRegistration implements ServiceRegistration {
 
     @Override
     public int hashCode() {
-        return this.id.hashCode();
+        return Long.hashCode( this.serviceReference.getServiceId() );
     }
 
     public boolean equals( OTRServiceRegistration otrServiceRegistration ) {
-        return this.id.equals( otrServiceRegistration.id);
+        return this.serviceReference.getServiceId() == otrServiceRegistration.serviceReference.getServiceId();
     }
 }
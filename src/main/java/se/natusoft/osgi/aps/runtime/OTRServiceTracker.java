@@ -0,0 +1,408 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.osgi.framework.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Tracks the services matching a service API class and an optional filter.
+ *
+ * Usage:
+ *
+ *     OTRServiceTracker tracker = ((OTRBundleContext)context).trackService( MyService.class.getName(), null )
+ *         .onAdded( ( ref, service ) -&gt; ... )
+ *         .onRemoved( ( ref, service ) -&gt; ... )
+ *         .open();
+ *
+ *     MyService myService = (MyService)tracker.waitForService( 5, TimeUnit.SECONDS );
+ *
+ * The best ranked of the tracked services is kept together with its reference in a volatile field that
+ * is updated by the service events of the registry, so getService() is a single field read. The events
+ * are always delivered synchronously to the tracker, also when the registry delivers events
+ * asynchronously by default, so a service is tracked when its registration returns.
+ *
+ * Callbacks are called after the tracker has been updated and without holding any lock of the tracker.
+ */
+public class OTRServiceTracker {
+
+    /**
+     * A tracked service and its reference. Immutable so that both are read in one volatile read.
+     */
+    private static class Tracked {
+        private final ServiceReference reference;
+        private final Object service;
+
+        private Tracked( ServiceReference reference, Object service ) {
+            this.reference = reference;
+            this.service = service;
+        }
+    }
+
+    //
+    // Private Members
+    //
+
+    private OTRBundleContext bundleContext;
+
+    /** The filter of the tracked services, including the service API class. */
+    private String filter;
+
+    /** The tracked services. Guarded by 'this'. */
+    private Map<ServiceReference, Object> tracked = new LinkedHashMap<>();
+
+    /** The best ranked of the tracked services or null if none. */
+    private volatile Tracked best;
+
+    private BiConsumer<ServiceReference, Object> added;
+    private BiConsumer<ServiceReference, Object> modified;
+    private BiConsumer<ServiceReference, Object> removed;
+
+    private ServiceListener listener = this::serviceChanged;
+
+    private boolean open = false;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new OTRServiceTracker.
+     *
+     * @param bundleContext The context of the bundle tracking services.
+     * @param clazz The service API class name of the services to track. Can be null if filter is not.
+     * @param filter An additional filter the services must match. Can be null.
+     */
+    OTRServiceTracker( OTRBundleContext bundleContext, String clazz, String filter ) {
+        if ( clazz == null && filter == null ) {
+            throw new IllegalArgumentException( "A service API class name or a filter must be passed!" );
+        }
+        this.bundleContext = bundleContext;
+
+        if ( clazz == null ) {
+            this.filter = filter;
+        }
+        else if ( filter == null ) {
+            this.filter = "(" + Constants.OBJECTCLASS + "=" + clazz + ")";
+        }
+        else {
+            this.filter = "(&(" + Constants.OBJECTCLASS + "=" + clazz + ")" + filter + ")";
+        }
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Sets a callback called when a service starts being tracked.
+     *
+     * @param added The callback to call with the reference and the service.
+     *
+     * @return itself.
+     */
+    public OTRServiceTracker onAdded( BiConsumer<ServiceReference, Object> added ) {
+        this.added = added;
+        return this;
+    }
+
+    /**
+     * Sets a callback called when the properties of a tracked service are modified.
+     *
+     * @param modified The callback to call with the reference and the service.
+     *
+     * @return itself.
+     */
+    public OTRServiceTracker onModified( BiConsumer<ServiceReference, Object> modified ) {
+        this.modified = modified;
+        return this;
+    }
+
+    /**
+     * Sets a callback called when a service stops being tracked, because it is unregistered, no longer matches,
+     * or the tracker is closed.
+     *
+     * @param removed The callback to call with the reference and the service.
+     *
+     * @return itself.
+     */
+    public OTRServiceTracker onRemoved( BiConsumer<ServiceReference, Object> removed ) {
+        this.removed = removed;
+        return this;
+    }
+
+    /**
+     * Starts tracking services. The services already registered are tracked before this returns.
+     *
+     * @return itself.
+     *
+     * @throws IllegalArgumentException on bad filter syntax.
+     */
+    public OTRServiceTracker open() {
+        synchronized ( this ) {
+            if ( this.open ) {
+                throw new IllegalStateException( "This tracker is already open!" );
+            }
+            this.open = true;
+        }
+
+        ServiceReference[] references;
+        try {
+            this.bundleContext.addServiceListener( this.listener, this.filter, false );
+            references = this.bundleContext.getServiceReferences( null, this.filter );
+        }
+        catch ( InvalidSyntaxException ise ) {
+            throw new IllegalArgumentException( "Bad filter: " + this.filter, ise );
+        }
+
+        if ( references != null ) {
+            for ( ServiceReference reference : references ) {
+                add( reference );
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Stops tracking services, releasing all tracked services.
+     */
+    public void close() {
+        Map<ServiceReference, Object> closed;
+        synchronized ( this ) {
+            if ( !this.open ) {
+                return;
+            }
+            this.open = false;
+            this.bundleContext.removeServiceListener( this.listener );
+
+            closed = new LinkedHashMap<>( this.tracked );
+            this.tracked.clear();
+            this.best = null;
+        }
+
+        for ( Map.Entry<ServiceReference, Object> entry : closed.entrySet() ) {
+            this.bundleContext.ungetService( entry.getKey() );
+            call( this.removed, entry.getKey(), entry.getValue() );
+        }
+    }
+
+    /**
+     * Returns the best ranked tracked service or null if there is none.
+     */
+    public Object getService() {
+        Tracked tracked = this.best;
+        return tracked != null ? tracked.service : null;
+    }
+
+    /**
+     * Returns the reference of the best ranked tracked service or null if there is none.
+     */
+    public ServiceReference getServiceReference() {
+        Tracked tracked = this.best;
+        return tracked != null ? tracked.reference : null;
+    }
+
+    /**
+     * Returns the references of all tracked services or null if there are none.
+     */
+    public synchronized ServiceReference[] getServiceReferences() {
+        return this.tracked.isEmpty() ? null : this.tracked.keySet().toArray( new ServiceReference[ this.tracked.size() ] );
+    }
+
+    /**
+     * Returns the number of tracked services.
+     */
+    public synchronized int size() {
+        return this.tracked.size();
+    }
+
+    /**
+     * Waits for a service to be tracked, returning the best ranked tracked service.
+     *
+     * @param timeout The max time to wait.
+     * @param unit The unit of the timeout.
+     *
+     * @return the service or null if none was tracked within the timeout.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Object waitForService( long timeout, TimeUnit unit ) throws InterruptedException {
+        Object service = getService();
+        if ( service != null ) {
+            return service;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
+        synchronized ( this ) {
+            while ( this.best == null ) {
+                long remaining = deadline - System.nanoTime();
+                if ( remaining <= 0 ) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait( this, remaining );
+            }
+            return this.best.service;
+        }
+    }
+
+    /**
+     * Receives the service events of the tracked services.
+     *
+     * @param event The received event.
+     */
+    private void serviceChanged( ServiceEvent event ) {
+        switch ( event.getType() ) {
+            case ServiceEvent.REGISTERED:
+                add( event.getServiceReference() );
+                break;
+
+            case ServiceEvent.MODIFIED:
+                Object service;
+                synchronized ( this ) {
+                    service = this.tracked.get( event.getServiceReference() );
+                    if ( service != null ) {
+                        // The ranking might have changed.
+                        updateBest();
+                    }
+                }
+                if ( service != null ) {
+                    call( this.modified, event.getServiceReference(), service );
+                }
+                else {
+                    add( event.getServiceReference() );
+                }
+                break;
+
+            case ServiceEvent.MODIFIED_ENDMATCH:
+            case ServiceEvent.UNREGISTERING:
+                remove( event.getServiceReference() );
+                break;
+        }
+    }
+
+    /**
+     * Starts tracking a service if not already tracked and still registered.
+     *
+     * @param reference The reference of the service to track.
+     */
+    private void add( ServiceReference reference ) {
+        synchronized ( this ) {
+            if ( !this.open || this.tracked.containsKey( reference ) ) {
+                return;
+            }
+        }
+
+        Object service = this.bundleContext.getService( reference );
+        if ( service == null ) {
+            return;
+        }
+
+        boolean tracking;
+        synchronized ( this ) {
+            // Checked again while holding the lock, since the UNREGISTERING event of the service is delivered after
+            // it is no longer registered, and removes it while holding the lock.
+            tracking = this.open && !this.tracked.containsKey( reference ) && isRegistered( reference );
+            if ( tracking ) {
+                this.tracked.put( reference, service );
+                updateBest();
+            }
+        }
+
+        if ( tracking ) {
+            call( this.added, reference, service );
+        }
+        else {
+            this.bundleContext.ungetService( reference );
+        }
+    }
+
+    /**
+     * Stops tracking a service.
+     *
+     * @param reference The reference of the service to stop tracking.
+     */
+    private void remove( ServiceReference reference ) {
+        Object service;
+        synchronized ( this ) {
+            service = this.tracked.remove( reference );
+            if ( service != null ) {
+                updateBest();
+            }
+        }
+
+        if ( service != null ) {
+            this.bundleContext.ungetService( reference );
+            call( this.removed, reference, service );
+        }
+    }
+
+    /**
+     * Updates the best ranked tracked service and wakes up waiters. Must be called while holding the lock.
+     */
+    private void updateBest() {
+        Map.Entry<ServiceReference, Object> bestEntry = null;
+        for ( Map.Entry<ServiceReference, Object> entry : this.tracked.entrySet() ) {
+            if ( bestEntry == null || entry.getKey().compareTo( bestEntry.getKey() ) > 0 ) {
+                bestEntry = entry;
+            }
+        }
+
+        Tracked current = this.best;
+        if ( bestEntry == null ) {
+            this.best = null;
+        }
+        else if ( current == null || current.reference != bestEntry.getKey() ) {
+            this.best = new Tracked( bestEntry.getKey(), bestEntry.getValue() );
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns true if the service of a reference is registered.
+     *
+     * @param reference The reference to check.
+     */
+    private boolean isRegistered( ServiceReference reference ) {
+        return reference instanceof OTRServiceReference &&
+                ( (OTRBundle) this.bundleContext.getBundle() ).getServiceRegistry()
+                        .isRegistered( ( (OTRServiceReference) reference ).getRegistration() );
+    }
+
+    /**
+     * Calls a callback if set, reporting failures of it.
+     *
+     * @param callback The callback to call.
+     * @param reference The reference to pass.
+     * @param service The service to pass.
+     */
+    private static void call( BiConsumer<ServiceReference, Object> callback, ServiceReference reference, Object service ) {
+        if ( callback != null ) {
+            try {
+                callback.accept( reference, service );
+            }
+            catch ( RuntimeException re ) {
+                System.err.println( "Service tracker callback failed!" );
+                re.printStackTrace( System.err );
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.osgi.framework.Bundle;
+import se.natusoft.osgi.aps.runtime.internal.ListenerWatchdog;
+
+/**
+ * A service or bundle listener callback that took longer than the threshold of the slow listener
+ * watchdog, as returned by OTROSGiServiceTestTools.getSlowListeners().
+ */
+@SuppressWarnings( "unused" )
+public class OTRSlowListener {
+
+    //
+    // Private Members
+    //
+
+    private ListenerWatchdog.SlowListener slowListener;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new OTRSlowListener.
+     *
+     * @param slowListener The reported slow callback to view.
+     */
+    OTRSlowListener( ListenerWatchdog.SlowListener slowListener ) {
+        this.slowListener = slowListener;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the class of the slow listener.
+     */
+    public Class<?> getListenerClass() {
+        return this.slowListener.getListenerClass();
+    }
+
+    /**
+     * Returns the bundle that added the listener. Can be null.
+     */
+    public Bundle getBundle() {
+        return this.slowListener.getBundle();
+    }
+
+    /**
+     * Returns a description of the event the listener was handling.
+     */
+    public String getEvent() {
+        return this.slowListener.getEvent();
+    }
+
+    /**
+     * Returns the time the callback took in nanoseconds.
+     */
+    public long getNanos() {
+        return this.slowListener.getNanos();
+    }
+
+    /**
+     * Returns the stack of the listener thread while the callback was slow. If the callback finished before the
+     * stack could be captured, this is the stack where the listener was called from.
+     */
+    public StackTraceElement[] getStack() {
+        return this.slowListener.getStack().clone();
+    }
+
+    @Override
+    public String toString() {
+        return this.slowListener.toString();
+    }
+}
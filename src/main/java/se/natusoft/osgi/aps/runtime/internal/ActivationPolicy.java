@@ -0,0 +1,179 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.Constants;
+
+import java.util.*;
+
+/**
+ * The lazy activation policy of a bundle, as declared by its 'Bundle-ActivationPolicy' manifest header.
+ *
+ * A lazy bundle is activated when a class of one of its packages is loaded through the bundle, or
+ * when a service is requested whose service API class is in one of its exported packages. The
+ * 'include' and 'exclude' directives of the header limit the packages that trigger activation.
+ *
+ * For internal use.
+ */
+public class ActivationPolicy {
+
+    //
+    // Private Members
+    //
+
+    /** The packages triggering activation, or null for all. */
+    private Set<String> include;
+
+    /** The packages not triggering activation. */
+    private Set<String> exclude;
+
+    /** The packages exported by the bundle. */
+    private Set<String> exports;
+
+    //
+    // Constructors
+    //
+
+    private ActivationPolicy( Set<String> include, Set<String> exclude, Set<String> exports ) {
+        this.include = include;
+        this.exclude = exclude;
+        this.exports = exports;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the lazy activation policy of a bundle or null if the bundle is not lazy.
+     *
+     * @param headers The manifest headers of the bundle.
+     */
+    public static ActivationPolicy of( Dictionary headers ) {
+        Object policy = headers.get( Constants.BUNDLE_ACTIVATIONPOLICY );
+        if ( policy == null ) {
+            return null;
+        }
+
+        List<String> parts = split( policy.toString(), ';' );
+        if ( parts.isEmpty() || !parts.get( 0 ).equals( Constants.ACTIVATION_LAZY ) ) {
+            return null;
+        }
+
+        Set<String> include = null;
+        Set<String> exclude = Collections.emptySet();
+        for ( String directive : parts.subList( 1, parts.size() ) ) {
+            int eq = directive.indexOf( ":=" );
+            if ( eq > 0 ) {
+                String name = directive.substring( 0, eq ).trim();
+                Set<String> packages = new HashSet<>( split( unquote( directive.substring( eq + 2 ).trim() ), ',' ) );
+                if ( name.equals( Constants.INCLUDE_DIRECTIVE ) ) {
+                    include = packages;
+                }
+                else if ( name.equals( Constants.EXCLUDE_DIRECTIVE ) ) {
+                    exclude = packages;
+                }
+            }
+        }
+
+        Set<String> exports = new HashSet<>();
+        Object exportPackage = headers.get( Constants.EXPORT_PACKAGE );
+        if ( exportPackage != null ) {
+            for ( String clause : split( exportPackage.toString(), ',' ) ) {
+                for ( String part : split( clause, ';' ) ) {
+                    // Packages come before any attributes and directives of a clause.
+                    if ( part.contains( "=" ) ) {
+                        break;
+                    }
+                    exports.add( part );
+                }
+            }
+        }
+
+        return new ActivationPolicy( include, exclude, exports );
+    }
+
+    /**
+     * Returns true if loading a class through the bundle triggers its activation.
+     *
+     * @param className The name of the loaded class.
+     */
+    public boolean triggersOnClass( String className ) {
+        String pkg = packageOf( className );
+        return ( this.include == null || this.include.contains( pkg ) ) && !this.exclude.contains( pkg );
+    }
+
+    /**
+     * Returns true if requesting a service triggers activation of the bundle.
+     *
+     * @param className The name of the service API class of the requested service.
+     */
+    public boolean triggersOnService( String className ) {
+        return this.exports.contains( packageOf( className ) ) && triggersOnClass( className );
+    }
+
+    /**
+     * Returns the package of a class name.
+     *
+     * @param className The class name to get package of.
+     */
+    private static String packageOf( String className ) {
+        int dot = className.lastIndexOf( '.' );
+        return dot > 0 ? className.substring( 0, dot ) : "";
+    }
+
+    /**
+     * Removes surrounding quotes from a value.
+     *
+     * @param value The value to unquote.
+     */
+    private static String unquote( String value ) {
+        return value.length() >= 2 && value.startsWith( "\"" ) && value.endsWith( "\"" ) ?
+                value.substring( 1, value.length() - 1 ) : value;
+    }
+
+    /**
+     * Splits a manifest header value on a separator outside of quotes, trimming the parts and skipping empty ones.
+     *
+     * @param value The value to split.
+     * @param separator The separator to split on.
+     */
+    private static List<String> split( String value, char separator ) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        boolean quoted = false;
+        for ( char c : value.toCharArray() ) {
+            if ( c == '"' ) {
+                quoted = !quoted;
+            }
+            if ( c == separator && !quoted ) {
+                if ( part.toString().trim().length() > 0 ) {
+                    parts.add( part.toString().trim() );
+                }
+                part.setLength( 0 );
+            }
+            else {
+                part.append( c );
+            }
+        }
+        if ( part.toString().trim().length() > 0 ) {
+            parts.add( part.toString().trim() );
+        }
+        return parts;
+    }
+}
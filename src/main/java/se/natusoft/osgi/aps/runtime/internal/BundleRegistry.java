@@ -0,0 +1,556 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.Version;
+import se.natusoft.osgi.aps.runtime.OTRBundle;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Holds the installed bundles of one framework instance.
+ *
+ * Each OTROSGiServiceTestTools instance has its own, so several frameworks can run side by side in one
+ * JVM without seeing each others bundles. The bundles are held in a copy on write list, so reading
+ * them needs no locking and sending events to them while bundles are installed from other threads is
+ * safe.
+ *
+ * The bundles are also indexed by id, in a primitive long map, and by symbolic name, so that looking
+ * up a bundle does not search all bundles. Since the version of a bundle can be changed after it has
+ * been installed, the bundles having a symbolic name are checked for version when looked up.
+ *
+ * The bundle listeners of all bundles are also held here, in one copy on write list, so that a bundle
+ * event is delivered in one pass over the listeners that actually exist. As in OSGi, a
+ * SynchronousBundleListener is called on the thread causing the event, while other bundle listeners
+ * are called in event order by a background dispatcher thread, and do not get the STARTING, STOPPING
+ * and LAZY_ACTIVATION events.
+ *
+ * The bundles waiting for lazy activation are kept in their own list, so that a service request only
+ * checks those bundles, and costs nothing extra when there are none.
+ *
+ * Errors that can not be thrown to a caller, like an activator failing on lazy activation, are sent as
+ * FrameworkEvent.ERROR to the framework listeners, kept for getFrameworkErrors(), and fail the test
+ * results of the watchdog if it was given any.
+ *
+ * For internal use.
+ */
+public class BundleRegistry {
+
+    /**
+     * A bundle listener and the bundle that added it.
+     */
+    private static class ListenerEntry {
+        private Bundle bundle;
+        private BundleListener listener;
+        /** Set when removed, so that events already queued to the listener are not delivered. */
+        private volatile boolean removed = false;
+
+        ListenerEntry( Bundle bundle, BundleListener listener ) {
+            this.bundle = bundle;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * A framework listener and the bundle that added it.
+     */
+    private static class FrameworkListenerEntry {
+        private Bundle bundle;
+        private FrameworkListener listener;
+
+        FrameworkListenerEntry( Bundle bundle, FrameworkListener listener ) {
+            this.bundle = bundle;
+            this.listener = listener;
+        }
+    }
+
+    //
+    // Constants
+    //
+
+    /** The max time close() waits for bundle events to be delivered. */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    //
+    // Private Members
+    //
+
+    /** Generates bundle ids. */
+    private AtomicLong bundleIdGen = new AtomicLong( 0 );
+
+    /** The installed bundles in installation order. */
+    private List<OTRBundle> bundles = new CopyOnWriteArrayList<>();
+
+    /** The installed bundles by id. */
+    private LongKeyMap<OTRBundle> bundlesById = new LongKeyMap<>();
+
+    /** The installed bundles by symbolic name, in installation order. The arrays are never modified. */
+    private Map<String, OTRBundle[]> bundlesByName = new ConcurrentHashMap<>();
+
+    /** The bundle listeners of all bundles, in the order they were added. */
+    private List<ListenerEntry> bundleListeners = new CopyOnWriteArrayList<>();
+
+    /** The framework listeners of all bundles, in the order they were added. */
+    private List<FrameworkListenerEntry> frameworkListeners = new CopyOnWriteArrayList<>();
+
+    /** The errors reported by frameworkError(...). */
+    private List<FrameworkEvent> frameworkErrors = new CopyOnWriteArrayList<>();
+
+    /** The bundles started with a lazy activation policy and not yet activated. */
+    private List<OTRBundle> lazyBundles = new CopyOnWriteArrayList<>();
+
+    /** Times the bundle listener callbacks. */
+    private ListenerWatchdog watchdog;
+
+    /** Calls the listeners that are not SynchronousBundleListeners. Created when first needed. */
+    private ExecutorService dispatcher;
+
+    /** The number of events queued to the dispatcher but not yet delivered. */
+    private AtomicInteger asyncInFlight = new AtomicInteger( 0 );
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new BundleRegistry.
+     *
+     * @param watchdog The watchdog to time bundle listener callbacks with.
+     */
+    public BundleRegistry( ListenerWatchdog watchdog ) {
+        this.watchdog = watchdog;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the next bundle id.
+     */
+    public long nextBundleId() {
+        return this.bundleIdGen.incrementAndGet();
+    }
+
+    /**
+     * Adds an installed bundle.
+     *
+     * @param bundle The bundle to add.
+     */
+    public synchronized void addBundle( OTRBundle bundle ) {
+        this.bundles.add( bundle );
+        this.bundlesById.put( bundle.getBundleId(), bundle );
+
+        OTRBundle[] named = this.bundlesByName.get( bundle.getSymbolicName() );
+        if ( named == null ) {
+            named = new OTRBundle[]{ bundle };
+        }
+        else {
+            named = Arrays.copyOf( named, named.length + 1 );
+            named[ named.length - 1 ] = bundle;
+        }
+        this.bundlesByName.put( bundle.getSymbolicName(), named );
+    }
+
+    /**
+     * Removes an uninstalled bundle.
+     *
+     * @param bundle The bundle to remove.
+     *
+     * @return true if the bundle was installed.
+     */
+    public synchronized boolean removeBundle( OTRBundle bundle ) {
+        if ( !this.bundles.remove( bundle ) ) {
+            return false;
+        }
+        this.bundlesById.remove( bundle.getBundleId() );
+        removeListeners( bundle );
+
+        OTRBundle[] named = this.bundlesByName.get( bundle.getSymbolicName() );
+        List<OTRBundle> remaining = new ArrayList<>( Arrays.asList( named ) );
+        remaining.remove( bundle );
+        if ( remaining.isEmpty() ) {
+            this.bundlesByName.remove( bundle.getSymbolicName() );
+        }
+        else {
+            this.bundlesByName.put( bundle.getSymbolicName(), remaining.toArray( new OTRBundle[ remaining.size() ] ) );
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns an installed bundle by id, or null if there is none.
+     *
+     * @param id The id of the bundle to get.
+     */
+    public OTRBundle getBundle( long id ) {
+        return this.bundlesById.get( id );
+    }
+
+    /**
+     * Returns the installed bundle having a symbolic name and the highest version, or null if there is none.
+     * Of several bundles having the same version, the last installed is returned.
+     *
+     * @param symbolicName The symbolic name of the bundle to get.
+     */
+    public OTRBundle getBundle( String symbolicName ) {
+        OTRBundle[] named = this.bundlesByName.get( symbolicName );
+        if ( named == null ) {
+            return null;
+        }
+
+        OTRBundle best = null;
+        for ( OTRBundle bundle : named ) {
+            if ( best == null || bundle.getVersion().compareTo( best.getVersion() ) >= 0 ) {
+                best = bundle;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the installed bundle having a symbolic name and version, or null if there is none.
+     *
+     * @param symbolicName The symbolic name of the bundle to get.
+     * @param version The version of the bundle to get.
+     */
+    public OTRBundle getBundle( String symbolicName, Version version ) {
+        OTRBundle[] named = this.bundlesByName.get( symbolicName );
+        if ( named == null ) {
+            return null;
+        }
+
+        for ( int i = named.length - 1; i >= 0; i-- ) {
+            if ( named[ i ].getVersion().equals( version ) ) {
+                return named[ i ];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns all installed bundles having a symbolic name, in installation order.
+     *
+     * @param symbolicName The symbolic name of the bundles to get.
+     */
+    public List<OTRBundle> getBundles( String symbolicName ) {
+        OTRBundle[] named = this.bundlesByName.get( symbolicName );
+        return named != null ? Collections.unmodifiableList( Arrays.asList( named ) ) : Collections.emptyList();
+    }
+
+    /**
+     * Adds a bundle listener. Adding a listener already added by the bundle does nothing.
+     *
+     * @param bundle The bundle adding the listener.
+     * @param listener The listener to add.
+     */
+    public synchronized void addBundleListener( Bundle bundle, BundleListener listener ) {
+        for ( ListenerEntry entry : this.bundleListeners ) {
+            if ( entry.bundle == bundle && entry.listener == listener ) {
+                return;
+            }
+        }
+        this.bundleListeners.add( new ListenerEntry( bundle, listener ) );
+    }
+
+    /**
+     * Removes a bundle listener.
+     *
+     * @param bundle The bundle that added the listener.
+     * @param listener The listener to remove.
+     */
+    public synchronized void removeBundleListener( Bundle bundle, BundleListener listener ) {
+        removeBundleListeners( entry -> entry.bundle == bundle && entry.listener == listener );
+    }
+
+    /**
+     * Removes the bundle and framework listeners added by a bundle.
+     *
+     * @param bundle The bundle whose listeners to remove.
+     */
+    public synchronized void removeListeners( Bundle bundle ) {
+        removeBundleListeners( entry -> entry.bundle == bundle );
+        this.frameworkListeners.removeIf( entry -> entry.bundle == bundle );
+    }
+
+    /**
+     * Adds a framework listener. Adding a listener already added by the bundle does nothing.
+     *
+     * @param bundle The bundle adding the listener.
+     * @param listener The listener to add.
+     */
+    public synchronized void addFrameworkListener( Bundle bundle, FrameworkListener listener ) {
+        for ( FrameworkListenerEntry entry : this.frameworkListeners ) {
+            if ( entry.bundle == bundle && entry.listener == listener ) {
+                return;
+            }
+        }
+        this.frameworkListeners.add( new FrameworkListenerEntry( bundle, listener ) );
+    }
+
+    /**
+     * Removes a framework listener.
+     *
+     * @param bundle The bundle that added the listener.
+     * @param listener The listener to remove.
+     */
+    public synchronized void removeFrameworkListener( Bundle bundle, FrameworkListener listener ) {
+        this.frameworkListeners.removeIf( entry -> entry.bundle == bundle && entry.listener == listener );
+    }
+
+    /**
+     * Reports an error that can not be thrown to a caller. The error is printed, sent as a FrameworkEvent.ERROR to
+     * the framework listeners, kept for getFrameworkErrors() and fails the test results of the watchdog if any.
+     *
+     * @param bundle The bundle the error is about.
+     * @param message A description of the error.
+     * @param throwable The error.
+     */
+    public void frameworkError( Bundle bundle, String message, Throwable throwable ) {
+        System.err.println( message );
+        throwable.printStackTrace( System.err );
+
+        FrameworkEvent event = new FrameworkEvent( FrameworkEvent.ERROR, bundle, throwable );
+        this.frameworkErrors.add( event );
+        this.watchdog.fail( message + " " + throwable );
+
+        for ( FrameworkListenerEntry entry : this.frameworkListeners ) {
+            try {
+                entry.listener.frameworkEvent( event );
+            }
+            catch ( RuntimeException re ) {
+                System.err.println( "FrameworkListener '" + entry.listener + "' failed to handle event!" );
+                re.printStackTrace( System.err );
+            }
+        }
+    }
+
+    /**
+     * Returns the errors reported so far.
+     */
+    public List<FrameworkEvent> getFrameworkErrors() {
+        return Collections.unmodifiableList( new ArrayList<>( this.frameworkErrors ) );
+    }
+
+    /**
+     * Removes the bundle listeners matching a condition. Must be called while holding the lock.
+     *
+     * @param condition The condition of the listeners to remove.
+     */
+    private void removeBundleListeners( Predicate<ListenerEntry> condition ) {
+        for ( ListenerEntry entry : this.bundleListeners ) {
+            if ( condition.test( entry ) ) {
+                entry.removed = true;
+            }
+        }
+        this.bundleListeners.removeIf( condition );
+    }
+
+    /**
+     * Sends a bundle event to all bundle listeners. SynchronousBundleListeners are called before this returns,
+     * and other listeners are called later by the dispatcher thread.
+     *
+     * @param bundle The bundle the event is about.
+     * @param type The type of the event.
+     */
+    public void bundleEvent( Bundle bundle, int type ) {
+        BundleEvent bundleEvent = new BundleEvent( type, bundle );
+        boolean asyncEvent = type != BundleEvent.STARTING && type != BundleEvent.STOPPING &&
+                type != BundleEvent.LAZY_ACTIVATION;
+
+        List<ListenerEntry> asyncListeners = null;
+        for ( ListenerEntry entry : this.bundleListeners ) {
+            if ( entry.listener instanceof SynchronousBundleListener ) {
+                invokeListener( entry, bundleEvent );
+            }
+            else if ( asyncEvent ) {
+                if ( asyncListeners == null ) {
+                    asyncListeners = new ArrayList<>();
+                }
+                asyncListeners.add( entry );
+            }
+        }
+
+        if ( asyncListeners != null ) {
+            List<ListenerEntry> listeners = asyncListeners;
+            this.asyncInFlight.incrementAndGet();
+            try {
+                getDispatcher().execute( () -> {
+                    try {
+                        for ( ListenerEntry entry : listeners ) {
+                            if ( !entry.removed ) {
+                                invokeListener( entry, bundleEvent );
+                            }
+                        }
+                    }
+                    finally {
+                        asyncDelivered();
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException ree ) {
+                asyncDelivered();
+                throw ree;
+            }
+        }
+    }
+
+    /**
+     * Calls a bundle listener with an event.
+     *
+     * @param entry The entry of the listener to call.
+     * @param bundleEvent The event to pass to the listener.
+     */
+    private void invokeListener( ListenerEntry entry, BundleEvent bundleEvent ) {
+        ListenerWatchdog.Watch watch = this.watchdog.start( entry.listener, entry.bundle, bundleEvent );
+        try {
+            entry.listener.bundleChanged( bundleEvent );
+        }
+        catch ( RuntimeException re ) {
+            System.err.println( "BundleListener '" + entry.listener + "' failed to handle event!" );
+            re.printStackTrace( System.err );
+        }
+        finally {
+            this.watchdog.end( watch );
+        }
+    }
+
+    /**
+     * Returns the dispatcher of events to listeners that are not SynchronousBundleListeners, creating it if needed.
+     * A single thread keeps the events in order.
+     */
+    private synchronized ExecutorService getDispatcher() {
+        if ( this.dispatcher == null ) {
+            this.dispatcher = Executors.newSingleThreadExecutor( runnable -> {
+                Thread thread = new Thread( runnable, "OTR-BundleEvent-Dispatcher" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+        }
+        return this.dispatcher;
+    }
+
+    /**
+     * Called when an event has been delivered by the dispatcher.
+     */
+    private void asyncDelivered() {
+        if ( this.asyncInFlight.decrementAndGet() == 0 ) {
+            synchronized ( this.asyncInFlight ) {
+                this.asyncInFlight.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for all bundle events sent so far to be delivered to the listeners that are not
+     * SynchronousBundleListeners.
+     *
+     * @param timeout The max time to wait.
+     * @param unit The unit of the timeout.
+     *
+     * @return true if all events were delivered, false on timeout.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    public boolean awaitBundleEvents( long timeout, TimeUnit unit ) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
+        synchronized ( this.asyncInFlight ) {
+            while ( this.asyncInFlight.get() > 0 ) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+                if ( remaining <= 0 ) {
+                    return false;
+                }
+                this.asyncInFlight.wait( remaining );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Shuts down the dispatcher thread after waiting for the bundle events sent so far to be delivered. Events sent
+     * after this start a new dispatcher that needs another close().
+     */
+    public void close() {
+        try {
+            if ( !awaitBundleEvents( CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ) {
+                System.err.println( "Bundle events still not delivered on close!" );
+            }
+        }
+        catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized ( this ) {
+            if ( this.dispatcher != null ) {
+                this.dispatcher.shutdownNow();
+                this.dispatcher = null;
+            }
+        }
+    }
+
+    /**
+     * Adds a bundle waiting for lazy activation.
+     *
+     * @param bundle The bundle to add.
+     */
+    public void addLazyBundle( OTRBundle bundle ) {
+        this.lazyBundles.add( bundle );
+    }
+
+    /**
+     * Removes a bundle that is no longer waiting for lazy activation.
+     *
+     * @param bundle The bundle to remove.
+     */
+    public void removeLazyBundle( OTRBundle bundle ) {
+        this.lazyBundles.remove( bundle );
+    }
+
+    /**
+     * Activates the bundles waiting for lazy activation that are triggered by a request for a service.
+     *
+     * @param className The service API class name of the requested service.
+     */
+    public void activateLazyBundles( String className ) {
+        if ( this.lazyBundles.isEmpty() ) {
+            return;
+        }
+        for ( OTRBundle bundle : this.lazyBundles ) {
+            bundle.activateLazily( className, true );
+        }
+    }
+
+    /**
+     * Returns the installed bundles. The returned list is unmodifiable and does not change when bundles are
+     * installed or uninstalled later.
+     */
+    public List<OTRBundle> getBundles() {
+        return Collections.unmodifiableList( new ArrayList<>( this.bundles ) );
+    }
+}
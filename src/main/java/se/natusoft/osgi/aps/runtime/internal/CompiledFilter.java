@@ -0,0 +1,560 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+import se.natusoft.osgi.aps.runtime.OTRServiceReference;
+
+import java.lang.reflect.Constructor;
+import java.util.*;
+
+/**
+ * A Filter compiled from a FilterExpression into a tree of predicates.
+ *
+ * The values of the filter are converted to the types a property value can be compared as when the
+ * filter is compiled, rather than on every match, and '&amp;' and '|' stop evaluating as soon as the
+ * result is known. Matching gives the same result as a filter from FrameworkUtil.createFilter(...)
+ * with one exception: where that filter throws an exception because a value can not be converted to
+ * the type of the property, like '(port=abc)' against an Integer, this filter does not match.
+ *
+ * toString() returns the filter string the filter was created from. Filters with the same canonical form
+ * share their compiled tree, and two CompiledFilters are equal if their canonical forms are equal. Other
+ * Filters are compared by their strings, as they compare themselves to this.
+ */
+class CompiledFilter implements Filter {
+
+    /**
+     * Provides the values of properties to match.
+     */
+    interface PropertySource {
+        Object get( String attr );
+    }
+
+    /**
+     * A compiled filter expression.
+     */
+    private static abstract class Node {
+        abstract boolean match( PropertySource properties );
+    }
+
+    private static class And extends Node {
+        private Node[] operands;
+
+        And( Node[] operands ) {
+            this.operands = operands;
+        }
+
+        @Override
+        boolean match( PropertySource properties ) {
+            for ( Node operand : this.operands ) {
+                if ( !operand.match( properties ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Or extends Node {
+        private Node[] operands;
+
+        Or( Node[] operands ) {
+            this.operands = operands;
+        }
+
+        @Override
+        boolean match( PropertySource properties ) {
+            for ( Node operand : this.operands ) {
+                if ( operand.match( properties ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Not extends Node {
+        private Node operand;
+
+        Not( Node operand ) {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean match( PropertySource properties ) {
+            return !this.operand.match( properties );
+        }
+    }
+
+    private static class Present extends Node {
+        private String attr;
+
+        Present( String attr ) {
+            this.attr = attr;
+        }
+
+        @Override
+        boolean match( PropertySource properties ) {
+            return properties.get( this.attr ) != null;
+        }
+    }
+
+    /**
+     * Compares a property against a value, holding the value converted to all types it can be compared as.
+     */
+    private static class Compare extends Node {
+        private int op;
+        private String attr;
+        private String value;
+        private String[] substrings;
+        private String approxValue;
+
+        private Integer intValue;
+        private Long longValue;
+        private Byte byteValue;
+        private Short shortValue;
+        private Character charValue;
+        private Float floatValue;
+        private Double doubleValue;
+        private boolean booleanValue;
+
+        /** The last class a value was converted to by its String constructor, and the result. */
+        private volatile Object[] lastConversion = new Object[]{ null, null };
+
+        Compare( FilterExpression expression ) {
+            this.op = expression.getOp();
+            this.attr = expression.getAttr();
+
+            if ( this.op == FilterExpression.SUBSTRING ) {
+                this.substrings = expression.getSubstrings();
+                return;
+            }
+
+            this.value = expression.getValue();
+            this.approxValue = approxString( this.value );
+
+            String trimmed = this.value.trim();
+            try { this.intValue = Integer.parseInt( trimmed ); } catch ( NumberFormatException ignore ) {}
+            try { this.longValue = Long.parseLong( trimmed ); } catch ( NumberFormatException ignore ) {}
+            try { this.byteValue = Byte.parseByte( trimmed ); } catch ( NumberFormatException ignore ) {}
+            try { this.shortValue = Short.parseShort( trimmed ); } catch ( NumberFormatException ignore ) {}
+            try { this.floatValue = Float.parseFloat( trimmed ); } catch ( NumberFormatException ignore ) {}
+            try { this.doubleValue = Double.parseDouble( trimmed ); } catch ( NumberFormatException ignore ) {}
+            this.charValue = trimmed.isEmpty() ? null : trimmed.charAt( 0 );
+            this.booleanValue = Boolean.valueOf( trimmed );
+        }
+
+        @Override
+        boolean match( PropertySource properties ) {
+            return compare( properties.get( this.attr ) );
+        }
+
+        private boolean compare( Object value ) {
+            if ( value == null ) {
+                return false;
+            }
+            if ( value instanceof String ) {
+                return compareString( (String) value );
+            }
+            if ( value instanceof Object[] ) {
+                for ( Object element : (Object[]) value ) {
+                    if ( compare( element ) ) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if ( value.getClass().isArray() ) {
+                return comparePrimitiveArray( value );
+            }
+            if ( value instanceof Collection ) {
+                for ( Object element : (Collection) value ) {
+                    if ( compare( element ) ) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if ( this.op == FilterExpression.SUBSTRING ) {
+                return false;
+            }
+            if ( value instanceof Integer ) {
+                return this.intValue != null && compareOrdered( Integer.compare( (Integer) value, this.intValue ) );
+            }
+            if ( value instanceof Long ) {
+                return this.longValue != null && compareOrdered( Long.compare( (Long) value, this.longValue ) );
+            }
+            if ( value instanceof Byte ) {
+                return this.byteValue != null && compareOrdered( Byte.compare( (Byte) value, this.byteValue ) );
+            }
+            if ( value instanceof Short ) {
+                return this.shortValue != null && compareOrdered( Short.compare( (Short) value, this.shortValue ) );
+            }
+            if ( value instanceof Character ) {
+                return compareChar( (Character) value );
+            }
+            if ( value instanceof Float ) {
+                return this.floatValue != null && compareOrdered( Float.compare( (Float) value, this.floatValue ) );
+            }
+            if ( value instanceof Double ) {
+                return this.doubleValue != null && compareOrdered( Double.compare( (Double) value, this.doubleValue ) );
+            }
+            if ( value instanceof Boolean ) {
+                return (Boolean) value == this.booleanValue;
+            }
+
+            return compareConverted( value );
+        }
+
+        /**
+         * Returns the result of comparing numbers given the result of compare(property, value).
+         */
+        private boolean compareOrdered( int comparison ) {
+            switch ( this.op ) {
+                case FilterExpression.APPROX:
+                case FilterExpression.EQUAL:
+                    return comparison == 0;
+                case FilterExpression.GREATER:
+                    return comparison >= 0;
+                case FilterExpression.LESS:
+                    return comparison <= 0;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean compareString( String string ) {
+            switch ( this.op ) {
+                case FilterExpression.SUBSTRING:
+                    return compareSubstrings( string );
+                case FilterExpression.EQUAL:
+                    return string.equals( this.value );
+                case FilterExpression.APPROX:
+                    return approxString( string ).equalsIgnoreCase( this.approxValue );
+                case FilterExpression.GREATER:
+                    return string.compareTo( this.value ) >= 0;
+                case FilterExpression.LESS:
+                    return string.compareTo( this.value ) <= 0;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean compareSubstrings( String string ) {
+            String[] substrings = this.substrings;
+            int pos = 0;
+            for ( int i = 0, size = substrings.length; i < size; i++ ) {
+                String substr = substrings[ i ];
+
+                if ( i + 1 < size ) {
+                    if ( substr == null ) {
+                        String substr2 = substrings[ i + 1 ];
+                        if ( substr2 == null ) {
+                            continue;
+                        }
+                        int index = string.indexOf( substr2, pos );
+                        if ( index == -1 ) {
+                            return false;
+                        }
+                        pos = index + substr2.length();
+                        if ( i + 2 < size ) {
+                            i++;
+                        }
+                    }
+                    else {
+                        int len = substr.length();
+                        if ( !string.regionMatches( pos, substr, 0, len ) ) {
+                            return false;
+                        }
+                        pos += len;
+                    }
+                }
+                else {
+                    return substr == null || string.endsWith( substr );
+                }
+            }
+            return true;
+        }
+
+        private boolean compareChar( char c ) {
+            if ( this.charValue == null ) {
+                return false;
+            }
+            char c2 = this.charValue;
+            switch ( this.op ) {
+                case FilterExpression.EQUAL:
+                    return c == c2;
+                case FilterExpression.APPROX:
+                    return c == c2 || Character.toUpperCase( c ) == Character.toUpperCase( c2 ) ||
+                            Character.toLowerCase( c ) == Character.toLowerCase( c2 );
+                case FilterExpression.GREATER:
+                    return c >= c2;
+                case FilterExpression.LESS:
+                    return c <= c2;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean comparePrimitiveArray( Object array ) {
+            if ( array instanceof int[] ) {
+                for ( int element : (int[]) array ) {
+                    if ( compare( element ) ) return true;
+                }
+            }
+            else if ( array instanceof long[] ) {
+                for ( long element : (long[]) array ) {
+                    if ( compare( element ) ) return true;
+                }
+            }
+            else if ( array instanceof byte[] ) {
+                for ( byte element : (byte[]) array ) {
+                    if ( compare( element ) ) return true;
+                }
+            }
+            else if ( array instanceof short[] ) {
+                for ( short element : (short[]) array ) {
+                    if ( compare( element ) ) return true;
+                }
+            }
+            else if ( array instanceof char[] ) {
+                for ( char element : (char[]) array ) {
+                    if ( compare( element ) ) return true;
+                }
+            }
+            else if ( array instanceof float[] ) {
+                for ( float element : (float[]) array ) {
+                    if ( compare( element ) ) return true;
+                }
+            }
+            else if ( array instanceof double[] ) {
+                for ( double element : (double[]) array ) {
+                    if ( compare( element ) ) return true;
+                }
+            }
+            else if ( array instanceof boolean[] ) {
+                for ( boolean element : (boolean[]) array ) {
+                    if ( compare( element ) ) return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Compares a value of another type by converting the filter value using a public String constructor
+         * of the type. Comparable types are compared by compareTo(), others by equals().
+         */
+        @SuppressWarnings("unchecked")
+        private boolean compareConverted( Object value ) {
+            Object converted = convert( value.getClass() );
+            if ( converted == null ) {
+                return false;
+            }
+            if ( value instanceof Comparable ) {
+                return compareOrdered( ( (Comparable) value ).compareTo( converted ) );
+            }
+            return value.equals( converted );
+        }
+
+        private Object convert( Class<?> type ) {
+            Object[] lastConversion = this.lastConversion;
+            if ( lastConversion[ 0 ] == type ) {
+                return lastConversion[ 1 ];
+            }
+
+            Object converted = null;
+            try {
+                Constructor<?> constructor = type.getConstructor( String.class );
+                constructor.setAccessible( true );
+                converted = constructor.newInstance( this.value.trim() );
+            }
+            catch ( Exception | LinkageError ignore ) {
+                // Not comparable with the filter value.
+            }
+            this.lastConversion = new Object[]{ type, converted };
+
+            return converted;
+        }
+    }
+
+    //
+    // Private Members
+    //
+
+    /** The filter string this filter was created from. */
+    private String filter;
+
+    /** The expression this filter was compiled from. */
+    private FilterExpression expression;
+
+    /** The compiled expression. */
+    private Node root;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Compiles a filter expression.
+     *
+     * @param filter The filter string the expression was parsed from.
+     * @param expression The expression to compile.
+     */
+    CompiledFilter( String filter, FilterExpression expression ) {
+        this.filter = filter;
+        this.expression = expression;
+        this.root = compile( expression );
+    }
+
+    /**
+     * Creates a filter for another filter string sharing the compiled expression of an equal filter.
+     *
+     * @param filter The filter string.
+     * @param compiled A filter having the same canonical form.
+     */
+    CompiledFilter( String filter, CompiledFilter compiled ) {
+        this.filter = filter;
+        this.expression = compiled.expression;
+        this.root = compiled.root;
+    }
+
+    //
+    // Methods
+    //
+
+    private static Node compile( FilterExpression expression ) {
+        switch ( expression.getOp() ) {
+            case FilterExpression.AND:
+            case FilterExpression.OR:
+                FilterExpression[] operands = expression.getOperands();
+                Node[] nodes = new Node[ operands.length ];
+                for ( int i = 0; i < nodes.length; i++ ) {
+                    nodes[ i ] = compile( operands[ i ] );
+                }
+                return expression.getOp() == FilterExpression.AND ? new And( nodes ) : new Or( nodes );
+
+            case FilterExpression.NOT:
+                return new Not( compile( expression.getOperands()[ 0 ] ) );
+
+            case FilterExpression.PRESENT:
+                return new Present( expression.getAttr() );
+
+            default:
+                return new Compare( expression );
+        }
+    }
+
+    /**
+     * Removes the whitespace of a String for approximate comparison.
+     *
+     * @param input The String to remove whitespace from.
+     */
+    private static String approxString( String input ) {
+        StringBuilder sb = null;
+        for ( int i = 0; i < input.length(); i++ ) {
+            char c = input.charAt( i );
+            if ( Character.isWhitespace( c ) ) {
+                if ( sb == null ) {
+                    sb = new StringBuilder( input.length() );
+                    sb.append( input, 0, i );
+                }
+            }
+            else if ( sb != null ) {
+                sb.append( c );
+            }
+        }
+        return sb != null ? sb.toString() : input;
+    }
+
+    /**
+     * Returns the expression this filter was compiled from.
+     */
+    FilterExpression getExpression() {
+        return this.expression;
+    }
+
+    /**
+     * Matches a set of properties.
+     *
+     * @param properties The properties to match.
+     */
+    boolean match( PropertySource properties ) {
+        return this.root.match( properties );
+    }
+
+    @Override
+    public boolean match( ServiceReference reference ) {
+        if ( reference instanceof OTRServiceReference ) {
+            return this.root.match( ( (OTRServiceReference) reference ).getServiceProperties() );
+        }
+        return this.root.match( reference::getProperty );
+    }
+
+    /**
+     * Matches the keys of a Dictionary case insensitively.
+     *
+     * @param dictionary The dictionary to match. Can be null.
+     *
+     * @throws IllegalArgumentException if the dictionary contains case variants of the same key.
+     */
+    @Override
+    public boolean match( Dictionary dictionary ) {
+        Map<String, Object> properties = new HashMap<>();
+        if ( dictionary != null ) {
+            for ( Enumeration keys = dictionary.keys(); keys.hasMoreElements(); ) {
+                Object key = keys.nextElement();
+                if ( key instanceof String ) {
+                    if ( properties.put( ( (String) key ).toLowerCase( Locale.ROOT ), dictionary.get( key ) ) != null ) {
+                        throw new IllegalArgumentException( "Case variants of the same key name: " + key );
+                    }
+                }
+            }
+        }
+        return this.root.match( attr -> properties.get( attr.toLowerCase( Locale.ROOT ) ) );
+    }
+
+    @Override
+    public boolean matchCase( Dictionary dictionary ) {
+        return this.root.match( attr -> dictionary != null ? dictionary.get( attr ) : null );
+    }
+
+    /**
+     * Returns the filter string this filter was created from.
+     */
+    @Override
+    public String toString() {
+        return this.filter;
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+        if ( obj == this ) {
+            return true;
+        }
+        if ( obj instanceof CompiledFilter ) {
+            return this.expression.canonical().equals( ( (CompiledFilter) obj ).expression.canonical() );
+        }
+        return obj instanceof Filter && toString().equals( obj.toString() );
+    }
+
+    @Override
+    public int hashCode() {
+        return this.expression.canonical().hashCode();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches parsed filters so that the same filter string is only parsed once.
+ *
+ * Filters are interned on their canonical form, so filters that only differ in whitespace or
+ * in the order of '&amp;' and '|' terms share the same compiled tree. The cached filters are
+ * CompiledFilter instances, whose toString() is the filter string they were created from.
+ */
+public class FilterCache {
+
+    //
+    // Constants
+    //
+
+    /** When this many filter strings have been cached the cache is cleared to avoid growing forever. */
+    private static final int MAX_ENTRIES = 4096;
+
+    //
+    // Private Members
+    //
+
+    /** Filters by the filter strings as passed by callers. */
+    private Map<String, CompiledFilter> byFilterString = new ConcurrentHashMap<>();
+
+    /** Filters by their canonical filter string. */
+    private Map<String, CompiledFilter> byCanonical = new ConcurrentHashMap<>();
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns a parsed filter for the specified filter string.
+     *
+     * @param filter The filter string to get a Filter for.
+     *
+     * @throws InvalidSyntaxException on bad filter syntax.
+     */
+    public Filter getFilter( String filter ) throws InvalidSyntaxException {
+        return getCompiledFilter( filter );
+    }
+
+    /**
+     * Returns the parsed expression of the specified filter string, for looking at the terms of the filter.
+     *
+     * @param filter The filter string to get expression for.
+     *
+     * @throws InvalidSyntaxException on bad filter syntax.
+     */
+    FilterExpression getExpression( String filter ) throws InvalidSyntaxException {
+        return getCompiledFilter( filter ).getExpression();
+    }
+
+    /**
+     * Returns a compiled filter for the specified filter string.
+     *
+     * @param filter The filter string to get a compiled filter for.
+     *
+     * @throws InvalidSyntaxException on bad filter syntax.
+     */
+    private CompiledFilter getCompiledFilter( String filter ) throws InvalidSyntaxException {
+        if ( filter == null ) {
+            throw new NullPointerException( "filter can not be null!" );
+        }
+
+        CompiledFilter parsed = this.byFilterString.get( filter );
+        if ( parsed == null ) {
+            FilterExpression expression = FilterExpression.parse( filter );
+            String canonical = expression.canonical();
+
+            CompiledFilter compiled = this.byCanonical.get( canonical );
+            if ( compiled == null ) {
+                compiled = new CompiledFilter( filter, expression );
+                CompiledFilter existing = this.byCanonical.putIfAbsent( canonical, compiled );
+                if ( existing != null ) {
+                    compiled = existing;
+                }
+            }
+            parsed = compiled.toString().equals( filter ) ? compiled : new CompiledFilter( filter, compiled );
+
+            if ( this.byFilterString.size() >= MAX_ENTRIES ) {
+                this.byFilterString.clear();
+                this.byCanonical.clear();
+            }
+            this.byFilterString.put( filter, parsed );
+        }
+
+        return parsed;
+    }
+
+    /**
+     * Returns the number of distinct filters currently cached.
+     */
+    @SuppressWarnings("unused")
+    public int size() {
+        return this.byCanonical.size();
+    }
+}
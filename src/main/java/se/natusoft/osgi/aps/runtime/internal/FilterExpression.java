@@ -0,0 +1,430 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.InvalidSyntaxException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parsed LDAP filter expression.
+ *
+ * This follows the syntax accepted by FrameworkUtil.createFilter(...), and is used to produce a
+ * canonical form of a filter where whitespace not affecting the meaning of the filter is removed
+ * and the terms of '&amp;' and '|' are sorted. Two filters differing only in these aspects will
+ * have the same canonical form.
+ */
+class FilterExpression {
+
+    //
+    // Constants
+    //
+
+    static final int EQUAL = 1;
+    static final int APPROX = 2;
+    static final int GREATER = 3;
+    static final int LESS = 4;
+    static final int PRESENT = 5;
+    static final int SUBSTRING = 6;
+    static final int AND = 7;
+    static final int OR = 8;
+    static final int NOT = 9;
+
+    //
+    // Private Members
+    //
+
+    /** The operation of this expression. */
+    private int op;
+
+    /** The attribute of an item, or null for AND, OR and NOT. */
+    private String attr;
+
+    /** The value of EQUAL, APPROX, GREATER and LESS. */
+    private String value;
+
+    /** The parts of a SUBSTRING where null represents a '*'. */
+    private String[] substrings;
+
+    /** The operands of AND, OR and NOT. */
+    private FilterExpression[] operands;
+
+    /** The lazily produced canonical form. */
+    private String canonical;
+
+    //
+    // Constructors
+    //
+
+    private FilterExpression( int op, String attr, String value, String[] substrings, FilterExpression[] operands ) {
+        this.op = op;
+        this.attr = attr;
+        this.value = value;
+        this.substrings = substrings;
+        this.operands = operands;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Parses a filter string.
+     *
+     * @param filter The filter string to parse.
+     *
+     * @throws InvalidSyntaxException on bad filter syntax.
+     */
+    static FilterExpression parse( String filter ) throws InvalidSyntaxException {
+        return new Parser( filter ).parse();
+    }
+
+    /**
+     * Returns the operation of this expression.
+     */
+    int getOp() {
+        return this.op;
+    }
+
+    /**
+     * Returns the attribute of an item expression.
+     */
+    String getAttr() {
+        return this.attr;
+    }
+
+    /**
+     * Returns the value of an EQUAL, APPROX, GREATER or LESS expression.
+     */
+    String getValue() {
+        return this.value;
+    }
+
+    /**
+     * Returns the parts of a SUBSTRING expression where null represents a '*'.
+     */
+    String[] getSubstrings() {
+        return this.substrings;
+    }
+
+    /**
+     * Returns the operands of an AND, OR or NOT expression.
+     */
+    FilterExpression[] getOperands() {
+        return this.operands;
+    }
+
+    /**
+     * Returns the canonical form of this expression.
+     */
+    String canonical() {
+        if ( this.canonical == null ) {
+            StringBuilder sb = new StringBuilder();
+            sb.append( '(' );
+            switch ( this.op ) {
+                case AND:
+                case OR:
+                    sb.append( this.op == AND ? '&' : '|' );
+                    String[] terms = new String[ this.operands.length ];
+                    for ( int i = 0; i < terms.length; i++ ) {
+                        terms[ i ] = this.operands[ i ].canonical();
+                    }
+                    Arrays.sort( terms );
+                    for ( String term : terms ) {
+                        sb.append( term );
+                    }
+                    break;
+
+                case NOT:
+                    sb.append( '!' ).append( this.operands[ 0 ].canonical() );
+                    break;
+
+                case SUBSTRING:
+                    sb.append( this.attr ).append( '=' );
+                    for ( String part : this.substrings ) {
+                        if ( part == null ) {
+                            sb.append( '*' );
+                        }
+                        else {
+                            encode( part, sb );
+                        }
+                    }
+                    break;
+
+                case PRESENT:
+                    sb.append( this.attr ).append( "=*" );
+                    break;
+
+                default:
+                    sb.append( this.attr ).append( operator( this.op ) );
+                    encode( this.value, sb );
+            }
+            sb.append( ')' );
+            this.canonical = sb.toString();
+        }
+
+        return this.canonical;
+    }
+
+    /**
+     * Returns the operator string of an EQUAL, APPROX, GREATER or LESS expression.
+     *
+     * @param op The operation to get operator for.
+     */
+    private static String operator( int op ) {
+        switch ( op ) {
+            case APPROX: return "~=";
+            case GREATER: return ">=";
+            case LESS: return "<=";
+            default: return "=";
+        }
+    }
+
+    /**
+     * Appends a value escaping the characters that have special meaning in a filter.
+     *
+     * @param value The value to append.
+     * @param sb The builder to append to.
+     */
+    private static void encode( String value, StringBuilder sb ) {
+        for ( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            if ( c == '(' || c == ')' || c == '*' || c == '\\' ) {
+                sb.append( '\\' );
+            }
+            sb.append( c );
+        }
+    }
+
+    @Override
+    public String toString() {
+        return canonical();
+    }
+
+    /**
+     * Parses filter strings into FilterExpression trees.
+     */
+    private static class Parser {
+
+        private String filter;
+        private char[] chars;
+        private int pos = 0;
+
+        Parser( String filter ) {
+            this.filter = filter;
+            this.chars = filter.toCharArray();
+        }
+
+        FilterExpression parse() throws InvalidSyntaxException {
+            FilterExpression expression;
+            try {
+                expression = parseFilter();
+            }
+            catch ( ArrayIndexOutOfBoundsException aioobe ) {
+                throw new InvalidSyntaxException( "Filter ended abruptly", this.filter );
+            }
+
+            if ( this.pos != this.chars.length ) {
+                throw new InvalidSyntaxException( "Extraneous trailing characters: " + this.filter.substring( this.pos ), this.filter );
+            }
+
+            return expression;
+        }
+
+        private FilterExpression parseFilter() throws InvalidSyntaxException {
+            skipWhiteSpace();
+            expect( '(' );
+            FilterExpression expression = parseFilterComp();
+            skipWhiteSpace();
+            expect( ')' );
+            skipWhiteSpace();
+
+            return expression;
+        }
+
+        private FilterExpression parseFilterComp() throws InvalidSyntaxException {
+            skipWhiteSpace();
+            switch ( this.chars[ this.pos ] ) {
+                case '&':
+                    ++this.pos;
+                    return new FilterExpression( AND, null, null, null, parseOperands() );
+
+                case '|':
+                    ++this.pos;
+                    return new FilterExpression( OR, null, null, null, parseOperands() );
+
+                case '!':
+                    ++this.pos;
+                    skipWhiteSpace();
+                    if ( this.chars[ this.pos ] != '(' ) {
+                        throw syntaxError( "Missing '('" );
+                    }
+                    return new FilterExpression( NOT, null, null, null, new FilterExpression[]{ parseFilter() } );
+
+                default:
+                    return parseItem();
+            }
+        }
+
+        private FilterExpression[] parseOperands() throws InvalidSyntaxException {
+            skipWhiteSpace();
+            if ( this.chars[ this.pos ] != '(' ) {
+                throw syntaxError( "Missing '('" );
+            }
+
+            List<FilterExpression> operands = new ArrayList<>();
+            while ( this.chars[ this.pos ] == '(' ) {
+                operands.add( parseFilter() );
+            }
+
+            return operands.toArray( new FilterExpression[ operands.size() ] );
+        }
+
+        private FilterExpression parseItem() throws InvalidSyntaxException {
+            String attr = parseAttr();
+            skipWhiteSpace();
+
+            switch ( this.chars[ this.pos ] ) {
+                case '~':
+                case '>':
+                case '<':
+                    if ( this.chars[ this.pos + 1 ] == '=' ) {
+                        int op = this.chars[ this.pos ] == '~' ? APPROX : this.chars[ this.pos ] == '>' ? GREATER : LESS;
+                        this.pos += 2;
+                        return new FilterExpression( op, attr, parseValue(), null, null );
+                    }
+                    break;
+
+                case '=':
+                    if ( this.chars[ this.pos + 1 ] == '*' ) {
+                        int start = this.pos;
+                        this.pos += 2;
+                        skipWhiteSpace();
+                        if ( this.chars[ this.pos ] == ')' ) {
+                            return new FilterExpression( PRESENT, attr, null, null, null );
+                        }
+                        this.pos = start;
+                    }
+                    ++this.pos;
+                    List<String> parts = parseSubstrings();
+                    if ( parts.size() == 1 && parts.get( 0 ) != null ) {
+                        return new FilterExpression( EQUAL, attr, parts.get( 0 ), null, null );
+                    }
+                    return new FilterExpression( SUBSTRING, attr, null, parts.toArray( new String[ parts.size() ] ), null );
+            }
+
+            throw syntaxError( "Invalid operator" );
+        }
+
+        private String parseAttr() throws InvalidSyntaxException {
+            skipWhiteSpace();
+            int begin = this.pos;
+            int end = this.pos;
+
+            char c = this.chars[ this.pos ];
+            while ( c != '~' && c != '<' && c != '>' && c != '=' && c != '(' && c != ')' ) {
+                ++this.pos;
+                if ( !Character.isWhitespace( c ) ) {
+                    end = this.pos;
+                }
+                c = this.chars[ this.pos ];
+            }
+
+            if ( end == begin ) {
+                throw syntaxError( "Missing attr" );
+            }
+
+            return new String( this.chars, begin, end - begin );
+        }
+
+        private String parseValue() throws InvalidSyntaxException {
+            StringBuilder sb = new StringBuilder();
+            while ( this.chars[ this.pos ] != ')' ) {
+                char c = this.chars[ this.pos ];
+                if ( c == '(' ) {
+                    throw syntaxError( "Invalid value" );
+                }
+                if ( c == '\\' ) {
+                    c = this.chars[ ++this.pos ];
+                }
+                sb.append( c );
+                ++this.pos;
+            }
+
+            if ( sb.length() == 0 ) {
+                throw syntaxError( "Missing value" );
+            }
+
+            return sb.toString();
+        }
+
+        private List<String> parseSubstrings() throws InvalidSyntaxException {
+            StringBuilder sb = new StringBuilder();
+            List<String> parts = new ArrayList<>();
+
+            while ( this.chars[ this.pos ] != ')' ) {
+                char c = this.chars[ this.pos ];
+                if ( c == '(' ) {
+                    throw syntaxError( "Invalid value" );
+                }
+                if ( c == '*' ) {
+                    if ( sb.length() > 0 ) {
+                        parts.add( sb.toString() );
+                    }
+                    sb.setLength( 0 );
+                    parts.add( null );
+                }
+                else {
+                    if ( c == '\\' ) {
+                        c = this.chars[ ++this.pos ];
+                    }
+                    sb.append( c );
+                }
+                ++this.pos;
+            }
+            if ( sb.length() > 0 ) {
+                parts.add( sb.toString() );
+            }
+
+            if ( parts.isEmpty() ) {
+                throw syntaxError( "Missing value" );
+            }
+
+            return parts;
+        }
+
+        private void expect( char c ) throws InvalidSyntaxException {
+            if ( this.chars[ this.pos ] != c ) {
+                throw syntaxError( "Missing '" + c + "'" );
+            }
+            ++this.pos;
+        }
+
+        private InvalidSyntaxException syntaxError( String message ) {
+            return new InvalidSyntaxException( message + ": " + this.filter.substring( this.pos ), this.filter );
+        }
+
+        private void skipWhiteSpace() {
+            while ( this.pos < this.chars.length && Character.isWhitespace( this.chars[ this.pos ] ) ) {
+                ++this.pos;
+            }
+        }
+    }
+}
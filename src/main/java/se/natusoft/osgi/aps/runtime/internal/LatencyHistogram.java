@@ -0,0 +1,171 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds that can be recorded to from many threads without locking.
+ *
+ * Each power of two range is split into 8 buckets, so a percentile is accurate to within 12.5%. The
+ * reported value of a percentile is the upper bound of its bucket, but never more than the max
+ * recorded latency. Tests read these through an OTRLatencyHistogram.
+ *
+ * For internal use.
+ */
+public class LatencyHistogram {
+
+    //
+    // Constants
+    //
+
+    /** The number of bits of a latency below its highest set bit used to select the bucket. */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+    //
+    // Private Members
+    //
+
+    private AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+
+    private LongAdder count = new LongAdder();
+
+    private LongAdder total = new LongAdder();
+
+    private LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+    //
+    // Methods
+    //
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record( long nanos ) {
+        if ( nanos < 0 ) {
+            nanos = 0;
+        }
+        this.buckets.incrementAndGet( bucketOf( nanos ) );
+        this.count.increment();
+        this.total.add( nanos );
+        this.max.accumulate( nanos );
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Returns the max recorded latency in nanoseconds.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the mean recorded latency in nanoseconds, or 0 if none has been recorded.
+     */
+    public long getMean() {
+        long count = this.count.sum();
+        return count > 0 ? this.total.sum() / count : 0;
+    }
+
+    /**
+     * Returns the latency in nanoseconds that the specified percentage of the recorded latencies are at or below,
+     * or 0 if none has been recorded.
+     *
+     * @param percentile The percentile to get, for example 99.0.
+     */
+    public long getPercentile( double percentile ) {
+        long[] counts = new long[ BUCKETS ];
+        long count = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            counts[ i ] = this.buckets.get( i );
+            count += counts[ i ];
+        }
+        if ( count == 0 ) {
+            return 0;
+        }
+
+        long rank = Math.max( 1, (long) Math.ceil( count * Math.min( percentile, 100.0 ) / 100.0 ) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            seen += counts[ i ];
+            if ( seen >= rank ) {
+                return Math.min( upperBoundOf( i ), getMax() );
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Returns a percentile converted to the specified unit.
+     *
+     * @param percentile The percentile to get, for example 99.0.
+     * @param unit The unit to return the latency in.
+     */
+    public long getPercentile( double percentile, TimeUnit unit ) {
+        return unit.convert( getPercentile( percentile ), TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * Returns the bucket of a latency.
+     *
+     * @param nanos The latency to get bucket of.
+     */
+    private static int bucketOf( long nanos ) {
+        if ( nanos < SUB_BUCKETS ) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( nanos );
+        int subBucket = (int) ( nanos >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the highest latency of a bucket.
+     *
+     * @param bucket The bucket to get the upper bound of.
+     */
+    private static long upperBoundOf( int bucket ) {
+        if ( bucket < SUB_BUCKETS ) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowerBound = (long) ( SUB_BUCKETS + bucket % SUB_BUCKETS ) << ( exponent - SUB_BUCKET_BITS );
+        return lowerBound + ( 1L << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMean() + "ns, p50=" + getPercentile( 50 ) + "ns, p99=" +
+                getPercentile( 99 ) + "ns, max=" + getMax() + "ns";
+    }
+}
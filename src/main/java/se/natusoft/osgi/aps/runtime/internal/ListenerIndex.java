@@ -0,0 +1,248 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.Constants;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An inverted index of listener filters, finding the listeners whose filters might match a service.
+ *
+ * A listener is indexed by the equality terms its filter requires one of to match, for example
+ * '(objectClass=X)' or '(|(provider=a)(provider=b))'. For a service only the listeners indexed under
+ * the values the service actually has are candidates, together with the listeners whose filters have
+ * no such terms. The candidates still need to have their filters evaluated.
+ *
+ * Listeners are added and removed while holding the registry lock, and the lists are copy on write so
+ * that finding candidates needs no locking.
+ *
+ * @param <E> The listener entry type.
+ */
+class ListenerIndex<E> {
+
+    //
+    // Private Members
+    //
+
+    /** Indexed listeners by attribute and value. objectClass is always keyed in its Constants.OBJECTCLASS form. */
+    private Map<String, Map<String, List<E>>> byTerm = new ConcurrentHashMap<>();
+
+    /** Listeners whose filters can not be indexed, including those without filters. */
+    private List<E> unindexed = new CopyOnWriteArrayList<>();
+
+    /** The terms each listener is indexed under. */
+    private Map<E, List<String[]>> termsByEntry = new ConcurrentHashMap<>();
+
+    //
+    // Methods
+    //
+
+    /**
+     * Adds a listener entry.
+     *
+     * @param entry The entry to add.
+     * @param filter The filter of the listener. Can be null.
+     */
+    void add( E entry, FilterExpression filter ) {
+        List<String[]> terms = filter != null ? indexTerms( filter ) : null;
+        if ( terms == null ) {
+            this.unindexed.add( entry );
+        }
+        else {
+            for ( String[] term : terms ) {
+                this.byTerm.computeIfAbsent( term[ 0 ], k -> new ConcurrentHashMap<>() )
+                        .computeIfAbsent( term[ 1 ], k -> new CopyOnWriteArrayList<>() ).add( entry );
+            }
+            this.termsByEntry.put( entry, terms );
+        }
+    }
+
+    /**
+     * Removes a listener entry.
+     *
+     * @param entry The entry to remove.
+     */
+    void remove( E entry ) {
+        List<String[]> terms = this.termsByEntry.remove( entry );
+        if ( terms == null ) {
+            this.unindexed.remove( entry );
+            return;
+        }
+
+        for ( String[] term : terms ) {
+            Map<String, List<E>> byValue = this.byTerm.get( term[ 0 ] );
+            List<E> entries = byValue.get( term[ 1 ] );
+            entries.remove( entry );
+            if ( entries.isEmpty() ) {
+                byValue.remove( term[ 1 ] );
+                if ( byValue.isEmpty() ) {
+                    this.byTerm.remove( term[ 0 ] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the listener entries whose filters might match a service. Each entry is only returned once.
+     *
+     * @param properties The properties of the service.
+     */
+    Collection<E> getCandidates( ServiceProperties properties ) {
+        Collection<E> candidates = new LinkedHashSet<>( this.unindexed );
+        addCandidates( properties, candidates );
+        return candidates;
+    }
+
+    /**
+     * Returns the listener entries whose filters might match a service before or after a change of its properties.
+     * Each entry is only returned once.
+     *
+     * @param oldProperties The properties of the service before the change.
+     * @param properties The properties of the service after the change.
+     */
+    Collection<E> getCandidates( ServiceProperties oldProperties, ServiceProperties properties ) {
+        Collection<E> candidates = new LinkedHashSet<>( this.unindexed );
+        addCandidates( oldProperties, candidates );
+        addCandidates( properties, candidates );
+        return candidates;
+    }
+
+    /**
+     * Adds the indexed listener entries whose filters might match a service.
+     *
+     * @param properties The properties of the service.
+     * @param candidates Receives the entries.
+     */
+    private void addCandidates( ServiceProperties properties, Collection<E> candidates ) {
+        for ( Map.Entry<String, Map<String, List<E>>> attrEntry : this.byTerm.entrySet() ) {
+            Map<String, List<E>> byValue = attrEntry.getValue();
+            Object value = properties.get( attrEntry.getKey() );
+
+            if ( value != null && !addCandidates( value, byValue, candidates ) ) {
+                // Non String values might match after type conversion so all listeners of the attribute are candidates.
+                for ( List<E> entries : byValue.values() ) {
+                    candidates.addAll( entries );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of added listener entries.
+     */
+    int size() {
+        return this.unindexed.size() + this.termsByEntry.size();
+    }
+
+    /**
+     * Adds the entries indexed under the String values of a property value, which can be an array or a collection
+     * of values.
+     *
+     * @param value The property value.
+     * @param byValue The indexed entries of the attribute.
+     * @param candidates Receives the entries.
+     *
+     * @return false if the value has parts that are not Strings.
+     */
+    private static <E> boolean addCandidates( Object value, Map<String, List<E>> byValue, Collection<E> candidates ) {
+        if ( value instanceof String ) {
+            List<E> entries = byValue.get( value );
+            if ( entries != null ) {
+                candidates.addAll( entries );
+            }
+            return true;
+        }
+        if ( value instanceof Object[] ) {
+            boolean indexable = true;
+            for ( Object part : (Object[]) value ) {
+                if ( part != null ) {
+                    indexable &= addCandidates( part, byValue, candidates );
+                }
+            }
+            return indexable;
+        }
+        if ( value instanceof Collection ) {
+            boolean indexable = true;
+            for ( Object part : (Collection) value ) {
+                if ( part != null ) {
+                    indexable &= addCandidates( part, byValue, candidates );
+                }
+            }
+            return indexable;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the equality terms of which a filter requires at least one to match, or null if there are no such
+     * terms. Each term is an attribute and a value.
+     *
+     * @param filter The filter to get terms for.
+     */
+    static List<String[]> indexTerms( FilterExpression filter ) {
+        switch ( filter.getOp() ) {
+            case FilterExpression.EQUAL:
+                String attr = filter.getAttr().equalsIgnoreCase( Constants.OBJECTCLASS ) ? Constants.OBJECTCLASS : filter.getAttr();
+                return Collections.singletonList( new String[]{ attr, filter.getValue() } );
+
+            case FilterExpression.AND:
+                // Any operand will do since all must match. objectClass terms are preferred since all services have them.
+                List<String[]> best = null;
+                for ( FilterExpression operand : filter.getOperands() ) {
+                    List<String[]> terms = indexTerms( operand );
+                    if ( terms != null && ( best == null || isObjectClassTerms( terms ) && !isObjectClassTerms( best ) ) ) {
+                        best = terms;
+                    }
+                }
+                return best;
+
+            case FilterExpression.OR:
+                // One operand must match, so all operands need terms.
+                List<String[]> all = new ArrayList<>();
+                for ( FilterExpression operand : filter.getOperands() ) {
+                    List<String[]> terms = indexTerms( operand );
+                    if ( terms == null ) {
+                        return null;
+                    }
+                    all.addAll( terms );
+                }
+                return all;
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns true if all terms are objectClass terms.
+     *
+     * @param terms The terms to check.
+     */
+    private static boolean isObjectClassTerms( List<String[]> terms ) {
+        for ( String[] term : terms ) {
+            if ( !term[ 0 ].equals( Constants.OBJECTCLASS ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import se.natusoft.osgi.aps.runtime.OTRTestResults;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Times listener callbacks and reports the ones taking longer than a threshold.
+ *
+ * While a callback is running, a sampler thread captures the stack of the listener thread once the
+ * threshold has passed, which shows where the listener was spending its time. A slow callback is
+ * kept in a list of slow listeners, and optionally failed in an OTRTestResults.
+ *
+ * Disabled by default, and then the cost of a callback is one volatile read.
+ *
+ * For internal use.
+ */
+public class ListenerWatchdog {
+
+    /**
+     * A listener callback that took longer than the threshold. Tests read these through an OTRSlowListener.
+     */
+    public static class SlowListener {
+        private Class<?> listenerClass;
+        private Bundle bundle;
+        private String event;
+        private long nanos;
+        private StackTraceElement[] stack;
+
+        SlowListener( Class<?> listenerClass, Bundle bundle, String event, long nanos, StackTraceElement[] stack ) {
+            this.listenerClass = listenerClass;
+            this.bundle = bundle;
+            this.event = event;
+            this.nanos = nanos;
+            this.stack = stack;
+        }
+
+        /**
+         * Returns the class of the slow listener.
+         */
+        public Class<?> getListenerClass() {
+            return this.listenerClass;
+        }
+
+        /**
+         * Returns the bundle that added the listener. Can be null.
+         */
+        public Bundle getBundle() {
+            return this.bundle;
+        }
+
+        /**
+         * Returns a description of the event the listener was handling.
+         */
+        public String getEvent() {
+            return this.event;
+        }
+
+        /**
+         * Returns the time the callback took in nanoseconds.
+         */
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        /**
+         * Returns the stack of the listener thread captured while the callback was slow.
+         */
+        public StackTraceElement[] getStack() {
+            return this.stack;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append( "Slow listener '" ).append( this.listenerClass.getName() ).append( "' of bundle '" )
+                    .append( this.bundle != null ? this.bundle.getSymbolicName() : null ).append( "' took " )
+                    .append( TimeUnit.NANOSECONDS.toMillis( this.nanos ) ).append( "ms handling " ).append( this.event )
+                    .append( "!\n" );
+            for ( StackTraceElement ste : this.stack ) {
+                sb.append( "    at " ).append( ste ).append( "\n" );
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A running listener callback.
+     */
+    public static class Watch {
+        private Object listener;
+        private Bundle bundle;
+        private Object event;
+        private Thread thread = Thread.currentThread();
+        private long start = System.nanoTime();
+        private volatile boolean done = false;
+        private volatile StackTraceElement[] stack;
+
+        private Watch( Object listener, Bundle bundle, Object event ) {
+            this.listener = listener;
+            this.bundle = bundle;
+            this.event = event;
+        }
+    }
+
+    //
+    // Private Members
+    //
+
+    /** Callbacks taking longer than this in nanoseconds are reported. 0 when disabled. */
+    private volatile long thresholdNanos = 0;
+
+    /** Slow callbacks are failed in this if not null. */
+    private volatile OTRTestResults testResults;
+
+    /** The callbacks currently running. */
+    private Set<Watch> running = ConcurrentHashMap.newKeySet();
+
+    private List<SlowListener> slowListeners = new CopyOnWriteArrayList<>();
+
+    /** Captures stacks of slow callbacks. Created when enabled. */
+    private ScheduledExecutorService sampler;
+
+    //
+    // Methods
+    //
+
+    /**
+     * Enables the watchdog.
+     *
+     * @param threshold Callbacks taking longer than this are reported. 0 disables the watchdog.
+     * @param unit The unit of the threshold.
+     * @param testResults If not null slow callbacks are failed in this.
+     */
+    public synchronized void setThreshold( long threshold, TimeUnit unit, OTRTestResults testResults ) {
+        close();
+
+        this.testResults = testResults;
+        this.thresholdNanos = unit.toNanos( threshold );
+
+        if ( this.thresholdNanos > 0 ) {
+            long period = Math.min( Math.max( this.thresholdNanos / 2, TimeUnit.MILLISECONDS.toNanos( 1 ) ),
+                    TimeUnit.SECONDS.toNanos( 1 ) );
+            this.sampler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+                Thread thread = new Thread( runnable, "OTR-Listener-Watchdog" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+            this.sampler.scheduleAtFixedRate( this::sample, period, period, TimeUnit.NANOSECONDS );
+        }
+    }
+
+    /**
+     * Disables the watchdog and stops its sampler thread. The slow callbacks reported so far are kept.
+     */
+    public synchronized void close() {
+        this.thresholdNanos = 0;
+        this.testResults = null;
+        if ( this.sampler != null ) {
+            this.sampler.shutdownNow();
+            this.sampler = null;
+        }
+        this.running.clear();
+    }
+
+    /**
+     * Starts timing a callback on the current thread.
+     *
+     * @param listener The listener being called.
+     * @param bundle The bundle that added the listener. Can be null.
+     * @param event The event passed to the listener.
+     *
+     * @return the watch to pass to end(...), or null if disabled.
+     */
+    public Watch start( Object listener, Bundle bundle, Object event ) {
+        if ( this.thresholdNanos == 0 ) {
+            return null;
+        }
+        Watch watch = new Watch( listener, bundle, event );
+        this.running.add( watch );
+        return watch;
+    }
+
+    /**
+     * Ends timing a callback, reporting it if slow.
+     *
+     * @param watch The watch returned by start(...). Can be null.
+     */
+    public void end( Watch watch ) {
+        if ( watch == null ) {
+            return;
+        }
+        long nanos = System.nanoTime() - watch.start;
+        watch.done = true;
+        this.running.remove( watch );
+
+        long threshold = this.thresholdNanos;
+        if ( threshold > 0 && nanos > threshold ) {
+            StackTraceElement[] stack = watch.stack;
+            if ( stack == null ) {
+                // Finished before the sampler got to it, so the best we have is where the listener was called from.
+                stack = Thread.currentThread().getStackTrace();
+            }
+            report( new SlowListener( watch.listener.getClass(), watch.bundle, describe( watch.event ), nanos, stack ) );
+        }
+    }
+
+    /**
+     * Returns the slow callbacks reported so far.
+     */
+    public List<SlowListener> getSlowListeners() {
+        return Collections.unmodifiableList( this.slowListeners );
+    }
+
+    /**
+     * Captures the stacks of running callbacks that have passed the threshold.
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        for ( Watch watch : this.running ) {
+            if ( watch.stack == null && now - watch.start > this.thresholdNanos ) {
+                StackTraceElement[] stack = watch.thread.getStackTrace();
+                if ( !watch.done ) {
+                    watch.stack = stack;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports a slow callback.
+     *
+     * @param slowListener The slow callback to report.
+     */
+    private void report( SlowListener slowListener ) {
+        this.slowListeners.add( slowListener );
+        fail( slowListener.toString() );
+    }
+
+    /**
+     * Fails the test results passed when enabled, if any. Also used by the framework to report errors that can not
+     * be thrown to a caller.
+     *
+     * @param message The failure message.
+     */
+    public void fail( String message ) {
+        OTRTestResults testResults = this.testResults;
+        if ( testResults != null ) {
+            synchronized ( testResults ) {
+                testResults.testOK = false;
+                testResults.testMessages.add( message );
+            }
+        }
+    }
+
+    /**
+     * Returns a description of a listener event.
+     *
+     * @param event The event to describe.
+     */
+    private static String describe( Object event ) {
+        if ( event instanceof ServiceEvent ) {
+            ServiceEvent serviceEvent = (ServiceEvent) event;
+            String type;
+            switch ( serviceEvent.getType() ) {
+                case ServiceEvent.REGISTERED: type = "REGISTERED"; break;
+                case ServiceEvent.MODIFIED: type = "MODIFIED"; break;
+                case ServiceEvent.MODIFIED_ENDMATCH: type = "MODIFIED_ENDMATCH"; break;
+                case ServiceEvent.UNREGISTERING: type = "UNREGISTERING"; break;
+                default: type = String.valueOf( serviceEvent.getType() );
+            }
+            return "ServiceEvent " + type + " of service " +
+                    serviceEvent.getServiceReference().getProperty( Constants.SERVICE_ID );
+        }
+        if ( event instanceof BundleEvent ) {
+            BundleEvent bundleEvent = (BundleEvent) event;
+            String type;
+            switch ( bundleEvent.getType() ) {
+                case BundleEvent.INSTALLED: type = "INSTALLED"; break;
+                case BundleEvent.RESOLVED: type = "RESOLVED"; break;
+                case BundleEvent.STARTING: type = "STARTING"; break;
+                case BundleEvent.STARTED: type = "STARTED"; break;
+                case BundleEvent.STOPPING: type = "STOPPING"; break;
+                case BundleEvent.STOPPED: type = "STOPPED"; break;
+                case BundleEvent.UNINSTALLED: type = "UNINSTALLED"; break;
+                case BundleEvent.LAZY_ACTIVATION: type = "LAZY_ACTIVATION"; break;
+                default: type = String.valueOf( bundleEvent.getType() );
+            }
+            return "BundleEvent " + type + " of bundle '" + bundleEvent.getBundle().getSymbolicName() + "'";
+        }
+        return String.valueOf( event );
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+/**
+ * A map from primitive long keys to values, made for many more reads than writes.
+ *
+ * The entries are held in open addressing arrays that are never modified once published. Writers
+ * synchronize and publish new arrays through a volatile field, and readers neither lock nor box the
+ * key.
+ *
+ * @param <V> The value type.
+ */
+class LongKeyMap<V> {
+
+    /**
+     * The published entries. The capacity is a power of two and at most half of it is used.
+     */
+    private static class Table {
+        private final long[] keys;
+        private final Object[] values;
+        private final int size;
+
+        private Table( int capacity, int size ) {
+            this.keys = new long[ capacity ];
+            this.values = new Object[ capacity ];
+            this.size = size;
+        }
+    }
+
+    //
+    // Private Members
+    //
+
+    private volatile Table table = new Table( 16, 0 );
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the value of a key or null if none.
+     *
+     * @param key The key to get the value of.
+     */
+    @SuppressWarnings("unchecked")
+    V get( long key ) {
+        Table table = this.table;
+        int mask = table.keys.length - 1;
+        for ( int i = index( key, mask ); ; i = ( i + 1 ) & mask ) {
+            Object value = table.values[ i ];
+            if ( value == null ) {
+                return null;
+            }
+            if ( table.keys[ i ] == key ) {
+                return (V) value;
+            }
+        }
+    }
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param key The key to set the value of.
+     * @param value The value to set. Must not be null.
+     */
+    synchronized void put( long key, V value ) {
+        Table table = this.table;
+        boolean present = get( key ) != null;
+        int size = present ? table.size : table.size + 1;
+        int capacity = table.keys.length;
+        while ( size * 2 > capacity ) {
+            capacity *= 2;
+        }
+
+        Table copy = new Table( capacity, size );
+        for ( int i = 0; i < table.keys.length; i++ ) {
+            if ( table.values[ i ] != null && table.keys[ i ] != key ) {
+                insert( copy, table.keys[ i ], table.values[ i ] );
+            }
+        }
+        insert( copy, key, value );
+        this.table = copy;
+    }
+
+    /**
+     * Removes the value of a key.
+     *
+     * @param key The key to remove.
+     */
+    synchronized void remove( long key ) {
+        Table table = this.table;
+        if ( get( key ) == null ) {
+            return;
+        }
+
+        Table copy = new Table( table.keys.length, table.size - 1 );
+        for ( int i = 0; i < table.keys.length; i++ ) {
+            if ( table.values[ i ] != null && table.keys[ i ] != key ) {
+                insert( copy, table.keys[ i ], table.values[ i ] );
+            }
+        }
+        this.table = copy;
+    }
+
+    /**
+     * Returns the number of keys.
+     */
+    int size() {
+        return this.table.size;
+    }
+
+    /**
+     * Inserts an entry into a table not yet published.
+     */
+    private static void insert( Table table, long key, Object value ) {
+        int mask = table.keys.length - 1;
+        int i = index( key, mask );
+        while ( table.values[ i ] != null ) {
+            i = ( i + 1 ) & mask;
+        }
+        table.keys[ i ] = key;
+        table.values[ i ] = value;
+    }
+
+    /**
+     * Returns the first slot to probe for a key.
+     */
+    private static int index( long key, int mask ) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) ( hash ^ ( hash >>> 32 ) ) & mask;
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import java.util.*;
+
+/**
+ * An immutable hash map where adding or removing a key returns a new map sharing all but the changed
+ * path with the old one.
+ *
+ * The entries are held in a hash array mapped trie of 32 way nodes, so a change copies at most one
+ * small node per level instead of the whole map. This is what lets the RegistrySnapshot publish a new
+ * snapshot per registration without copying its indexes. The map itself can not be modified through
+ * the Map interface.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type. Values must not be null.
+ */
+class PersistentMap<K, V> extends AbstractMap<K, V> {
+
+    /** Marks a key not found, since values are never null. */
+    private static final Object NOT_FOUND = new Object();
+
+    /** Bits of the hash used per level. */
+    private static final int BITS = 5;
+
+    /**
+     * A node of the trie.
+     */
+    private static abstract class Node {
+
+        /**
+         * Returns the value of a key or NOT_FOUND.
+         */
+        abstract Object find( int hash, Object key, int shift );
+
+        /**
+         * Returns a node with a key set, or this if the key already has the value.
+         *
+         * @param added Set to true if the key was not present.
+         */
+        abstract Node plus( int hash, Object key, Object value, int shift, boolean[] added );
+
+        /**
+         * Returns a node without a key, this if the key is not present, or null if the node became empty.
+         */
+        abstract Node minus( int hash, Object key, int shift );
+
+        /**
+         * Adds all entries of the node.
+         */
+        abstract void collect( List<Map.Entry<Object, Object>> entries );
+    }
+
+    /**
+     * A node holding up to 32 entries or sub nodes, selected by 5 bits of the hash. The array holds a key and
+     * value pair per set bit of the bitmap, where the key is null and the value is a Node for a sub node.
+     */
+    private static class BitmapNode extends Node {
+        private final int bitmap;
+        private final Object[] array;
+
+        private BitmapNode( int bitmap, Object[] array ) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private static int bit( int hash, int shift ) {
+            return 1 << ( ( hash >>> shift ) & 31 );
+        }
+
+        private int index( int bit ) {
+            return Integer.bitCount( this.bitmap & ( bit - 1 ) );
+        }
+
+        @Override
+        Object find( int hash, Object key, int shift ) {
+            int bit = bit( hash, shift );
+            if ( ( this.bitmap & bit ) == 0 ) {
+                return NOT_FOUND;
+            }
+            int i = 2 * index( bit );
+            Object k = this.array[ i ];
+            if ( k == null ) {
+                return ( (Node) this.array[ i + 1 ] ).find( hash, key, shift + BITS );
+            }
+            return k.equals( key ) ? this.array[ i + 1 ] : NOT_FOUND;
+        }
+
+        @Override
+        Node plus( int hash, Object key, Object value, int shift, boolean[] added ) {
+            int bit = bit( hash, shift );
+            int i = 2 * index( bit );
+
+            if ( ( this.bitmap & bit ) == 0 ) {
+                Object[] array = new Object[ this.array.length + 2 ];
+                System.arraycopy( this.array, 0, array, 0, i );
+                array[ i ] = key;
+                array[ i + 1 ] = value;
+                System.arraycopy( this.array, i, array, i + 2, this.array.length - i );
+                added[ 0 ] = true;
+                return new BitmapNode( this.bitmap | bit, array );
+            }
+
+            Object k = this.array[ i ];
+            Object v = this.array[ i + 1 ];
+            if ( k == null ) {
+                Node sub = ( (Node) v ).plus( hash, key, value, shift + BITS, added );
+                return sub == v ? this : with( i, null, sub );
+            }
+            if ( k.equals( key ) ) {
+                return v == value ? this : with( i, k, value );
+            }
+
+            added[ 0 ] = true;
+            return with( i, null, node( shift + BITS, k, v, hash, key, value ) );
+        }
+
+        @Override
+        Node minus( int hash, Object key, int shift ) {
+            int bit = bit( hash, shift );
+            if ( ( this.bitmap & bit ) == 0 ) {
+                return this;
+            }
+            int i = 2 * index( bit );
+
+            Object k = this.array[ i ];
+            if ( k == null ) {
+                Node sub = (Node) this.array[ i + 1 ];
+                Node newSub = sub.minus( hash, key, shift + BITS );
+                if ( newSub == sub ) {
+                    return this;
+                }
+                if ( newSub != null ) {
+                    return with( i, null, newSub );
+                }
+            }
+            else if ( !k.equals( key ) ) {
+                return this;
+            }
+
+            if ( this.bitmap == bit ) {
+                return null;
+            }
+            Object[] array = new Object[ this.array.length - 2 ];
+            System.arraycopy( this.array, 0, array, 0, i );
+            System.arraycopy( this.array, i + 2, array, i, this.array.length - i - 2 );
+            return new BitmapNode( this.bitmap & ~bit, array );
+        }
+
+        @Override
+        void collect( List<Map.Entry<Object, Object>> entries ) {
+            for ( int i = 0; i < this.array.length; i += 2 ) {
+                if ( this.array[ i ] == null ) {
+                    ( (Node) this.array[ i + 1 ] ).collect( entries );
+                }
+                else {
+                    entries.add( new AbstractMap.SimpleImmutableEntry<>( this.array[ i ], this.array[ i + 1 ] ) );
+                }
+            }
+        }
+
+        /**
+         * Returns a copy of this node with one pair replaced.
+         */
+        private BitmapNode with( int i, Object key, Object value ) {
+            Object[] array = this.array.clone();
+            array[ i ] = key;
+            array[ i + 1 ] = value;
+            return new BitmapNode( this.bitmap, array );
+        }
+    }
+
+    /**
+     * A node holding entries whose keys have the same full hash.
+     */
+    private static class CollisionNode extends Node {
+        private final int hash;
+        private final Object[] array;
+
+        private CollisionNode( int hash, Object[] array ) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf( Object key ) {
+            for ( int i = 0; i < this.array.length; i += 2 ) {
+                if ( this.array[ i ].equals( key ) ) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find( int hash, Object key, int shift ) {
+            int i = hash == this.hash ? indexOf( key ) : -1;
+            return i >= 0 ? this.array[ i + 1 ] : NOT_FOUND;
+        }
+
+        @Override
+        Node plus( int hash, Object key, Object value, int shift, boolean[] added ) {
+            if ( hash != this.hash ) {
+                // Push this node down one level under a node that can tell the hashes apart.
+                return new BitmapNode( BitmapNode.bit( this.hash, shift ), new Object[]{ null, this } )
+                        .plus( hash, key, value, shift, added );
+            }
+
+            int i = indexOf( key );
+            if ( i >= 0 ) {
+                if ( this.array[ i + 1 ] == value ) {
+                    return this;
+                }
+                Object[] array = this.array.clone();
+                array[ i + 1 ] = value;
+                return new CollisionNode( hash, array );
+            }
+
+            Object[] array = Arrays.copyOf( this.array, this.array.length + 2 );
+            array[ this.array.length ] = key;
+            array[ this.array.length + 1 ] = value;
+            added[ 0 ] = true;
+            return new CollisionNode( hash, array );
+        }
+
+        @Override
+        Node minus( int hash, Object key, int shift ) {
+            int i = hash == this.hash ? indexOf( key ) : -1;
+            if ( i < 0 ) {
+                return this;
+            }
+            if ( this.array.length == 2 ) {
+                return null;
+            }
+            Object[] array = new Object[ this.array.length - 2 ];
+            System.arraycopy( this.array, 0, array, 0, i );
+            System.arraycopy( this.array, i + 2, array, i, this.array.length - i - 2 );
+            return new CollisionNode( hash, array );
+        }
+
+        @Override
+        void collect( List<Map.Entry<Object, Object>> entries ) {
+            for ( int i = 0; i < this.array.length; i += 2 ) {
+                entries.add( new AbstractMap.SimpleImmutableEntry<>( this.array[ i ], this.array[ i + 1 ] ) );
+            }
+        }
+    }
+
+    /** The empty map. */
+    @SuppressWarnings( "rawtypes" )
+    private static final PersistentMap EMPTY = new PersistentMap<>( null, 0 );
+
+    //
+    // Private Members
+    //
+
+    /** The root of the trie or null if empty. */
+    private final Node root;
+
+    private final int size;
+
+    /** The entries, produced when first iterated. */
+    private volatile Set<Map.Entry<K, V>> entries;
+
+    //
+    // Constructors
+    //
+
+    private PersistentMap( Node root, int size ) {
+        this.root = root;
+        this.size = size;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the empty map.
+     */
+    @SuppressWarnings( "unchecked" )
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Returns a node holding two entries of different keys.
+     */
+    private static Node node( int shift, Object key1, Object value1, int hash2, Object key2, Object value2 ) {
+        int hash1 = hash( key1 );
+        if ( hash1 == hash2 ) {
+            return new CollisionNode( hash1, new Object[]{ key1, value1, key2, value2 } );
+        }
+        boolean[] added = new boolean[ 1 ];
+        return new BitmapNode( 0, new Object[ 0 ] )
+                .plus( hash1, key1, value1, shift, added )
+                .plus( hash2, key2, value2, shift, added );
+    }
+
+    /**
+     * Returns the spread hash of a key.
+     */
+    private static int hash( Object key ) {
+        int h = key.hashCode();
+        return h ^ ( h >>> 16 );
+    }
+
+    /**
+     * Returns a map where a key has a value.
+     *
+     * @param key The key to set. Must not be null.
+     * @param value The value to set. Must not be null.
+     */
+    PersistentMap<K, V> plus( K key, V value ) {
+        boolean[] added = new boolean[ 1 ];
+        int hash = hash( key );
+        Node root = this.root != null ?
+                this.root.plus( hash, key, value, 0, added ) :
+                new BitmapNode( BitmapNode.bit( hash, 0 ), new Object[]{ key, value } );
+        if ( this.root == null ) {
+            added[ 0 ] = true;
+        }
+        return root == this.root ? this : new PersistentMap<>( root, added[ 0 ] ? this.size + 1 : this.size );
+    }
+
+    /**
+     * Returns a map without a key.
+     *
+     * @param key The key to remove.
+     */
+    PersistentMap<K, V> minus( Object key ) {
+        if ( this.root == null || key == null ) {
+            return this;
+        }
+        Node root = this.root.minus( hash( key ), key, 0 );
+        if ( root == this.root ) {
+            return this;
+        }
+        return root == null ? empty() : new PersistentMap<>( root, this.size - 1 );
+    }
+
+    @Override
+    @SuppressWarnings( "unchecked" )
+    public V get( Object key ) {
+        if ( this.root == null || key == null ) {
+            return null;
+        }
+        Object value = this.root.find( hash( key ), key, 0 );
+        return value != NOT_FOUND ? (V) value : null;
+    }
+
+    @Override
+    public V getOrDefault( Object key, V defaultValue ) {
+        V value = get( key );
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public boolean containsKey( Object key ) {
+        return get( key ) != null;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> entries = this.entries;
+        if ( entries == null ) {
+            List collected = new ArrayList<>( this.size );
+            if ( this.root != null ) {
+                this.root.collect( collected );
+            }
+            List<Map.Entry<K, V>> list = Collections.unmodifiableList( collected );
+            this.entries = entries = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return list.iterator();
+                }
+
+                @Override
+                public int size() {
+                    return list.size();
+                }
+            };
+        }
+        return entries;
+    }
+}
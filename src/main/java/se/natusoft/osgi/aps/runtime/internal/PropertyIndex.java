@@ -0,0 +1,224 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import se.natusoft.osgi.aps.runtime.OTRServiceRegistration;
+
+import java.lang.reflect.Array;
+import java.util.*;
+
+/**
+ * An immutable index of the registrations having a specific service property, by value of the property.
+ *
+ * Only String values are indexed by value, since that is what an equality term of a filter compares
+ * exactly. Registrations having other types of values are kept aside and are always candidates, letting
+ * the filter decide. All registration arrays are sorted with the best ranked first.
+ */
+class PropertyIndex {
+
+    //
+    // Constants
+    //
+
+    private static final OTRServiceRegistration[] NO_REGISTRATIONS = new OTRServiceRegistration[0];
+
+    //
+    // Private Members
+    //
+
+    /** The name of the indexed property. */
+    private String key;
+
+    /** Registrations by String value of the property. Shares structure with the indexes it was made from. */
+    private PersistentMap<String, OTRServiceRegistration[]> byValue;
+
+    /** Registrations having values of the property that are not indexed by value. */
+    private OTRServiceRegistration[] other;
+
+    /** All registrations having the property. Produced when first needed. */
+    private volatile OTRServiceRegistration[] present;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new empty PropertyIndex.
+     *
+     * @param key The name of the property to index.
+     */
+    PropertyIndex( String key ) {
+        this( key, PersistentMap.empty(), NO_REGISTRATIONS );
+    }
+
+    private PropertyIndex( String key, PersistentMap<String, OTRServiceRegistration[]> byValue,
+                           OTRServiceRegistration[] other ) {
+        this.key = key;
+        this.byValue = byValue;
+        this.other = other;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the name of the indexed property.
+     */
+    String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Returns a new index with a registration added under its current value of the property.
+     *
+     * @param registration The registration to add.
+     * @param order The ranking order to keep.
+     */
+    PropertyIndex with( OTRServiceRegistration registration, Comparator<OTRServiceRegistration> order ) {
+        Object value = RegistrySnapshot.property( registration, this.key );
+        if ( value == null ) {
+            return this;
+        }
+
+        Set<String> values = new HashSet<>();
+        boolean indexable = values( value, values );
+
+        PersistentMap<String, OTRServiceRegistration[]> byValue = this.byValue;
+        for ( String stringValue : values ) {
+            byValue = byValue.plus( stringValue, RegistrySnapshot.insert( byValue.get( stringValue ), registration, order ) );
+        }
+
+        return new PropertyIndex( this.key, byValue,
+                indexable ? this.other : RegistrySnapshot.insert( this.other, registration, order ) );
+    }
+
+    /**
+     * Returns a new index without a registration.
+     *
+     * @param registration The registration to remove.
+     * @param value The value of the property the registration was added with.
+     */
+    PropertyIndex without( OTRServiceRegistration registration, Object value ) {
+        if ( value == null ) {
+            return this;
+        }
+
+        Set<String> values = new HashSet<>();
+        boolean indexable = values( value, values );
+
+        PersistentMap<String, OTRServiceRegistration[]> byValue = this.byValue;
+        for ( String stringValue : values ) {
+            OTRServiceRegistration[] regs = RegistrySnapshot.remove( byValue.get( stringValue ), registration );
+            byValue = regs.length == 0 ? byValue.minus( stringValue ) : byValue.plus( stringValue, regs );
+        }
+
+        return new PropertyIndex( this.key, byValue,
+                indexable ? this.other : RegistrySnapshot.remove( this.other, registration ) );
+    }
+
+    /**
+     * Returns the registrations that might have the specified value of the property, with the best ranked first.
+     * The returned array must not be modified!
+     *
+     * @param value The value to get registrations for.
+     * @param order The ranking order of the registrations.
+     */
+    OTRServiceRegistration[] getCandidates( String value, Comparator<OTRServiceRegistration> order ) {
+        OTRServiceRegistration[] regs = this.byValue.getOrDefault( value, NO_REGISTRATIONS );
+        if ( this.other.length == 0 ) {
+            return regs;
+        }
+        if ( regs.length == 0 ) {
+            return this.other;
+        }
+
+        // Merge the two sorted arrays.
+        OTRServiceRegistration[] merged = new OTRServiceRegistration[ regs.length + this.other.length ];
+        int i = 0, j = 0, k = 0;
+        while ( i < regs.length && j < this.other.length ) {
+            merged[ k++ ] = order.compare( regs[ i ], this.other[ j ] ) <= 0 ? regs[ i++ ] : this.other[ j++ ];
+        }
+        while ( i < regs.length ) {
+            merged[ k++ ] = regs[ i++ ];
+        }
+        while ( j < this.other.length ) {
+            merged[ k++ ] = this.other[ j++ ];
+        }
+
+        return merged;
+    }
+
+    /**
+     * Returns the registrations having the property, with the best ranked first. The returned array must not be
+     * modified!
+     *
+     * @param order The ranking order of the registrations.
+     */
+    OTRServiceRegistration[] getPresent( Comparator<OTRServiceRegistration> order ) {
+        OTRServiceRegistration[] present = this.present;
+        if ( present == null ) {
+            // A registration having several values is found under each of them.
+            Set<OTRServiceRegistration> regs = Collections.newSetFromMap( new IdentityHashMap<>() );
+            for ( OTRServiceRegistration[] valueRegs : this.byValue.values() ) {
+                regs.addAll( Arrays.asList( valueRegs ) );
+            }
+            regs.addAll( Arrays.asList( this.other ) );
+            present = regs.toArray( NO_REGISTRATIONS );
+            Arrays.sort( present, order );
+            this.present = present;
+        }
+
+        return present;
+    }
+
+    /**
+     * Collects the String values of a property value, which can be an array or a collection of values.
+     *
+     * @param value The property value to collect values of.
+     * @param values Receives the String values.
+     *
+     * @return false if the value has parts that are not Strings.
+     */
+    private static boolean values( Object value, Set<String> values ) {
+        if ( value instanceof String ) {
+            values.add( (String) value );
+            return true;
+        }
+        if ( value instanceof Object[] ) {
+            boolean indexable = true;
+            for ( Object part : (Object[]) value ) {
+                if ( part != null ) {
+                    indexable &= values( part, values );
+                }
+            }
+            return indexable;
+        }
+        if ( value instanceof Collection ) {
+            boolean indexable = true;
+            for ( Object part : (Collection) value ) {
+                if ( part != null ) {
+                    indexable &= values( part, values );
+                }
+            }
+            return indexable;
+        }
+
+        return value.getClass().isArray() && Array.getLength( value ) == 0;
+    }
+}
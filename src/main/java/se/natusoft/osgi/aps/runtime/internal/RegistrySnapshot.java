@@ -0,0 +1,460 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import se.natusoft.osgi.aps.runtime.OTRServiceReference;
+import se.natusoft.osgi.aps.runtime.OTRServiceRegistration;
+
+import java.util.*;
+
+/**
+ * An immutable view of all registered services at one point in time.
+ *
+ * The ServiceRegistry publishes a new snapshot for every change, and readers use the latest
+ * published snapshot without any locking. A snapshot never changes once published, so it can
+ * also be held on to by a test wanting a consistent view of the registry, which gets it through
+ * an OTRRegistrySnapshot.
+ *
+ * Only the structure of the registry is captured. The properties of a service are read from
+ * its reference, but the values of properties declared as indexed are also captured in property
+ * indexes, which are used to answer filter queries without evaluating the filter against every
+ * service.
+ *
+ * The maps of a snapshot are PersistentMaps, so a new snapshot shares all but the changed entries with
+ * the one it was made from, and publishing it does not cost more with more registered services.
+ *
+ * For internal use.
+ */
+public class RegistrySnapshot {
+
+    //
+    // Constants
+    //
+
+    private static final OTRServiceRegistration[] NO_REGISTRATIONS = new OTRServiceRegistration[0];
+
+    /** The snapshot of an empty registry. */
+    static final RegistrySnapshot EMPTY =
+            new RegistrySnapshot( 0, PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(), 0 );
+
+    //
+    // Private Members
+    //
+
+    /** The version of this snapshot. Each published snapshot has a higher version than the previous. */
+    private long version;
+
+    /** Registrations by objectClass, sorted with the best ranked first. */
+    private PersistentMap<String, OTRServiceRegistration[]> byObjectClass;
+
+    /** Registrations by registering bundle, in registration order. */
+    private PersistentMap<Bundle, OTRServiceRegistration[]> byBundle;
+
+    /** Indexes of the properties declared as indexed, by lower case property name. */
+    private PersistentMap<String, PropertyIndex> byProperty;
+
+    /** The number of registrations. */
+    private int size;
+
+    /** All registrations sorted with the best ranked first. Produced when first needed. */
+    private volatile OTRServiceRegistration[] all;
+
+    //
+    // Constructors
+    //
+
+    private RegistrySnapshot( long version, PersistentMap<String, OTRServiceRegistration[]> byObjectClass,
+                              PersistentMap<Bundle, OTRServiceRegistration[]> byBundle,
+                              PersistentMap<String, PropertyIndex> byProperty, int size ) {
+        this.version = version;
+        this.byObjectClass = byObjectClass;
+        this.byBundle = byBundle;
+        this.byProperty = byProperty;
+        this.size = size;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns a new snapshot with registrations added.
+     *
+     * @param registrations The registrations to add.
+     * @param order The ranking order to keep per objectClass.
+     */
+    RegistrySnapshot withRegistered( Collection<OTRServiceRegistration> registrations,
+                                     Comparator<OTRServiceRegistration> order ) {
+        PersistentMap<String, OTRServiceRegistration[]> byObjectClass = this.byObjectClass;
+        PersistentMap<Bundle, OTRServiceRegistration[]> byBundle = this.byBundle;
+        PersistentMap<String, PropertyIndex> byProperty = this.byProperty;
+
+        for ( OTRServiceRegistration registration : registrations ) {
+            for ( Map.Entry<String, PropertyIndex> entry : byProperty.entrySet() ) {
+                byProperty = byProperty.plus( entry.getKey(), entry.getValue().with( registration, order ) );
+            }
+
+            for ( String objectClass : registration.getObjectClasses() ) {
+                byObjectClass = byObjectClass.plus( objectClass,
+                        insert( byObjectClass.get( objectClass ), registration, order ) );
+            }
+
+            OTRServiceRegistration[] bundleRegs = byBundle.getOrDefault( registration.getBundle(), NO_REGISTRATIONS );
+            OTRServiceRegistration[] newBundleRegs = Arrays.copyOf( bundleRegs, bundleRegs.length + 1 );
+            newBundleRegs[ bundleRegs.length ] = registration;
+            byBundle = byBundle.plus( registration.getBundle(), newBundleRegs );
+        }
+
+        return new RegistrySnapshot( this.version + 1, byObjectClass, byBundle, byProperty,
+                this.size + registrations.size() );
+    }
+
+    /**
+     * Returns a new snapshot with a registration removed.
+     *
+     * @param registration The registration to remove.
+     */
+    RegistrySnapshot withUnregistered( OTRServiceRegistration registration ) {
+        PersistentMap<String, OTRServiceRegistration[]> byObjectClass = this.byObjectClass;
+        for ( String objectClass : registration.getObjectClasses() ) {
+            OTRServiceRegistration[] regs = remove( byObjectClass.get( objectClass ), registration );
+            byObjectClass = regs.length == 0 ? byObjectClass.minus( objectClass ) : byObjectClass.plus( objectClass, regs );
+        }
+
+        OTRServiceRegistration[] bundleRegs = remove( this.byBundle.get( registration.getBundle() ), registration );
+        PersistentMap<Bundle, OTRServiceRegistration[]> byBundle = bundleRegs.length == 0 ?
+                this.byBundle.minus( registration.getBundle() ) : this.byBundle.plus( registration.getBundle(), bundleRegs );
+
+        PersistentMap<String, PropertyIndex> byProperty = this.byProperty;
+        for ( Map.Entry<String, PropertyIndex> entry : byProperty.entrySet() ) {
+            PropertyIndex index = entry.getValue();
+            byProperty = byProperty.plus( entry.getKey(),
+                    index.without( registration, property( registration, index.getKey() ) ) );
+        }
+
+        return new RegistrySnapshot( this.version + 1, byObjectClass, byBundle, byProperty, this.size - 1 );
+    }
+
+    /**
+     * Returns a new snapshot where a registration whose properties have changed is sorted and indexed again. Only
+     * what the change affects is updated, so a change of unindexed properties not affecting the ranking only
+     * produces a new version.
+     *
+     * @param registration The registration whose properties have changed.
+     * @param oldProperties The properties before the change.
+     * @param order The ranking order to keep.
+     */
+    RegistrySnapshot withModified( OTRServiceRegistration registration, ServiceProperties oldProperties,
+                                   Comparator<OTRServiceRegistration> order ) {
+        boolean rankingChanged = !Objects.equals( oldProperties.get( Constants.SERVICE_RANKING ),
+                property( registration, Constants.SERVICE_RANKING ) );
+
+        PersistentMap<String, OTRServiceRegistration[]> byObjectClass = this.byObjectClass;
+        if ( rankingChanged ) {
+            for ( String objectClass : registration.getObjectClasses() ) {
+                OTRServiceRegistration[] regs = byObjectClass.get( objectClass );
+                if ( regs != null ) {
+                    byObjectClass = byObjectClass.plus( objectClass, insert( remove( regs, registration ), registration, order ) );
+                }
+            }
+        }
+
+        PersistentMap<String, PropertyIndex> byProperty = this.byProperty;
+        for ( Map.Entry<String, PropertyIndex> entry : this.byProperty.entrySet() ) {
+            PropertyIndex index = entry.getValue();
+            Object oldValue = oldProperties.get( index.getKey() );
+            if ( rankingChanged || !Objects.deepEquals( oldValue, property( registration, index.getKey() ) ) ) {
+                byProperty = byProperty.plus( entry.getKey(), index.without( registration, oldValue ).with( registration, order ) );
+            }
+        }
+
+        return new RegistrySnapshot( this.version + 1, byObjectClass, this.byBundle, byProperty, this.size );
+    }
+
+    /**
+     * Returns a new snapshot where a property is indexed.
+     *
+     * @param key The name of the property to index.
+     * @param order The ranking order to keep.
+     */
+    RegistrySnapshot withIndexedProperty( String key, Comparator<OTRServiceRegistration> order ) {
+        PropertyIndex index = new PropertyIndex( key );
+        for ( OTRServiceRegistration registration : getRegistrations() ) {
+            index = index.with( registration, order );
+        }
+
+        return new RegistrySnapshot( this.version + 1, this.byObjectClass, this.byBundle,
+                this.byProperty.plus( key.toLowerCase( Locale.ROOT ), index ), this.size );
+    }
+
+    /**
+     * Returns the names of the indexed properties.
+     */
+    public Set<String> getIndexedProperties() {
+        Set<String> keys = new LinkedHashSet<>();
+        for ( PropertyIndex index : this.byProperty.values() ) {
+            keys.add( index.getKey() );
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the registrations that might match a query, with the best ranked first. These are all registered under
+     * the service API class if specified, but still need to be matched against the filter. The indexes are used to
+     * pick the smallest set of candidates that equality and presence terms of the filter allows. The returned
+     * array must not be modified!
+     *
+     * @param clazz The service API class of the query. Can be null.
+     * @param filter The filter of the query. Can be null.
+     * @param order The ranking order of the registrations.
+     */
+    OTRServiceRegistration[] getCandidates( String clazz, FilterExpression filter, Comparator<OTRServiceRegistration> order ) {
+        OTRServiceRegistration[] candidates = clazz != null ? getRegistrations( clazz ) : null;
+
+        if ( filter != null ) {
+            if ( filter.getOp() == FilterExpression.AND ) {
+                for ( FilterExpression term : filter.getOperands() ) {
+                    candidates = smallest( candidates, getCandidates( term, order ) );
+                }
+            }
+            else {
+                candidates = smallest( candidates, getCandidates( filter, order ) );
+            }
+        }
+
+        if ( candidates == null ) {
+            return getRegistrations();
+        }
+
+        if ( clazz != null && candidates != getRegistrations( clazz ) ) {
+            List<OTRServiceRegistration> registeredUnder = new ArrayList<>( candidates.length );
+            for ( OTRServiceRegistration candidate : candidates ) {
+                if ( Arrays.asList( candidate.getObjectClasses() ).contains( clazz ) ) {
+                    registeredUnder.add( candidate );
+                }
+            }
+            candidates = registeredUnder.toArray( NO_REGISTRATIONS );
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Returns the registrations that might match a single filter term, or null if the term can not be answered by
+     * an index.
+     *
+     * @param term The term to get candidates for.
+     * @param order The ranking order of the registrations.
+     */
+    private OTRServiceRegistration[] getCandidates( FilterExpression term, Comparator<OTRServiceRegistration> order ) {
+        if ( term.getOp() != FilterExpression.EQUAL && term.getOp() != FilterExpression.PRESENT ) {
+            return null;
+        }
+
+        String key = term.getAttr().toLowerCase( Locale.ROOT );
+        if ( term.getOp() == FilterExpression.EQUAL && key.equals( Constants.OBJECTCLASS.toLowerCase( Locale.ROOT ) ) ) {
+            return getRegistrations( term.getValue() );
+        }
+
+        PropertyIndex index = this.byProperty.get( key );
+        if ( index == null ) {
+            return null;
+        }
+
+        return term.getOp() == FilterExpression.EQUAL ? index.getCandidates( term.getValue(), order ) : index.getPresent( order );
+    }
+
+    /**
+     * Returns the smaller of two candidate arrays where null means all registrations.
+     */
+    private static OTRServiceRegistration[] smallest( OTRServiceRegistration[] regs1, OTRServiceRegistration[] regs2 ) {
+        if ( regs1 == null ) {
+            return regs2;
+        }
+        if ( regs2 == null ) {
+            return regs1;
+        }
+        return regs2.length < regs1.length ? regs2 : regs1;
+    }
+
+    /**
+     * Returns a copy of an array with a registration inserted at its ranking position.
+     *
+     * @param regs The array to insert into. Can be null.
+     * @param registration The registration to insert.
+     * @param order The order of the array.
+     */
+    static OTRServiceRegistration[] insert( OTRServiceRegistration[] regs, OTRServiceRegistration registration,
+                                                    Comparator<OTRServiceRegistration> order ) {
+        if ( regs == null ) {
+            return new OTRServiceRegistration[]{ registration };
+        }
+        int pos = Arrays.binarySearch( regs, registration, order );
+        if ( pos < 0 ) {
+            pos = -pos - 1;
+        }
+        OTRServiceRegistration[] newRegs = new OTRServiceRegistration[ regs.length + 1 ];
+        System.arraycopy( regs, 0, newRegs, 0, pos );
+        newRegs[ pos ] = registration;
+        System.arraycopy( regs, pos, newRegs, pos + 1, regs.length - pos );
+
+        return newRegs;
+    }
+
+    /**
+     * Returns a copy of an array without a registration.
+     *
+     * @param regs The array to remove from. Can be null.
+     * @param registration The registration to remove.
+     */
+    static OTRServiceRegistration[] remove( OTRServiceRegistration[] regs, OTRServiceRegistration registration ) {
+        if ( regs == null ) {
+            return NO_REGISTRATIONS;
+        }
+        for ( int i = 0; i < regs.length; i++ ) {
+            if ( regs[ i ] == registration ) {
+                OTRServiceRegistration[] newRegs = new OTRServiceRegistration[ regs.length - 1 ];
+                System.arraycopy( regs, 0, newRegs, 0, i );
+                System.arraycopy( regs, i + 1, newRegs, i, regs.length - i - 1 );
+                return newRegs;
+            }
+        }
+        return regs;
+    }
+
+    /**
+     * Returns the version of this snapshot.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Returns the registrations of an objectClass with the best ranked first. The returned array must not be modified!
+     *
+     * @param objectClass The objectClass to get registrations for.
+     */
+    OTRServiceRegistration[] getRegistrations( String objectClass ) {
+        return this.byObjectClass.getOrDefault( objectClass, NO_REGISTRATIONS );
+    }
+
+    /**
+     * Returns all registrations with the best ranked first. The returned array must not be modified!
+     */
+    OTRServiceRegistration[] getRegistrations() {
+        OTRServiceRegistration[] all = this.all;
+        if ( all == null ) {
+            List<OTRServiceRegistration> regs = new ArrayList<>();
+            for ( OTRServiceRegistration[] bundleRegs : this.byBundle.values() ) {
+                regs.addAll( Arrays.asList( bundleRegs ) );
+            }
+            regs.sort( ServiceRegistry.BEST_FIRST );
+            this.all = all = regs.toArray( NO_REGISTRATIONS );
+        }
+
+        return all;
+    }
+
+    /**
+     * Returns the registrations of a bundle. The returned array must not be modified!
+     *
+     * @param bundle The bundle to get registrations for.
+     */
+    OTRServiceRegistration[] getRegistrations( Bundle bundle ) {
+        return this.byBundle.getOrDefault( bundle, NO_REGISTRATIONS );
+    }
+
+    /**
+     * Returns the objectClasses having registered services.
+     */
+    public Set<String> getObjectClasses() {
+        return Collections.unmodifiableSet( this.byObjectClass.keySet() );
+    }
+
+    /**
+     * Returns the references of the services of an objectClass, with the best ranked first.
+     *
+     * @param objectClass The objectClass to get references for.
+     */
+    public ServiceReference[] getServiceReferences( String objectClass ) {
+        return toReferences( getRegistrations( objectClass ) );
+    }
+
+    /**
+     * Returns the references of all services, with the best ranked first.
+     */
+    public ServiceReference[] getServiceReferences() {
+        return toReferences( getRegistrations() );
+    }
+
+    /**
+     * Returns the references of the services registered by a bundle.
+     *
+     * @param bundle The bundle to get references for.
+     */
+    public ServiceReference[] getRegisteredServices( Bundle bundle ) {
+        return toReferences( getRegistrations( bundle ) );
+    }
+
+    /**
+     * Returns true if the registration is part of this snapshot.
+     *
+     * @param registration The registration to check.
+     */
+    public boolean contains( OTRServiceRegistration registration ) {
+        for ( OTRServiceRegistration reg : getRegistrations( registration.getBundle() ) ) {
+            if ( reg == registration ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of registered services.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns a property of a registered service, without the copying of array values done by getProperty().
+     *
+     * @param registration The registration of the service.
+     * @param key The key of the property.
+     */
+    static Object property( OTRServiceRegistration registration, String key ) {
+        return ( (OTRServiceReference) registration.getReference() ).getServiceProperties().get( key );
+    }
+
+    /**
+     * Returns the references of an array of registrations.
+     *
+     * @param regs The registrations to get references of.
+     */
+    static ServiceReference[] toReferences( OTRServiceRegistration[] regs ) {
+        ServiceReference[] refs = new ServiceReference[ regs.length ];
+        for ( int i = 0; i < regs.length; i++ ) {
+            refs[ i ] = regs[ i ].getReference();
+        }
+        return refs;
+    }
+}
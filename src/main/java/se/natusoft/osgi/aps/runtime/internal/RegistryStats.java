@@ -0,0 +1,260 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.Bundle;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the operations of a ServiceRegistry.
+ *
+ * The registry only records to this while instrumentation is enabled, and otherwise the cost is one
+ * volatile read per operation. Counters are LongAdders and histograms record without locking, so
+ * recording does not serialize threads using the registry. Tests read these through an
+ * OTRRegistryStats.
+ *
+ * For internal use.
+ */
+public class RegistryStats {
+
+    //
+    // Private Members
+    //
+
+    private LongAdder registrations = new LongAdder();
+    private LongAdder unregistrations = new LongAdder();
+    private LongAdder modifications = new LongAdder();
+    private LongAdder lookups = new LongAdder();
+    private LongAdder filterEvaluations = new LongAdder();
+
+    private LatencyHistogram registrationLatency = new LatencyHistogram();
+    private LatencyHistogram unregistrationLatency = new LatencyHistogram();
+    private LatencyHistogram modificationLatency = new LatencyHistogram();
+    private LatencyHistogram lookupLatency = new LatencyHistogram();
+    private LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+    /** Listener callback latencies by listener class. */
+    private Map<Class<?>, LatencyHistogram> dispatchLatencyByListener = new ConcurrentHashMap<>();
+
+    /** Listener callback latencies by the bundle that added the listener. */
+    private Map<Bundle, LatencyHistogram> dispatchLatencyByBundle = new ConcurrentHashMap<>();
+
+    //
+    // Methods
+    //
+
+    /**
+     * Records registrations of services.
+     *
+     * @param count The number of registered services.
+     * @param nanos The time it took including delivering synchronous events.
+     */
+    void registered( int count, long nanos ) {
+        this.registrations.add( count );
+        this.registrationLatency.record( nanos );
+    }
+
+    /**
+     * Records an unregistration of a service.
+     *
+     * @param nanos The time it took including delivering synchronous events.
+     */
+    void unregistered( long nanos ) {
+        this.unregistrations.increment();
+        this.unregistrationLatency.record( nanos );
+    }
+
+    /**
+     * Records a modification of the properties of a service.
+     *
+     * @param nanos The time it took including delivering synchronous events.
+     */
+    void modified( long nanos ) {
+        this.modifications.increment();
+        this.modificationLatency.record( nanos );
+    }
+
+    /**
+     * Records a service lookup.
+     *
+     * @param nanos The time it took.
+     */
+    void lookedUp( long nanos ) {
+        this.lookups.increment();
+        this.lookupLatency.record( nanos );
+    }
+
+    /**
+     * Records evaluations of filters.
+     *
+     * @param count The number of evaluations.
+     */
+    void filtersEvaluated( int count ) {
+        this.filterEvaluations.add( count );
+    }
+
+    /**
+     * Records a listener callback.
+     *
+     * @param listener The called listener.
+     * @param bundle The bundle that added the listener. Can be null.
+     * @param nanos The time the callback took.
+     */
+    void dispatched( Object listener, Bundle bundle, long nanos ) {
+        this.dispatchLatency.record( nanos );
+        this.dispatchLatencyByListener.computeIfAbsent( listener.getClass(), k -> new LatencyHistogram() ).record( nanos );
+        if ( bundle != null ) {
+            this.dispatchLatencyByBundle.computeIfAbsent( bundle, k -> new LatencyHistogram() ).record( nanos );
+        }
+    }
+
+    /**
+     * Returns the number of registered services.
+     */
+    public long getRegistrations() {
+        return this.registrations.sum();
+    }
+
+    /**
+     * Returns the number of unregistered services.
+     */
+    public long getUnregistrations() {
+        return this.unregistrations.sum();
+    }
+
+    /**
+     * Returns the number of modifications of service properties.
+     */
+    public long getModifications() {
+        return this.modifications.sum();
+    }
+
+    /**
+     * Returns the number of service lookups.
+     */
+    public long getLookups() {
+        return this.lookups.sum();
+    }
+
+    /**
+     * Returns the number of filter evaluations, by both lookups and event delivery.
+     */
+    public long getFilterEvaluations() {
+        return this.filterEvaluations.sum();
+    }
+
+    /**
+     * Returns the number of listener callbacks.
+     */
+    public long getDispatches() {
+        return this.dispatchLatency.getCount();
+    }
+
+    /**
+     * Returns the latencies of registrations. A batch of services counts as one.
+     */
+    public LatencyHistogram getRegistrationLatency() {
+        return this.registrationLatency;
+    }
+
+    /**
+     * Returns the latencies of unregistrations.
+     */
+    public LatencyHistogram getUnregistrationLatency() {
+        return this.unregistrationLatency;
+    }
+
+    /**
+     * Returns the latencies of modifications of service properties.
+     */
+    public LatencyHistogram getModificationLatency() {
+        return this.modificationLatency;
+    }
+
+    /**
+     * Returns the latencies of service lookups.
+     */
+    public LatencyHistogram getLookupLatency() {
+        return this.lookupLatency;
+    }
+
+    /**
+     * Returns the latencies of all listener callbacks.
+     */
+    public LatencyHistogram getDispatchLatency() {
+        return this.dispatchLatency;
+    }
+
+    /**
+     * Returns the latencies of the callbacks of listeners of a class. An empty histogram is returned if no such
+     * listener has been called.
+     *
+     * @param listenerClass The class of the listeners.
+     */
+    public LatencyHistogram getDispatchLatency( Class<?> listenerClass ) {
+        LatencyHistogram histogram = this.dispatchLatencyByListener.get( listenerClass );
+        return histogram != null ? histogram : new LatencyHistogram();
+    }
+
+    /**
+     * Returns the latencies of the callbacks of the listeners added by a bundle. An empty histogram is returned if
+     * no such listener has been called.
+     *
+     * @param bundle The bundle that added the listeners.
+     */
+    public LatencyHistogram getDispatchLatency( Bundle bundle ) {
+        LatencyHistogram histogram = this.dispatchLatencyByBundle.get( bundle );
+        return histogram != null ? histogram : new LatencyHistogram();
+    }
+
+    /**
+     * Returns the callback latencies of all called listener classes.
+     */
+    public Map<Class<?>, LatencyHistogram> getDispatchLatencyByListener() {
+        return Collections.unmodifiableMap( this.dispatchLatencyByListener );
+    }
+
+    /**
+     * Returns the callback latencies of the listeners of all bundles.
+     */
+    public Map<Bundle, LatencyHistogram> getDispatchLatencyByBundle() {
+        return Collections.unmodifiableMap( this.dispatchLatencyByBundle );
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append( "registrations: " ).append( getRegistrations() ).append( " (" ).append( this.registrationLatency ).append( ")\n" );
+        sb.append( "unregistrations: " ).append( getUnregistrations() ).append( " (" ).append( this.unregistrationLatency ).append( ")\n" );
+        sb.append( "modifications: " ).append( getModifications() ).append( " (" ).append( this.modificationLatency ).append( ")\n" );
+        sb.append( "lookups: " ).append( getLookups() ).append( " (" ).append( this.lookupLatency ).append( ")\n" );
+        sb.append( "filter evaluations: " ).append( getFilterEvaluations() ).append( "\n" );
+        sb.append( "listener callbacks: " ).append( getDispatches() ).append( " (" ).append( this.dispatchLatency ).append( ")\n" );
+        for ( Map.Entry<Class<?>, LatencyHistogram> entry : this.dispatchLatencyByListener.entrySet() ) {
+            sb.append( "    " ).append( entry.getKey().getName() ).append( ": " ).append( entry.getValue() ).append( "\n" );
+        }
+        for ( Map.Entry<Bundle, LatencyHistogram> entry : this.dispatchLatencyByBundle.entrySet() ) {
+            sb.append( "    bundle " ).append( entry.getKey().getSymbolicName() ).append( ": " ).append( entry.getValue() ).append( "\n" );
+        }
+        return sb.toString();
+    }
+}
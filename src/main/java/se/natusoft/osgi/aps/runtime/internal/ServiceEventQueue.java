@@ -0,0 +1,144 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the event deliveries of one service registration in order.
+ *
+ * Deliveries are added while the registry is locked, which gives them their order, and are then
+ * run by deliver() after the lock have been released. Only one thread at a time runs the deliveries
+ * of a queue. If another thread is already delivering, that thread will also run the deliveries
+ * added by the calling thread, and deliver(...) with the number of a delivery waits for it to be run.
+ * A delivery added by a listener while being called is run when the current delivery is done.
+ */
+public class ServiceEventQueue {
+
+    //
+    // Private Members
+    //
+
+    /** The deliveries not yet run. */
+    private Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    /** The thread running deliveries, or null if none is. */
+    private AtomicReference<Thread> deliveringThread = new AtomicReference<>();
+
+    /** The number of deliveries added. Guarded by this queue. */
+    private long added = 0;
+
+    /** The number of deliveries run. Only written by the delivering thread. */
+    private volatile long delivered = 0;
+
+    /** The number of threads waiting in deliver(...). */
+    private volatile int waiters = 0;
+
+    //
+    // Methods
+    //
+
+    /**
+     * Adds a delivery to run.
+     *
+     * @param delivery The delivery to add.
+     *
+     * @return the number of the delivery, to pass to deliver(...).
+     */
+    synchronized long add( Runnable delivery ) {
+        this.pending.add( delivery );
+        return ++this.added;
+    }
+
+    /**
+     * Returns the number of the last added delivery.
+     */
+    synchronized long getAdded() {
+        return this.added;
+    }
+
+    /**
+     * Runs all pending deliveries unless another thread is already doing so.
+     */
+    void deliver() {
+        Thread current = Thread.currentThread();
+        while ( !this.pending.isEmpty() ) {
+            if ( !this.deliveringThread.compareAndSet( null, current ) ) {
+                return;
+            }
+            try {
+                Runnable delivery;
+                while ( ( delivery = this.pending.poll() ) != null ) {
+                    try {
+                        delivery.run();
+                    }
+                    finally {
+                        //noinspection NonAtomicOperationOnVolatileField Only the delivering thread writes this.
+                        ++this.delivered;
+                        if ( this.waiters > 0 ) {
+                            synchronized ( this ) {
+                                notifyAll();
+                            }
+                        }
+                    }
+                }
+            }
+            finally {
+                this.deliveringThread.set( null );
+            }
+        }
+    }
+
+    /**
+     * Runs all pending deliveries, and if another thread is already doing so, waits for that thread to have run
+     * the specified delivery and all deliveries before it. A listener of this queue calling this does not wait,
+     * since the delivery cannot be run until the listener returns.
+     *
+     * @param delivery The number of the delivery to wait for, as returned by add(...) or getAdded().
+     */
+    void deliver( long delivery ) {
+        deliver();
+
+        if ( this.delivered >= delivery || this.deliveringThread.get() == Thread.currentThread() ) {
+            return;
+        }
+
+        boolean interrupted = false;
+        synchronized ( this ) {
+            ++this.waiters;
+            try {
+                while ( this.delivered < delivery && !interrupted ) {
+                    try {
+                        wait();
+                    }
+                    catch ( InterruptedException ie ) {
+                        interrupted = true;
+                    }
+                }
+            }
+            finally {
+                --this.waiters;
+            }
+        }
+        if ( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.osgi.framework.Constants;
+
+import java.lang.reflect.Array;
+import java.util.*;
+
+/**
+ * An immutable snapshot of the properties of a service, with case insensitive keys.
+ *
+ * Keys and values are held in flat arrays together with a precomputed case insensitive hash of each key,
+ * and looking up a property neither locks nor allocates. The framework controlled 'objectClass' and
+ * 'service.id' properties are always present and can not be overridden by the registering bundle.
+ *
+ * Array and collection values are copied when the snapshot is created, so that the registering bundle
+ * changing them later does not change the snapshot or its index entries behind the registry's back.
+ *
+ * For internal use.
+ */
+public class ServiceProperties implements CompiledFilter.PropertySource {
+
+    //
+    // Private Members
+    //
+
+    /** The keys in the case they were registered with. */
+    private String[] keys;
+
+    /** The case insensitive hashes of the keys. */
+    private int[] hashes;
+
+    /** The values of the keys. */
+    private Object[] values;
+
+    //
+    // Constructors
+    //
+
+    private ServiceProperties( String[] keys, int[] hashes, Object[] values ) {
+        this.keys = keys;
+        this.hashes = hashes;
+        this.values = values;
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Creates a snapshot of the properties of a service.
+     *
+     * @param properties The properties passed by the registering bundle. Can be null.
+     * @param objectClasses The service API class names the service is registered under.
+     * @param serviceId The framework assigned id of the service.
+     *
+     * @throws IllegalArgumentException if the properties contain case variants of the same key, or a key that is
+     *                                  not a String.
+     */
+    public static ServiceProperties of( Dictionary properties, String[] objectClasses, long serviceId ) {
+        int max = 2 + ( properties != null ? properties.size() : 0 );
+        String[] keys = new String[ max ];
+        int[] hashes = new int[ max ];
+        Object[] values = new Object[ max ];
+
+        keys[ 0 ] = Constants.OBJECTCLASS;
+        hashes[ 0 ] = hash( Constants.OBJECTCLASS );
+        values[ 0 ] = objectClasses.clone();
+        keys[ 1 ] = Constants.SERVICE_ID;
+        hashes[ 1 ] = hash( Constants.SERVICE_ID );
+        values[ 1 ] = serviceId;
+        int size = 2;
+
+        if ( properties != null ) {
+            for ( Enumeration e = properties.keys(); e.hasMoreElements(); ) {
+                Object key = e.nextElement();
+                if ( !( key instanceof String ) ) {
+                    throw new IllegalArgumentException( "Service property keys must be Strings: " + key );
+                }
+                int hash = hash( (String) key );
+                int index = indexOf( keys, hashes, size, (String) key, hash );
+                if ( index == 0 || index == 1 ) {
+                    continue;
+                }
+                if ( index >= 0 ) {
+                    throw new IllegalArgumentException( "Case variants of the same service property key: " + key );
+                }
+                keys[ size ] = (String) key;
+                hashes[ size ] = hash;
+                values[ size ] = copyOf( properties.get( key ) );
+                ++size;
+            }
+        }
+
+        if ( size < max ) {
+            String[] trimmedKeys = new String[ size ];
+            int[] trimmedHashes = new int[ size ];
+            Object[] trimmedValues = new Object[ size ];
+            System.arraycopy( keys, 0, trimmedKeys, 0, size );
+            System.arraycopy( hashes, 0, trimmedHashes, 0, size );
+            System.arraycopy( values, 0, trimmedValues, 0, size );
+            keys = trimmedKeys;
+            hashes = trimmedHashes;
+            values = trimmedValues;
+        }
+
+        return new ServiceProperties( keys, hashes, values );
+    }
+
+    /**
+     * Returns a copy of an array or collection value, or the value itself for other values. Collections are
+     * copied into unmodifiable lists, which filters match the same way.
+     *
+     * @param value The value to copy.
+     */
+    public static Object copyOf( Object value ) {
+        if ( value == null ) {
+            return null;
+        }
+        if ( value.getClass().isArray() ) {
+            int length = Array.getLength( value );
+            Object copy = Array.newInstance( value.getClass().getComponentType(), length );
+            System.arraycopy( value, 0, copy, 0, length );
+            return copy;
+        }
+        if ( value instanceof Collection ) {
+            return Collections.unmodifiableList( new ArrayList<>( (Collection<?>) value ) );
+        }
+        return value;
+    }
+
+    /**
+     * Returns a case insensitive hash of a key.
+     *
+     * @param key The key to hash.
+     */
+    private static int hash( String key ) {
+        int hash = 0;
+        for ( int i = 0; i < key.length(); i++ ) {
+            hash = 31 * hash + Character.toLowerCase( Character.toUpperCase( key.charAt( i ) ) );
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the index of a key or -1 if not found.
+     */
+    private static int indexOf( String[] keys, int[] hashes, int size, String key, int hash ) {
+        for ( int i = 0; i < size; i++ ) {
+            if ( hashes[ i ] == hash && keys[ i ].equalsIgnoreCase( key ) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of a property or null if the service does not have the property.
+     *
+     * @param key The case insensitive key of the property.
+     */
+    @Override
+    public Object get( String key ) {
+        int index = indexOf( this.keys, this.hashes, this.keys.length, key, hash( key ) );
+        return index >= 0 ? this.values[ index ] : null;
+    }
+
+    /**
+     * Returns the keys of the properties, in the case they were registered with. The same array is returned
+     * on every call, and it must not be modified!
+     */
+    public String[] getKeys() {
+        return this.keys;
+    }
+
+    /**
+     * Returns the 'objectClass' property. The same array is returned on every call, and it must not be modified!
+     */
+    public String[] getObjectClasses() {
+        return (String[]) this.values[ 0 ];
+    }
+
+    /**
+     * Returns the number of properties.
+     */
+    public int size() {
+        return this.keys.length;
+    }
+}
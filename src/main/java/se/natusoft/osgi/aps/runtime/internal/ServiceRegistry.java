@@ -18,147 +18,813 @@
 package se.natusoft.osgi.aps.runtime.internal;
 
 import org.osgi.framework.*;
+import se.natusoft.osgi.aps.runtime.OTRServiceReference;
 import se.natusoft.osgi.aps.runtime.OTRServiceRegistration;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Handles all registered services for APSBundle.
+ *
+ * Registrations and unregistrations update the registry while holding its lock, but the resulting
+ * service events are delivered to listeners after the lock has been released. This so that a slow
+ * listener does not stall other registrations, and a listener calling into another thread that
+ * registers services does not deadlock. Events of one registration are always delivered in the
+ * order they happened.
+ *
+ * The registered services are held in an immutable RegistrySnapshot. Writers publish a new snapshot
+ * while holding the registry lock, and readers use the latest published snapshot without locking.
+ * Properties declared as indexed ('service.pid' by default) are indexed by value in the snapshot, and
+ * queries having equality or presence terms on such properties only evaluate their filter against
+ * the services the index returns.
+ *
+ * Listeners can also be added for asynchronous delivery, either individually or by making that the
+ * default for the registry. Such a listener gets its own mailbox that is drained in order by a shared
+ * executor, so the registering thread does not wait for the listener.
+ *
+ * The use of each service by each bundle is counted, which is what getUsingBundles(), getServicesInUse()
+ * and ungetService() are answered from. getService() only adds to a striped counter, so bundles getting
+ * the same service from many threads do not serialize on it. A service is only kept among the services
+ * used by a bundle while the bundle has gets not matched by ungets.
+ *
+ * When enabled, operations and listener callbacks are timed into a RegistryStats, and listener callbacks
+ * taking too long are reported by the ListenerWatchdog of the registry.
  */
 public class ServiceRegistry {
 
     /**
-     * Holds both listener and its filter.
+     * Holds both listener and its filter. The filter is parsed once when the listener is added.
      */
     @SuppressWarnings("unused")
     private static class ListenerEntry {
         public ServiceListener listener;
-        public String filter;
+        public Filter filter;
+        /** The bundle that added the listener. */
+        public Bundle bundle;
+        /** Non null for listeners having their events delivered asynchronously. */
+        public Mailbox mailbox;
+        /** Set when removed, so that events already queued or posted to the listener are not delivered. */
+        public volatile boolean removed = false;
 
         public ListenerEntry() {}
-        ListenerEntry(ServiceListener listener, String filter) {
+        ListenerEntry(ServiceListener listener, Filter filter) {
             this.listener = listener;
             this.filter = filter;
         }
+
+        /**
+         * Returns true if the filter of this entry matches the specified properties. No filter matches everything
+         * without any evaluation.
+         *
+         * @param properties The properties of a service to match.
+         * @param evaluations Incremented at index 0 if the filter is evaluated.
+         */
+        boolean matches(ServiceProperties properties, int[] evaluations) {
+            if (this.filter == null) {
+                return true;
+            }
+            ++evaluations[0];
+            return ((CompiledFilter) this.filter).match(properties);
+        }
+    }
+
+    /**
+     * An event together with the properties of the service when the event happened, which is what listener
+     * filters are matched against.
+     */
+    private static class QueuedEvent {
+        private ServiceEvent event;
+        private ServiceProperties properties;
+        /** The properties before the change for MODIFIED events, otherwise null. */
+        private ServiceProperties oldProperties;
+
+        QueuedEvent(ServiceEvent event, ServiceProperties properties, ServiceProperties oldProperties) {
+            this.event = event;
+            this.properties = properties;
+            this.oldProperties = oldProperties;
+        }
+    }
+
+    /**
+     * Holds the not yet delivered events of an asynchronous listener. At most one task per mailbox
+     * is running on the executor at any time, which keeps the events of the listener in order.
+     */
+    private class Mailbox implements Runnable {
+        private ListenerEntry listenerEntry;
+        private Queue<ServiceEvent> events = new ConcurrentLinkedQueue<>();
+        private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        Mailbox(ListenerEntry listenerEntry) {
+            this.listenerEntry = listenerEntry;
+        }
+
+        /**
+         * Posts an event to the mailbox, scheduling it to be drained if not already scheduled.
+         *
+         * @param serviceEvent The event to post.
+         */
+        void post(ServiceEvent serviceEvent) {
+            asyncInFlight.incrementAndGet();
+            this.events.add(serviceEvent);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!this.events.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+                getAsyncExecutor().execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                ServiceEvent serviceEvent;
+                while ((serviceEvent = this.events.poll()) != null) {
+                    try {
+                        if (!this.listenerEntry.removed) {
+                            invokeListener(this.listenerEntry, serviceEvent);
+                        }
+                    }
+                    finally {
+                        asyncDelivered();
+                    }
+                }
+            }
+            finally {
+                this.scheduled.set(false);
+                // An event might have been posted after the poll() above but before clearing 'scheduled'.
+                schedule();
+            }
+        }
     }
 
+    /**
+     * Identifies a listener added by a bundle. A listener is identified by instance, not by equals().
+     */
+    private static class ListenerKey {
+        private Bundle bundle;
+        private ServiceListener listener;
+
+        ListenerKey(Bundle bundle, ServiceListener listener) {
+            this.bundle = bundle;
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ListenerKey && ((ListenerKey) obj).bundle == this.bundle &&
+                    ((ListenerKey) obj).listener == this.listener;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(this.bundle) + System.identityHashCode(this.listener);
+        }
+    }
+
+    //
+    // Constants
+    //
+
+    /** Orders registrations with the one getServiceReference(clazz) should return first. */
+    static final Comparator<OTRServiceRegistration> BEST_FIRST =
+            (reg1, reg2) -> ((OTRServiceReference) reg2.getReference()).compareTo(reg1.getReference());
+
+    /** The max time close() waits for asynchronous events to be delivered. */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
     //
     // Private Members
     //
 
-    /** Holds all listeners */
-    private Map<String/*service API*/, List<ListenerEntry>> serviceListenerMap = Collections.synchronizedMap( new HashMap<>());
+    /** Generates 'service.id' values. */
+    private AtomicLong serviceIdGen = new AtomicLong(0);
+
+    /** Parsed filters shared by everything using this registry. */
+    private FilterCache filterCache = new FilterCache();
+
+    /** Holds all listeners, indexed by the equality terms of their filters. */
+    private ListenerIndex<ListenerEntry> listenerIndex = new ListenerIndex<>();
+
+    /** Finds the entry of a listener added by a bundle without searching the listener lists. */
+    private Map<ListenerKey, ListenerEntry> listenerEntries = new ConcurrentHashMap<>();
+
+    /** If true listeners are by default added for asynchronous delivery. */
+    private volatile boolean asyncDelivery = false;
+
+    /** The executor draining mailboxes of asynchronous listeners. Created when first needed. */
+    private ExecutorService asyncExecutor;
+
+    /** The number of asynchronous events posted but not yet delivered. */
+    private AtomicInteger asyncInFlight = new AtomicInteger(0);
+
+    /**
+     * The currently registered services indexed by objectClass and bundle. A new snapshot is published on
+     * every change while holding the registry lock.
+     */
+    private volatile RegistrySnapshot snapshot = RegistrySnapshot.EMPTY.withIndexedProperty(Constants.SERVICE_PID, BEST_FIRST);
+
+    /** Service API classes by name. */
+    private Map<String, Class<?>> serviceClasses = new ConcurrentHashMap<>();
 
-    /** Holds registered services. */
-    private Map<OTRServiceRegistration, Object> services = Collections.synchronizedMap( new HashMap<>());
+    /**
+     * The currently registered services, for checking if a registration is still valid. A service stays here until
+     * its UNREGISTERING event has been delivered, so that listeners can still get it.
+     */
+    private Set<OTRServiceRegistration> services = ConcurrentHashMap.newKeySet();
+
+    /** The services being unregistered, which can not be modified or unregistered again. */
+    private Set<OTRServiceRegistration> unregistering = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The registrations each bundle is using, and might have just stopped using. A registration is removed when
+     * its use count reaches zero, and a bundle when it no longer uses any service.
+     */
+    private Map<Bundle, Set<OTRServiceRegistration>> usedServices = new ConcurrentHashMap<>();
+
+    /** The window in millis within which modifications of a service are coalesced into one event. 0 for none. */
+    private volatile long modifiedEventWindow = 0;
+
+    /**
+     * The properties of services before their first modification not yet sent to listeners, when coalescing.
+     * Guarded by the registry lock.
+     */
+    private Map<OTRServiceRegistration, ServiceProperties> pendingModifications = new HashMap<>();
+
+    /** The executor sending the events of coalesced modifications. Created when first needed. */
+    private ScheduledExecutorService coalescer;
+
+    /** Receives counts and latencies while instrumentation is enabled, otherwise null. */
+    private volatile RegistryStats stats;
+
+    /** Reports slow service and bundle listener callbacks when enabled. */
+    private ListenerWatchdog watchdog = new ListenerWatchdog();
+
+    /** Called with the service API class name of requested services, to activate lazy bundles. Can be null. */
+    private volatile Consumer<String> serviceRequestHook;
 
     //
     // Methods
     //
 
     /**
-     * Utility to send events to registered listeners.
+     * Queues an event to registered listeners. This must be called while holding the registry lock
+     * and the event is delivered by calling deliverListenerEvents(...) after the lock has been released.
      *
      * @param serviceRegistration The service registration to send event about.
      * @param event The event to send.
-     * @param serviceAPI Used to find the listeners to send to.
      */
-    private synchronized void sendListenerEvents( OTRServiceRegistration serviceRegistration, int event, String serviceAPI) {
-        try {
-            List<ListenerEntry> listeners = this.serviceListenerMap.get(serviceAPI);
-            if (listeners != null) {
-                for (ListenerEntry listenerEntry : listeners) {
-                    Filter svcFilter = FrameworkUtil.createFilter(listenerEntry.filter);
-                    if (svcFilter.match(serviceRegistration.getReference())) {
-                        listenerEntry.listener.serviceChanged(new ServiceEvent(event, serviceRegistration.getReference()));
+    private void queueListenerEvents( OTRServiceRegistration serviceRegistration, int event) {
+        queueListenerEvents(Collections.singletonList(serviceRegistration), event);
+    }
+
+    /**
+     * Queues an event per registration to registered listeners. The events are delivered in one pass
+     * over the listeners, where each listener gets the events it is interested in, in registration order.
+     * This must be called while holding the registry lock and the events are delivered by calling
+     * deliverListenerEvents(...) after the lock has been released. All registrations must share the same
+     * event queue.
+     *
+     * @param serviceRegistrations The service registrations to send event about.
+     * @param event The event to send.
+     */
+    private void queueListenerEvents( List<OTRServiceRegistration> serviceRegistrations, int event) {
+        Map<ListenerEntry, List<QueuedEvent>> eventsByListener = new LinkedHashMap<>();
+        for (OTRServiceRegistration serviceRegistration : serviceRegistrations) {
+            OTRServiceReference reference = (OTRServiceReference) serviceRegistration.getReference();
+            QueuedEvent queuedEvent =
+                    new QueuedEvent(new ServiceEvent(event, reference), reference.getServiceProperties(), null);
+            for (ListenerEntry listenerEntry : this.listenerIndex.getCandidates(queuedEvent.properties)) {
+                eventsByListener.computeIfAbsent(listenerEntry, k -> new ArrayList<>(serviceRegistrations.size())).add(queuedEvent);
+            }
+        }
+
+        if (!eventsByListener.isEmpty()) {
+            serviceRegistrations.get(0).getEventQueue().add(() -> deliverListenerEvents(eventsByListener));
+        }
+    }
+
+    /**
+     * Queues a MODIFIED event to the listeners whose filters match the new properties of a service, and a
+     * MODIFIED_ENDMATCH event to the listeners whose filters only matched the old properties. This must be called
+     * while holding the registry lock and the events are delivered by calling deliverListenerEvents(...) after the
+     * lock has been released.
+     *
+     * @param serviceRegistration The service registration whose properties were modified.
+     * @param oldProperties The properties before the modification.
+     */
+    private void queueModifiedEvents( OTRServiceRegistration serviceRegistration, ServiceProperties oldProperties) {
+        OTRServiceReference reference = (OTRServiceReference) serviceRegistration.getReference();
+        QueuedEvent queuedEvent = new QueuedEvent(new ServiceEvent(ServiceEvent.MODIFIED, reference),
+                reference.getServiceProperties(), oldProperties);
+
+        Map<ListenerEntry, List<QueuedEvent>> eventsByListener = new LinkedHashMap<>();
+        for (ListenerEntry listenerEntry : this.listenerIndex.getCandidates(oldProperties, queuedEvent.properties)) {
+            eventsByListener.put(listenerEntry, Collections.singletonList(queuedEvent));
+        }
+
+        if (!eventsByListener.isEmpty()) {
+            serviceRegistration.getEventQueue().add(() -> deliverListenerEvents(eventsByListener));
+        }
+    }
+
+    /**
+     * Delivers the queued events of a service registration. This must be called without holding the registry lock.
+     *
+     * @param serviceRegistration The service registration to deliver events for.
+     */
+    private void deliverListenerEvents( OTRServiceRegistration serviceRegistration) {
+        serviceRegistration.getEventQueue().deliver();
+    }
+
+    /**
+     * Delivers events to the listeners whose filters match.
+     *
+     * @param eventsByListener The events to deliver per listener.
+     */
+    private void deliverListenerEvents( Map<ListenerEntry, List<QueuedEvent>> eventsByListener) {
+        int[] filterEvaluations = new int[1];
+        for (Map.Entry<ListenerEntry, List<QueuedEvent>> entry : eventsByListener.entrySet()) {
+            ListenerEntry listenerEntry = entry.getKey();
+            for (QueuedEvent queuedEvent : entry.getValue()) {
+                if (listenerEntry.removed) {
+                    break;
+                }
+                try {
+                    ServiceEvent serviceEvent = null;
+                    if (listenerEntry.matches(queuedEvent.properties, filterEvaluations)) {
+                        serviceEvent = queuedEvent.event;
                     }
+                    else if (queuedEvent.oldProperties != null &&
+                            listenerEntry.matches(queuedEvent.oldProperties, filterEvaluations)) {
+                        serviceEvent = new ServiceEvent(ServiceEvent.MODIFIED_ENDMATCH, queuedEvent.event.getServiceReference());
+                    }
+
+                    if (serviceEvent != null) {
+                        if (listenerEntry.mailbox != null) {
+                            listenerEntry.mailbox.post(serviceEvent);
+                        }
+                        else {
+                            invokeListener(listenerEntry, serviceEvent);
+                        }
+                    }
+                }
+                catch (RuntimeException re) {
+                    System.err.println("ServiceListener '" + listenerEntry.listener + "' filter failed to match event!");
+                    re.printStackTrace(System.err);
                 }
             }
-            if (this.serviceListenerMap.containsKey("all")) {
-                for (ListenerEntry listenerEntry : this.serviceListenerMap.get("all")) {
-                    Filter svcFilter = FrameworkUtil.createFilter(listenerEntry.filter);
-                    if (svcFilter.match(serviceRegistration.getReference())) {
-                        listenerEntry.listener.serviceChanged(new ServiceEvent(event, serviceRegistration.getReference()));
-                    }
+        }
+
+        RegistryStats stats = this.stats;
+        if (stats != null) {
+            stats.filtersEvaluated(filterEvaluations[0]);
+        }
+    }
+
+    /**
+     * Calls a listener with an event.
+     *
+     * @param listenerEntry The entry of the listener to call.
+     * @param serviceEvent The event to pass to the listener.
+     */
+    private void invokeListener(ListenerEntry listenerEntry, ServiceEvent serviceEvent) {
+        RegistryStats stats = this.stats;
+        long start = stats != null ? System.nanoTime() : 0;
+        ListenerWatchdog.Watch watch = this.watchdog.start(listenerEntry.listener, listenerEntry.bundle, serviceEvent);
+        try {
+            listenerEntry.listener.serviceChanged(serviceEvent);
+        }
+        catch (RuntimeException re) {
+            System.err.println("ServiceListener '" + listenerEntry.listener + "' failed to handle event!");
+            re.printStackTrace(System.err);
+        }
+        finally {
+            this.watchdog.end(watch);
+            if (stats != null) {
+                stats.dispatched(listenerEntry.listener, listenerEntry.bundle, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Returns the executor for asynchronous delivery, creating it if needed.
+     */
+    private synchronized ExecutorService getAsyncExecutor() {
+        if (this.asyncExecutor == null) {
+            AtomicInteger threadNo = new AtomicInteger(0);
+            this.asyncExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "OTR-ServiceEvent-" + threadNo.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.asyncExecutor;
+    }
+
+    /**
+     * Called when an asynchronous event has been delivered.
+     */
+    private void asyncDelivered() {
+        if (this.asyncInFlight.decrementAndGet() == 0) {
+            synchronized (this.asyncInFlight) {
+                this.asyncInFlight.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Creates an entry for a listener.
+     *
+     * @param listener The listener to create entry for.
+     * @param filter The parsed filter of the listener or null for no filter.
+     * @param async True for asynchronous delivery, false for synchronous and null for the registry default.
+     */
+    private ListenerEntry createListenerEntry(ServiceListener listener, Filter filter, Boolean async) {
+        ListenerEntry entry = new ListenerEntry(listener, filter);
+        if (async != null ? async : this.asyncDelivery) {
+            entry.mailbox = new Mailbox(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Sets if listeners added without specifying delivery mode should have their events delivered
+     * asynchronously. This does not affect already added listeners. Default is false.
+     *
+     * @param asyncDelivery True for asynchronous delivery by default.
+     */
+    public void setAsyncDelivery(boolean asyncDelivery) {
+        this.asyncDelivery = asyncDelivery;
+    }
+
+    /**
+     * Returns true if listeners by default gets events delivered asynchronously.
+     */
+    public boolean isAsyncDelivery() {
+        return this.asyncDelivery;
+    }
+
+    /**
+     * Waits until all asynchronous events posted so far have been delivered.
+     *
+     * @param timeout The max time to wait.
+     * @param unit The unit of the timeout.
+     *
+     * @return true if all events were delivered, false on timeout.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitAsyncDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this.asyncInFlight) {
+            while (this.asyncInFlight.get() > 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
                 }
+                this.asyncInFlight.wait(remaining);
             }
         }
-        catch ( InvalidSyntaxException ise) {
-            throw new IllegalArgumentException("Bad filter syntax!", ise);
+        return true;
+    }
+
+    /**
+     * Shuts down the threads of the registry. The events of coalesced modifications not yet sent are sent first, and
+     * the asynchronous events posted so far are waited for. Asynchronous events posted after this start new threads
+     * that need another close().
+     */
+    public void close() {
+        List<OTRServiceRegistration> modified;
+        synchronized (this) {
+            modified = new ArrayList<>(this.pendingModifications.keySet());
         }
+        for (OTRServiceRegistration serviceRegistration : modified) {
+            flushModification(serviceRegistration);
+        }
+
+        try {
+            if (!awaitAsyncDelivery(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                System.err.println("Asynchronous service events still not delivered on close!");
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (this.coalescer != null) {
+                this.coalescer.shutdownNow();
+                this.coalescer = null;
+            }
+            if (this.asyncExecutor != null) {
+                this.asyncExecutor.shutdownNow();
+                this.asyncExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Returns a new unique 'service.id'.
+     */
+    public long nextServiceId() {
+        return this.serviceIdGen.incrementAndGet();
+    }
+
+    /**
+     * Returns the filter cache of this registry.
+     */
+    public FilterCache getFilterCache() {
+        return this.filterCache;
+    }
+
+    /**
+     * Returns a service API class by name. Classes are cached since they are looked up for every registration.
+     *
+     * @param clazz The name of the class to get.
+     *
+     * @throws ClassNotFoundException if the class is not found.
+     */
+    public Class<?> getServiceClass( String clazz) throws ClassNotFoundException {
+        Class<?> serviceClass = this.serviceClasses.get(clazz);
+        if (serviceClass == null) {
+            serviceClass = Class.forName(clazz);
+            this.serviceClasses.put(clazz, serviceClass);
+        }
+        return serviceClass;
     }
 
     /**
      * Registers a service.
      *
      * @param serviceRegistration The internal TestServiceRegistration implementation of ServiceRegistration.
-     * @param service The service instance.
-     * @param serviceAPI The service API class.
+     *                            This also holds the service instance and the service API classes.
      */
-    public synchronized void registerService( OTRServiceRegistration serviceRegistration, Object service, Class serviceAPI) {
-        this.services.put(serviceRegistration, service);
+    public void registerService( OTRServiceRegistration serviceRegistration) {
+        RegistryStats stats = this.stats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        synchronized (this) {
+            this.snapshot = this.snapshot.withRegistered(Collections.singletonList(serviceRegistration), BEST_FIRST);
+            this.services.add(serviceRegistration);
+
+            queueListenerEvents(serviceRegistration, ServiceEvent.REGISTERED);
+        }
+
+        deliverListenerEvents(serviceRegistration);
 
-        sendListenerEvents(serviceRegistration, ServiceEvent.REGISTERED, serviceAPI.getName());
+        if (stats != null) {
+            stats.registered(1, System.nanoTime() - start);
+        }
     }
 
     /**
-     * Unregister a service.
+     * Registers several services in one atomic step. The registrations must share the same event queue, which
+     * keeps all their events in order. Listeners get the REGISTERED events in one pass after all services have been
+     * registered.
      *
-     * @param serviceRegistration The internal TestServiceRegistration implementation of ServiceRegistration.
+     * @param serviceRegistrations The registrations of the services to register.
      */
-    public synchronized void unregisterService( OTRServiceRegistration serviceRegistration) {
-        this.services.remove(serviceRegistration);
+    public void registerServices( List<OTRServiceRegistration> serviceRegistrations) {
+        if (serviceRegistrations.isEmpty()) {
+            return;
+        }
+
+        RegistryStats stats = this.stats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        synchronized (this) {
+            this.snapshot = this.snapshot.withRegistered(serviceRegistrations, BEST_FIRST);
+            this.services.addAll(serviceRegistrations);
+
+            queueListenerEvents(serviceRegistrations, ServiceEvent.REGISTERED);
+        }
 
-        sendListenerEvents(serviceRegistration, ServiceEvent.UNREGISTERING, serviceRegistration.getServiceName());
+        deliverListenerEvents(serviceRegistrations.get(0));
+
+        if (stats != null) {
+            stats.registered(serviceRegistrations.size(), System.nanoTime() - start);
+        }
     }
 
     /**
-     * Adds service listeners which are connected to their service API class.
+     * Applies a change to the properties of a registered service, keeping the ranking order and the property indexes
+     * of the service up to date, and sends MODIFIED and MODIFIED_ENDMATCH events to listeners. If a modified event
+     * window is set, the events are sent when the window has passed and cover all changes made during the window.
      *
-     * @param listener The listener to add.
-     * @param filter An optional filter for the service.
-     */
-    public synchronized void addServiceListener(ServiceListener listener, String filter) {
-        int ix = filter.indexOf(Constants.OBJECTCLASS);
-        String filter2 = filter.substring(ix + Constants.OBJECTCLASS.length() + 1);
-        String[] filterParts = filter2.split("[ )]");
-        String serviceClass = filterParts[0];
-        List<ListenerEntry> listenerEntries =
-                this.serviceListenerMap.computeIfAbsent(serviceClass, k -> Collections.synchronizedList(new LinkedList<>()));
-        ListenerEntry entry = new ListenerEntry(listener, filter);
-        listenerEntries.add(entry);
+     * @param serviceRegistration The registration of the service to modify.
+     * @param change The change to apply.
+     *
+     * @throws IllegalStateException if the service has been unregistered.
+     */
+    public void modifyService( OTRServiceRegistration serviceRegistration, Runnable change) {
+        RegistryStats stats = this.stats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        applyModification(serviceRegistration, change);
+
+        if (stats != null) {
+            stats.modified(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Applies a change to the properties of a registered service. See modifyService(...).
+     *
+     * @param serviceRegistration The registration of the service to modify.
+     * @param change The change to apply.
+     */
+    private void applyModification( OTRServiceRegistration serviceRegistration, Runnable change) {
+        synchronized (this) {
+            if (!this.services.contains(serviceRegistration) || this.unregistering.contains(serviceRegistration)) {
+                throw new IllegalStateException("Service already unregistered!");
+            }
+
+            ServiceProperties oldProperties = ((OTRServiceReference) serviceRegistration.getReference()).getServiceProperties();
+            change.run();
+            this.snapshot = this.snapshot.withModified(serviceRegistration, oldProperties, BEST_FIRST);
+
+            long window = this.modifiedEventWindow;
+            if (window > 0) {
+                if (!this.pendingModifications.containsKey(serviceRegistration)) {
+                    this.pendingModifications.put(serviceRegistration, oldProperties);
+                    this.asyncInFlight.incrementAndGet();
+                    getCoalescer().schedule(() -> flushModification(serviceRegistration), window, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+
+            queueModifiedEvents(serviceRegistration, oldProperties);
+        }
+
+        deliverListenerEvents(serviceRegistration);
+    }
+
+    /**
+     * Sends the events of the coalesced modifications of a service, unless already sent on unregistration.
+     *
+     * @param serviceRegistration The registration of the modified service.
+     */
+    private void flushModification( OTRServiceRegistration serviceRegistration) {
+        synchronized (this) {
+            ServiceProperties oldProperties = this.pendingModifications.remove(serviceRegistration);
+            if (oldProperties == null) {
+                return;
+            }
+            queueModifiedEvents(serviceRegistration, oldProperties);
+        }
+
+        try {
+            deliverListenerEvents(serviceRegistration);
+        }
+        finally {
+            asyncDelivered();
+        }
+    }
+
+    /**
+     * Returns the executor sending the events of coalesced modifications, creating it if needed.
+     */
+    private synchronized ScheduledExecutorService getCoalescer() {
+        if (this.coalescer == null) {
+            this.coalescer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "OTR-ServiceEvent-Coalescer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.coalescer;
+    }
+
+    /**
+     * Sets a window within which modifications of the properties of a service are coalesced into one MODIFIED event
+     * per listener, sent when the window has passed. The event is matched against the properties before the first
+     * and after the last modification. 0, which is the default, sends events on every modification.
+     *
+     * @param window The length of the window.
+     * @param unit The unit of the window.
+     */
+    public void setModifiedEventWindow(long window, TimeUnit unit) {
+        this.modifiedEventWindow = unit.toMillis(window);
+    }
+
+    /**
+     * Declares a service property as indexed. Queries having equality or presence terms on indexed properties
+     * are answered from the index, only evaluating the full filter against the services found there. Property
+     * names are case insensitive.
+     *
+     * @param key The name of the property to index.
+     */
+    public synchronized void addIndexedProperty(String key) {
+        for (String indexed : this.snapshot.getIndexedProperties()) {
+            if (indexed.equalsIgnoreCase(key)) {
+                return;
+            }
+        }
+        this.snapshot = this.snapshot.withIndexedProperty(key, BEST_FIRST);
+    }
+
+    /**
+     * Unregister a service. The UNREGISTERING event has been delivered to synchronous listeners when this returns,
+     * also when another thread is delivering the events of the service, and only then are the uses of the service
+     * released. The service is no longer found by lookups, but listeners can still get it until the event has been
+     * delivered.
+     *
+     * @param serviceRegistration The internal TestServiceRegistration implementation of ServiceRegistration.
+     */
+    public void unregisterService( OTRServiceRegistration serviceRegistration) {
+        RegistryStats stats = this.stats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        ServiceProperties pendingModification;
+        long delivery;
+        synchronized (this) {
+            if (!this.services.contains(serviceRegistration) || !this.unregistering.add(serviceRegistration)) {
+                throw new IllegalStateException("Service already unregistered!");
+            }
+            this.snapshot = this.snapshot.withUnregistered(serviceRegistration);
+
+            pendingModification = this.pendingModifications.remove(serviceRegistration);
+            if (pendingModification != null) {
+                queueModifiedEvents(serviceRegistration, pendingModification);
+            }
+            queueListenerEvents(serviceRegistration, ServiceEvent.UNREGISTERING);
+            delivery = serviceRegistration.getEventQueue().getAdded();
+        }
+
+        try {
+            serviceRegistration.getEventQueue().deliver(delivery);
+        }
+        finally {
+            if (pendingModification != null) {
+                asyncDelivered();
+            }
+            this.services.remove(serviceRegistration);
+            this.unregistering.remove(serviceRegistration);
+        }
+
+        releaseServiceUses(serviceRegistration);
+
+        if (stats != null) {
+            stats.unregistered(System.nanoTime() - start);
+        }
     }
 
     /**
-     * Adds service listeners without filters to the "all" key rather than service API class.
+     * Adds a service listener. The listener is indexed by the equality terms of its filter, like its service API
+     * class, so that events only evaluate the filters of listeners that might match. If the listener has already
+     * been added by the bundle, its filter is replaced.
      *
+     * @param bundle The bundle adding the listener.
      * @param listener The listener to add.
+     * @param filter An optional filter for the service. Can be null.
+     * @param async True for asynchronous delivery, false for synchronous and null for the registry default.
+     *
+     * @throws InvalidSyntaxException on bad filter syntax.
      */
-    public synchronized void addServiceListener(ServiceListener listener) {
-        List<ListenerEntry> listenerEntries = this.serviceListenerMap.computeIfAbsent("all", k -> Collections.synchronizedList(new LinkedList<>()));
-        listenerEntries.add(new ListenerEntry(listener, null));
+    public synchronized void addServiceListener(Bundle bundle, ServiceListener listener, String filter, Boolean async)
+            throws InvalidSyntaxException {
+        ListenerEntry entry = createListenerEntry(listener, filter != null ? this.filterCache.getFilter(filter) : null, async);
+        entry.bundle = bundle;
+
+        removeServiceListener(bundle, listener);
+        this.listenerIndex.add(entry, filter != null ? this.filterCache.getExpression(filter) : null);
+        this.listenerEntries.put(new ListenerKey(bundle, listener), entry);
     }
 
     /**
-     * Removes a service listener independent of how it is keyed.
+     * Removes a service listener added by a bundle. The same listener added by other bundles is not affected.
      *
+     * @param bundle The bundle that added the listener.
      * @param listener The listener to remove.
      */
-    public synchronized void removeServiceListener(ServiceListener listener) {
-        List<String> removeKeys = new LinkedList<>();
-        for (Map.Entry<String, List<ListenerEntry>> entry : this.serviceListenerMap.entrySet()) {
-            for (ListenerEntry listenerEntry : entry.getValue()) {
-                if (listener == listenerEntry.listener) {
-                    // Bloody brilliant! I was deleting entries within the loop over the entries being deleted.
-                    // The entries to delete is now added to a list and deleted later.
-                    removeKeys.add(entry.getKey());
-                    break;
-                }
-            }
+    public synchronized void removeServiceListener(Bundle bundle, ServiceListener listener) {
+        ListenerEntry entry = this.listenerEntries.remove(new ListenerKey(bundle, listener));
+        if (entry != null) {
+            entry.removed = true;
+            this.listenerIndex.remove(entry);
         }
+    }
 
-        for (String removeKey : removeKeys) {
-            this.serviceListenerMap.remove(removeKey);
+    /**
+     * Removes all service listeners added by a bundle.
+     *
+     * @param bundle The bundle whose listeners to remove.
+     */
+    public synchronized void removeServiceListeners(Bundle bundle) {
+        Iterator<Map.Entry<ListenerKey, ListenerEntry>> it = this.listenerEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            ListenerEntry entry = it.next().getValue();
+            if (entry.bundle == bundle) {
+                it.remove();
+                entry.removed = true;
+                this.listenerIndex.remove(entry);
+            }
         }
     }
 
@@ -175,17 +841,37 @@ public class ServiceRegistry {
     /**
      * Returns all ServiceReferences based on service API class and additional filter.
      *
-     * @param clazz The service API class to get ServiceReferences for.
-     * @param filter The additional filter for the ServiceReferences to get.
+     * Only the services registered under the service API class, and having the values of indexed properties
+     * required by the filter, are evaluated against the filter.
+     *
+     * @param clazz The service API class to get ServiceReferences for. Can be null.
+     * @param filter The additional filter for the ServiceReferences to get. Can be null or blank.
      */
     @SuppressWarnings("unused")
     public ServiceReference[] getAllServiceReferences(String clazz, String filter) {
+        RegistryStats stats = this.stats;
+        long start = stats != null ? System.nanoTime() : 0;
         try {
-            Filter svcFilter = FrameworkUtil.createFilter(filter);
-            List<ServiceReference> refs = new ArrayList<>();
-            for (Map.Entry<OTRServiceRegistration, Object> entry : this.services.entrySet()) {
-                if (svcFilter.match(entry.getKey().getReference())) {
-                    refs.add(entry.getKey().getReference());
+            Filter svcFilter = null;
+            FilterExpression expression = null;
+            if (filter != null && !filter.trim().isEmpty()) {
+                svcFilter = this.filterCache.getFilter(filter);
+                expression = this.filterCache.getExpression(filter);
+            }
+
+            serviceRequested(clazz, expression);
+            OTRServiceRegistration[] candidates = this.snapshot.getCandidates(clazz, expression, BEST_FIRST);
+            if (svcFilter == null) {
+                return RegistrySnapshot.toReferences(candidates);
+            }
+
+            if (stats != null) {
+                stats.filtersEvaluated(candidates.length);
+            }
+            List<ServiceReference> refs = new ArrayList<>(candidates.length);
+            for (OTRServiceRegistration registration : candidates) {
+                if (svcFilter.match(registration.getReference())) {
+                    refs.add(registration.getReference());
                 }
             }
             ServiceReference[] refsArray = new ServiceReference[refs.size()];
@@ -193,53 +879,474 @@ public class ServiceRegistry {
         } catch (InvalidSyntaxException e) {
             throw new RuntimeException("Failed to parse search filter!", e);
         }
+        finally {
+            if (stats != null) {
+                stats.lookedUp(System.nanoTime() - start);
+            }
+        }
     }
 
     /**
-     * Returns a specific ServiceReference bases on service API class or null if not found.
+     * Returns the best ranked ServiceReference of a service API class or null if not found.
      *
      * @param clazz The service API class to get ServiceReference for.
      */
     public ServiceReference getServiceReference(String clazz) {
-        ServiceReference[] refs = getAllServiceReferences(clazz, "");
-        if (refs != null && refs.length > 0) {
-            return refs[0];
+        RegistryStats stats = this.stats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        serviceRequested(clazz, null);
+        OTRServiceRegistration[] registrations = this.snapshot.getRegistrations(clazz);
+
+        if (stats != null) {
+            stats.lookedUp(System.nanoTime() - start);
         }
-        return null;
+        return registrations.length > 0 ? registrations[0].getReference() : null;
+    }
+
+    /**
+     * Passes the service API class names of a service request to the service request hook.
+     *
+     * @param clazz The requested service API class. Can be null.
+     * @param expression The filter of the request. Can be null.
+     */
+    private void serviceRequested(String clazz, FilterExpression expression) {
+        Consumer<String> hook = this.serviceRequestHook;
+        if (hook == null) {
+            return;
+        }
+        if (clazz != null) {
+            hook.accept(clazz);
+        }
+        else if (expression != null) {
+            List<String[]> terms = ListenerIndex.indexTerms(expression);
+            if (terms != null) {
+                for (String[] term : terms) {
+                    if (term[0].equals(Constants.OBJECTCLASS)) {
+                        hook.accept(term[1]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Provides a hook to call with the service API class name of every requested service, before the request is
+     * served. This is used to activate bundles having a lazy activation policy.
+     *
+     * @param serviceRequestHook The hook to call or null for none.
+     */
+    public void setServiceRequestHook(Consumer<String> serviceRequestHook) {
+        this.serviceRequestHook = serviceRequestHook;
     }
 
     /**
-     * Returns service object using its reference.
+     * Returns service object using its reference. For a ServiceFactory service the instance of the bundle is
+     * returned, which the factory creates on the first call from the bundle.
      *
+     * @param bundle The bundle getting the service.
      * @param reference The reference to the service to get.
+     *
+     * @return the service or null if it is not registered or the factory failed.
      */
-    public Object getService(ServiceReference reference) {
-        for (Map.Entry<OTRServiceRegistration, Object> entry : this.services.entrySet()) {
-            if (entry.getKey().getReference() == reference) {
-                return entry.getValue();
+    public Object getService(Bundle bundle, ServiceReference reference) {
+        if (reference instanceof OTRServiceReference) {
+            OTRServiceRegistration registration = ((OTRServiceReference) reference).getRegistration();
+            if (registration != null && this.services.contains(registration)) {
+                Object service = registration.getService();
+                if (service instanceof ServiceFactory) {
+                    return getFactoryService(bundle, registration, (ServiceFactory) service);
+                }
+                return getPlainService(bundle, registration, service);
             }
         }
 
         return null;
     }
 
+    /**
+     * Returns the use of a service by a bundle, creating it if the bundle has not used the service before.
+     *
+     * @param bundle The bundle using the service.
+     * @param registration The registration of the service.
+     */
+    private ServiceUse getServiceUse(Bundle bundle, OTRServiceRegistration registration) {
+        ServiceUse use = registration.getServiceUses().get(bundle);
+        if (use == null) {
+            use = registration.getServiceUses().computeIfAbsent(bundle, b -> new ServiceUse());
+        }
+        return use;
+    }
+
+    /**
+     * Makes sure that a service is among the services used by a bundle. Must be called after counting a get, so
+     * that it either sees a concurrent removeUsedService(...) or that removal sees the get.
+     *
+     * @param bundle The bundle using the service.
+     * @param registration The registration of the service.
+     */
+    private void addUsedService(Bundle bundle, OTRServiceRegistration registration) {
+        Set<OTRServiceRegistration> used = this.usedServices.get(bundle);
+        if (used == null || !used.contains(registration)) {
+            this.usedServices.compute(bundle, (b, set) -> {
+                if (set == null) {
+                    set = ConcurrentHashMap.newKeySet();
+                }
+                set.add(registration);
+                return set;
+            });
+        }
+    }
+
+    /**
+     * Removes a service from the services used by a bundle, dropping the bundle when it uses no other service.
+     * The service is added back if the bundle got it again meanwhile.
+     *
+     * @param bundle The bundle that stopped using the service.
+     * @param registration The registration of the service.
+     */
+    private void removeUsedService(Bundle bundle, OTRServiceRegistration registration) {
+        this.usedServices.computeIfPresent(bundle, (b, set) -> {
+            set.remove(registration);
+            return set.isEmpty() ? null : set;
+        });
+
+        ServiceUse use = registration.getServiceUses().get(bundle);
+        if (use != null && !use.isReleased() && use.getCount() > 0 && this.services.contains(registration)) {
+            addUsedService(bundle, registration);
+        }
+    }
+
+    /**
+     * Returns a service that is not a ServiceFactory, counting the use by the bundle. This does not lock.
+     *
+     * @param bundle The bundle getting the service.
+     * @param registration The registration of the service.
+     * @param service The service.
+     */
+    private Object getPlainService(Bundle bundle, OTRServiceRegistration registration, Object service) {
+        ServiceUse use = getServiceUse(bundle, registration);
+        use.increment();
+        addUsedService(bundle, registration);
+
+        if (use.isReleased() || !this.services.contains(registration)) {
+            // Unregistered after we checked.
+            removeUsedService(bundle, registration);
+            return null;
+        }
+
+        return service;
+    }
+
+    /**
+     * Returns the instance of a ServiceFactory service for a bundle, creating it on first use by the bundle.
+     *
+     * @param bundle The bundle getting the service.
+     * @param registration The registration of the service.
+     * @param factory The factory of the service.
+     */
+    private Object getFactoryService(Bundle bundle, OTRServiceRegistration registration, ServiceFactory factory) {
+        while (true) {
+            ServiceUse use = getServiceUse(bundle, registration);
+            synchronized (use) {
+                if (use.isReleased()) {
+                    // Released by another thread after we got it. Try again with a new use.
+                    continue;
+                }
+
+                if (use.getInstance() == null) {
+                    Object instance = createFactoryService(bundle, registration, factory);
+                    if (instance == null) {
+                        use.release();
+                        registration.getServiceUses().remove(bundle, use);
+                        return null;
+                    }
+                    use.setInstance(instance);
+                }
+                use.increment();
+                addUsedService(bundle, registration);
+
+                if (!this.services.contains(registration)) {
+                    // Unregistered while creating, and the uses might already have been released.
+                    releaseFactoryService(bundle, registration, use);
+                    removeUsedService(bundle, registration);
+                    return null;
+                }
+
+                return use.getInstance();
+            }
+        }
+    }
+
+    /**
+     * Calls a ServiceFactory to create the instance for a bundle, checking that the instance is of all the
+     * service API classes of the service.
+     *
+     * @param bundle The bundle to create instance for.
+     * @param registration The registration of the service.
+     * @param factory The factory of the service.
+     *
+     * @return The created instance or null on failure.
+     */
+    private Object createFactoryService(Bundle bundle, OTRServiceRegistration registration, ServiceFactory factory) {
+        Object instance;
+        try {
+            instance = factory.getService(bundle, registration);
+        }
+        catch (RuntimeException re) {
+            System.err.println("ServiceFactory '" + factory + "' failed to create service!");
+            re.printStackTrace(System.err);
+            return null;
+        }
+
+        if (instance != null) {
+            for (String objectClass : registration.getObjectClasses()) {
+                try {
+                    if (!getServiceClass(objectClass).isInstance(instance)) {
+                        System.err.println("ServiceFactory '" + factory + "' created service not being a '" +
+                                objectClass + "'!");
+                        return null;
+                    }
+                }
+                catch (ClassNotFoundException cnfe) {
+                    return null;
+                }
+            }
+        }
+
+        return instance;
+    }
+
+    /**
+     * Releases the use of a service by a bundle. The bundle stops using the service when it has ungot it as many
+     * times as it got it, and for a ServiceFactory service the instance of the bundle is then returned to the
+     * factory.
+     *
+     * @param bundle The bundle releasing the service.
+     * @param reference The reference to the service to release.
+     *
+     * @return false if the bundle was not using the service.
+     */
+    public boolean ungetService(Bundle bundle, ServiceReference reference) {
+        if (!(reference instanceof OTRServiceReference)) {
+            return false;
+        }
+        OTRServiceRegistration registration = ((OTRServiceReference) reference).getRegistration();
+        if (registration == null) {
+            return false;
+        }
+
+        ServiceUse use = registration.getServiceUses().get(bundle);
+        if (use == null) {
+            return false;
+        }
+        boolean lastUse;
+        synchronized (use) {
+            if (use.isReleased() || use.getCount() <= 0) {
+                return false;
+            }
+            lastUse = use.decrement() == 0;
+            if (lastUse && registration.getService() instanceof ServiceFactory) {
+                releaseFactoryService(bundle, registration, use);
+            }
+        }
+
+        if (lastUse) {
+            removeUsedService(bundle, registration);
+        }
+        return true;
+    }
+
+    /**
+     * Ends the use of a ServiceFactory service by a bundle, giving the instance back to the factory. The caller
+     * must synchronize on the use.
+     *
+     * @param bundle The bundle that used the service.
+     * @param registration The registration of the service.
+     * @param use The use to end.
+     */
+    private void releaseFactoryService(Bundle bundle, OTRServiceRegistration registration, ServiceUse use) {
+        Object instance = use.getInstance();
+        use.release();
+        registration.getServiceUses().remove(bundle, use);
+        try {
+            ((ServiceFactory) registration.getService()).ungetService(bundle, registration, instance);
+        }
+        catch (RuntimeException re) {
+            System.err.println("ServiceFactory '" + registration.getService() + "' failed to release service!");
+            re.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Ends the uses of all bundles of an unregistered service.
+     *
+     * @param registration The registration of the unregistered service.
+     */
+    private void releaseServiceUses(OTRServiceRegistration registration) {
+        for (Map.Entry<Bundle, ServiceUse> entry : registration.getServiceUses().entrySet()) {
+            releaseServiceUse(entry.getKey(), registration, entry.getValue());
+            removeUsedService(entry.getKey(), registration);
+        }
+    }
+
+    /**
+     * Ends all uses of services by a bundle, giving the instances of ServiceFactory services back to their
+     * factories. Called when the bundle is stopped or uninstalled.
+     *
+     * @param bundle The bundle whose uses to end.
+     */
+    public void releaseServiceUses(Bundle bundle) {
+        Set<OTRServiceRegistration> used = this.usedServices.remove(bundle);
+        if (used == null) {
+            return;
+        }
+        for (OTRServiceRegistration registration : used) {
+            ServiceUse use = registration.getServiceUses().get(bundle);
+            if (use != null) {
+                releaseServiceUse(bundle, registration, use);
+            }
+        }
+    }
+
+    /**
+     * Ends a use of a service unless already ended.
+     *
+     * @param bundle The bundle that used the service.
+     * @param registration The registration of the service.
+     * @param use The use to end.
+     */
+    private void releaseServiceUse(Bundle bundle, OTRServiceRegistration registration, ServiceUse use) {
+        synchronized (use) {
+            if (!use.isReleased()) {
+                if (registration.getService() instanceof ServiceFactory) {
+                    releaseFactoryService(bundle, registration, use);
+                }
+                else {
+                    use.release();
+                    registration.getServiceUses().remove(bundle, use);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unregisters the services of a bundle that are still registered. Called when the bundle is stopped or
+     * uninstalled.
+     *
+     * @param bundle The bundle whose services to unregister.
+     */
+    public void unregisterServices(Bundle bundle) {
+        for (OTRServiceRegistration registration : this.snapshot.getRegistrations(bundle)) {
+            try {
+                unregisterService(registration);
+            }
+            catch (IllegalStateException ise) {
+                // Unregistered by another thread since we got the snapshot.
+            }
+        }
+    }
+
+    /**
+     * Returns the bundles currently using a service, or null if no bundle is.
+     *
+     * @param registration The registration of the service.
+     */
+    public Bundle[] getUsingBundles(OTRServiceRegistration registration) {
+        List<Bundle> bundles = new ArrayList<>();
+        for (Map.Entry<Bundle, ServiceUse> entry : registration.getServiceUses().entrySet()) {
+            if (!entry.getValue().isReleased() && entry.getValue().getCount() > 0) {
+                bundles.add(entry.getKey());
+            }
+        }
+
+        return bundles.isEmpty() ? null : bundles.toArray(new Bundle[bundles.size()]);
+    }
+
+    /**
+     * Returns true if a service is registered and not being unregistered.
+     *
+     * @param registration The registration of the service.
+     */
+    public boolean isRegistered(OTRServiceRegistration registration) {
+        return registration != null && this.services.contains(registration) && !this.unregistering.contains(registration);
+    }
+
     /**
      * Returns the ServiceReference objects of all registered services.
      */
     public ServiceReference[] getRegisteredServices() {
-        List<ServiceReference> refs = new ArrayList<>();
-        for (Map.Entry<OTRServiceRegistration, Object> entry : this.services.entrySet()) {
-            refs.add(entry.getKey().getReference());
+        return this.snapshot.getServiceReferences();
+    }
+
+    /**
+     * Returns the ServiceReference objects of all services registered by a bundle.
+     *
+     * @param bundle The bundle to get registered services for.
+     */
+    public ServiceReference[] getRegisteredServices(Bundle bundle) {
+        return this.snapshot.getRegisteredServices(bundle);
+    }
+
+    /**
+     * Returns the number of bundles currently recorded as using services.
+     */
+    public int getUsingBundleCount() {
+        return this.usedServices.size();
+    }
+
+    /**
+     * Returns the ServiceReference objects of the services a bundle is currently using, or null if it is not
+     * using any.
+     *
+     * @param bundle The bundle to get services in use for.
+     */
+    public ServiceReference[] getServicesInUse(Bundle bundle) {
+        Set<OTRServiceRegistration> used = this.usedServices.get(bundle);
+        if (used == null) {
+            return null;
+        }
+
+        List<ServiceReference> references = new ArrayList<>();
+        for (OTRServiceRegistration registration : used) {
+            ServiceUse use = registration.getServiceUses().get(bundle);
+            if (use != null && !use.isReleased() && use.getCount() > 0) {
+                references.add(registration.getReference());
+            }
         }
-        ServiceReference[] refsArray = new ServiceReference[refs.size()];
-        return refs.toArray(refsArray);
+
+        return references.isEmpty() ? null : references.toArray(new ServiceReference[references.size()]);
+    }
+
+    /**
+     * Enables or disables instrumentation. Enabling starts collecting into a new RegistryStats.
+     *
+     * @param enabled True to enable.
+     */
+    public void setStatsEnabled(boolean enabled) {
+        this.stats = enabled ? new RegistryStats() : null;
+    }
+
+    /**
+     * Returns the counts and latencies collected since instrumentation was enabled, or null if disabled.
+     */
+    public RegistryStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Returns the watchdog timing the service and bundle listener callbacks of the framework.
+     */
+    public ListenerWatchdog getWatchdog() {
+        return this.watchdog;
     }
 
     /**
-     * Currently returns the same as getRegisteredServices!
+     * Returns an immutable snapshot of the registry as it is right now. The snapshot does not change when
+     * services are registered or unregistered later.
      */
-    public ServiceReference[] getServicesInUse() {
-        return getRegisteredServices();
+    public RegistrySnapshot getSnapshot() {
+        return this.snapshot;
     }
 
 }
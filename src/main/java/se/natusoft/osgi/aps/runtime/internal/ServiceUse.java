@@ -0,0 +1,109 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The use of a service by one bundle. For a ServiceFactory service this holds the instance created for the
+ * bundle.
+ *
+ * getService() calls are counted by a LongAdder, so that many threads of a bundle getting the same service
+ * do not contend. Everything else must synchronize on the ServiceUse, which guards the creation of a
+ * factory instance so that concurrent first calls from a bundle create only one instance, and makes sure
+ * ungetService() calls never bring the count below zero.
+ *
+ * For internal use.
+ */
+public class ServiceUse {
+
+    //
+    // Private Members
+    //
+
+    /** The service instance used by the bundle. */
+    private Object instance;
+
+    /** The number of getService() calls. */
+    private LongAdder gets = new LongAdder();
+
+    /** The number of ungetService() calls. */
+    private volatile long ungets;
+
+    /** Set when the use has ended, after which this must no longer be used. */
+    private volatile boolean released;
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the service instance used by the bundle or null if not yet got.
+     */
+    Object getInstance() {
+        return this.instance;
+    }
+
+    /**
+     * Sets the service instance used by the bundle.
+     *
+     * @param instance The instance to set.
+     */
+    void setInstance( Object instance ) {
+        this.instance = instance;
+    }
+
+    /**
+     * Counts a getService() call. This does not need to synchronize on the use.
+     */
+    void increment() {
+        this.gets.increment();
+    }
+
+    /**
+     * Counts an ungetService() call.
+     *
+     * @return the remaining count.
+     */
+    long decrement() {
+        ++this.ungets;
+        return getCount();
+    }
+
+    /**
+     * Returns the number of getService() calls not yet matched by ungetService(). This does not need to
+     * synchronize on the use, but might then miss calls being made.
+     */
+    long getCount() {
+        return this.gets.sum() - this.ungets;
+    }
+
+    /**
+     * Returns true if the use has ended.
+     */
+    boolean isReleased() {
+        return this.released;
+    }
+
+    /**
+     * Ends the use.
+     */
+    void release() {
+        this.released = true;
+    }
+}
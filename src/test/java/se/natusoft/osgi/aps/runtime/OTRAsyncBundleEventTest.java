@@ -0,0 +1,157 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.SynchronousBundleListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that plain BundleListeners get their events in order on a background thread, and that
+ * SynchronousBundleListeners get them before the sending returns.
+ */
+public class OTRAsyncBundleEventTest {
+
+    //
+    // Private Members
+    //
+
+    private OTROSGiServiceTestTools tools;
+
+    private OTRBundle listening;
+
+    //
+    // Setup
+    //
+
+    @Before
+    public void setUp() {
+        this.tools = new OTROSGiServiceTestTools();
+        this.listening = this.tools.createBundle( "listening" );
+    }
+
+    @After
+    public void tearDown() {
+        this.tools.shutdown();
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void plainListenerGetsEventsInOrderOnAnotherThread() throws Exception {
+        List<Integer> types = Collections.synchronizedList( new ArrayList<>() );
+        List<Thread> threads = Collections.synchronizedList( new ArrayList<>() );
+        this.listening.getBundleContext().addBundleListener( (BundleListener) event -> {
+            types.add( event.getType() );
+            threads.add( Thread.currentThread() );
+        } );
+
+        OTRBundle other = this.tools.createBundle( "other" );
+        other.start();
+        other.stop();
+        this.tools.removeBundle( other );
+
+        assertTrue( this.tools.awaitBundleEvents( 5, TimeUnit.SECONDS ) );
+        assertEquals( Arrays.asList( BundleEvent.INSTALLED, BundleEvent.RESOLVED, BundleEvent.STARTED,
+                BundleEvent.STOPPED, BundleEvent.UNINSTALLED ), types );
+        for ( Thread thread : threads ) {
+            assertNotSame( Thread.currentThread(), thread );
+        }
+    }
+
+    @Test
+    public void synchronousListenerGetsAllEventsBeforeReturn() throws Exception {
+        List<Integer> types = Collections.synchronizedList( new ArrayList<>() );
+        List<Thread> threads = Collections.synchronizedList( new ArrayList<>() );
+        this.listening.getBundleContext().addBundleListener( (SynchronousBundleListener) event -> {
+            types.add( event.getType() );
+            threads.add( Thread.currentThread() );
+        } );
+
+        OTRBundle other = this.tools.createBundle( "other" );
+        other.start();
+        assertEquals( Arrays.asList( BundleEvent.INSTALLED, BundleEvent.RESOLVED, BundleEvent.STARTING,
+                BundleEvent.STARTED ), types );
+
+        other.stop();
+        assertEquals( Arrays.asList( BundleEvent.INSTALLED, BundleEvent.RESOLVED, BundleEvent.STARTING,
+                BundleEvent.STARTED, BundleEvent.STOPPING, BundleEvent.STOPPED ), types );
+        for ( Thread thread : threads ) {
+            assertSame( Thread.currentThread(), thread );
+        }
+    }
+
+    @Test
+    public void slowPlainListenerDoesNotBlockTheSender() throws Exception {
+        CountDownLatch release = new CountDownLatch( 1 );
+        List<Integer> types = Collections.synchronizedList( new ArrayList<>() );
+        this.listening.getBundleContext().addBundleListener( (BundleListener) event -> {
+            try {
+                release.await( 5, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException ignore ) {
+            }
+            types.add( event.getType() );
+        } );
+
+        this.tools.createBundle( "other" );
+        assertFalse( this.tools.awaitBundleEvents( 20, TimeUnit.MILLISECONDS ) );
+        assertTrue( types.isEmpty() );
+
+        release.countDown();
+        assertTrue( this.tools.awaitBundleEvents( 5, TimeUnit.SECONDS ) );
+        assertEquals( Collections.singletonList( BundleEvent.INSTALLED ), types );
+    }
+
+    @Test
+    public void removedListenerGetsNoQueuedEvents() throws Exception {
+        CountDownLatch release = new CountDownLatch( 1 );
+        this.listening.getBundleContext().addBundleListener( (BundleListener) event -> {
+            try {
+                release.await( 5, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException ignore ) {
+            }
+        } );
+        List<Integer> types = Collections.synchronizedList( new ArrayList<>() );
+        BundleListener removed = event -> types.add( event.getType() );
+        this.listening.getBundleContext().addBundleListener( removed );
+
+        // The first listener holds up the dispatcher while the second is removed.
+        this.tools.createBundle( "other" );
+        this.listening.getBundleContext().removeBundleListener( removed );
+        release.countDown();
+
+        assertTrue( this.tools.awaitBundleEvents( 5, TimeUnit.SECONDS ) );
+        assertTrue( types.isEmpty() );
+    }
+}
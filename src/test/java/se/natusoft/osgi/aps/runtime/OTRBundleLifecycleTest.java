@@ -0,0 +1,394 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the lifecycle states and events of bundles, and lazy activation.
+ */
+public class OTRBundleLifecycleTest {
+
+    /**
+     * Counts its calls and registers a Runnable service when started.
+     */
+    private static class CountingActivator implements BundleActivator {
+        private int starts = 0;
+        private int stops = 0;
+
+        @Override
+        public void start( BundleContext context ) {
+            this.starts++;
+            context.registerService( Runnable.class.getName(), (Runnable) () -> {}, null );
+        }
+
+        @Override
+        public void stop( BundleContext context ) {
+            this.stops++;
+        }
+    }
+
+    //
+    // Private Members
+    //
+
+    private OTROSGiServiceTestTools tools;
+
+    private List<Integer> events = Collections.synchronizedList( new ArrayList<>() );
+
+    //
+    // Setup
+    //
+
+    @Before
+    public void setUp() {
+        this.tools = new OTROSGiServiceTestTools();
+        this.tools.createBundle( "listening" ).getBundleContext().addBundleListener(
+                (SynchronousBundleListener) event -> {
+                    if ( !event.getBundle().getSymbolicName().equals( "listening" ) ) {
+                        this.events.add( event.getType() );
+                    }
+                } );
+    }
+
+    @After
+    public void tearDown() {
+        this.tools.shutdown();
+    }
+
+    //
+    // Support
+    //
+
+    private OTRBundle createBundle( BundleActivator activator, String... headers ) {
+        OTRBundle bundle = this.tools.createBundle( "bundle" );
+        Hashtable<Object, Object> headerDict = new Hashtable<>();
+        for ( int i = 0; i < headers.length; i += 2 ) {
+            headerDict.put( headers[ i ], headers[ i + 1 ] );
+        }
+        bundle.setHeaders( headerDict );
+        bundle.setActivator( activator );
+        this.events.clear();
+        return bundle;
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void eagerStartAndStop() throws Exception {
+        CountingActivator activator = new CountingActivator();
+        OTRBundle bundle = createBundle( activator );
+        assertEquals( Bundle.INSTALLED, bundle.getState() );
+
+        bundle.start();
+        assertEquals( Bundle.ACTIVE, bundle.getState() );
+        assertEquals( 1, activator.starts );
+        bundle.start();
+        assertEquals( 1, activator.starts );
+
+        bundle.stop();
+        assertEquals( Bundle.RESOLVED, bundle.getState() );
+        assertEquals( 1, activator.stops );
+        bundle.stop();
+        assertEquals( 1, activator.stops );
+
+        assertEquals( Arrays.asList( BundleEvent.RESOLVED, BundleEvent.STARTING, BundleEvent.STARTED,
+                BundleEvent.STOPPING, BundleEvent.STOPPED ), this.events );
+    }
+
+    @Test
+    public void failingActivatorLeavesBundleResolved() {
+        OTRBundle bundle = createBundle( new BundleActivator() {
+            @Override
+            public void start( BundleContext context ) {
+                throw new IllegalStateException( "Broken!" );
+            }
+
+            @Override
+            public void stop( BundleContext context ) {
+            }
+        } );
+
+        try {
+            bundle.start();
+            fail( "Expected BundleException!" );
+        }
+        catch ( BundleException be ) {
+            assertTrue( be.getCause() instanceof IllegalStateException );
+        }
+        assertEquals( Bundle.RESOLVED, bundle.getState() );
+        assertEquals( Arrays.asList( BundleEvent.RESOLVED, BundleEvent.STARTING, BundleEvent.STOPPING,
+                BundleEvent.STOPPED ), this.events );
+    }
+
+    @Test
+    public void uninstallStopsAndCanOnlyBeDoneOnce() throws Exception {
+        CountingActivator activator = new CountingActivator();
+        OTRBundle bundle = createBundle( activator );
+        bundle.start();
+
+        bundle.uninstall();
+        assertEquals( Bundle.UNINSTALLED, bundle.getState() );
+        assertEquals( 1, activator.stops );
+        assertEquals( BundleEvent.UNINSTALLED, (int) this.events.get( this.events.size() - 1 ) );
+
+        try {
+            bundle.uninstall();
+            fail( "Expected IllegalStateException!" );
+        }
+        catch ( IllegalStateException expected ) {
+            // Already uninstalled.
+        }
+        try {
+            bundle.start();
+            fail( "Expected IllegalStateException!" );
+        }
+        catch ( IllegalStateException expected ) {
+            // Can not start an uninstalled bundle.
+        }
+    }
+
+    @Test
+    public void lazyBundleWaitsForActivationPolicyStart() throws Exception {
+        CountingActivator activator = new CountingActivator();
+        OTRBundle bundle = createBundle( activator, Constants.BUNDLE_ACTIVATIONPOLICY, Constants.ACTIVATION_LAZY );
+
+        bundle.start( Bundle.START_ACTIVATION_POLICY );
+        assertEquals( Bundle.STARTING, bundle.getState() );
+        assertEquals( 0, activator.starts );
+        assertEquals( Arrays.asList( BundleEvent.RESOLVED, BundleEvent.LAZY_ACTIVATION ), this.events );
+
+        // A plain start() activates eagerly.
+        bundle.start();
+        assertEquals( Bundle.ACTIVE, bundle.getState() );
+        assertEquals( 1, activator.starts );
+    }
+
+    @Test
+    public void lazyBundleActivatesOnFirstClassLoad() throws Exception {
+        CountingActivator activator = new CountingActivator();
+        OTRBundle bundle = createBundle( activator, Constants.BUNDLE_ACTIVATIONPOLICY, Constants.ACTIVATION_LAZY );
+        bundle.start( Bundle.START_ACTIVATION_POLICY );
+
+        bundle.loadClass( "java.util.ArrayList" );
+        assertEquals( Bundle.ACTIVE, bundle.getState() );
+        assertEquals( 1, activator.starts );
+
+        bundle.loadClass( "java.util.LinkedList" );
+        assertEquals( 1, activator.starts );
+        assertEquals( Arrays.asList( BundleEvent.RESOLVED, BundleEvent.LAZY_ACTIVATION, BundleEvent.STARTING,
+                BundleEvent.STARTED ), this.events );
+    }
+
+    @Test
+    public void excludedPackageDoesNotActivate() throws Exception {
+        CountingActivator activator = new CountingActivator();
+        OTRBundle bundle = createBundle( activator, Constants.BUNDLE_ACTIVATIONPOLICY,
+                Constants.ACTIVATION_LAZY + ";" + Constants.EXCLUDE_DIRECTIVE + ":=\"java.util\"" );
+        bundle.start( Bundle.START_ACTIVATION_POLICY );
+
+        bundle.loadClass( "java.util.ArrayList" );
+        assertEquals( Bundle.STARTING, bundle.getState() );
+
+        bundle.loadClass( "java.lang.String" );
+        assertEquals( Bundle.ACTIVE, bundle.getState() );
+        assertEquals( 1, activator.starts );
+    }
+
+    @Test
+    public void lazyBundleActivatesOnServiceRequestOfExportedPackage() throws Exception {
+        CountingActivator activator = new CountingActivator();
+        OTRBundle bundle = createBundle( activator, Constants.BUNDLE_ACTIVATIONPOLICY, Constants.ACTIVATION_LAZY,
+                Constants.EXPORT_PACKAGE, "java.lang;version=1.0" );
+        bundle.start( Bundle.START_ACTIVATION_POLICY );
+        BundleContext consumer = this.tools.createBundle( "consumer" ).getBundleContext();
+
+        assertNull( consumer.getServiceReference( List.class.getName() ) );
+        assertEquals( Bundle.STARTING, bundle.getState() );
+
+        // The service registered by the activator is found by the request that activated the bundle.
+        assertNotNull( consumer.getServiceReference( Runnable.class.getName() ) );
+        assertEquals( Bundle.ACTIVE, bundle.getState() );
+        assertEquals( 1, activator.starts );
+    }
+
+    @Test
+    public void stoppingLazyBundleBeforeActivationDoesNotCallActivator() throws Exception {
+        CountingActivator activator = new CountingActivator();
+        OTRBundle bundle = createBundle( activator, Constants.BUNDLE_ACTIVATIONPOLICY, Constants.ACTIVATION_LAZY );
+        bundle.start( Bundle.START_ACTIVATION_POLICY );
+
+        bundle.stop();
+        assertEquals( Bundle.RESOLVED, bundle.getState() );
+        assertEquals( 0, activator.stops );
+
+        bundle.loadClass( "java.util.ArrayList" );
+        assertEquals( Bundle.RESOLVED, bundle.getState() );
+        assertEquals( 0, activator.starts );
+    }
+
+    @Test
+    public void stopUnregistersServicesAndReleasesUsedServices() throws Exception {
+        BundleContext provider = this.tools.createBundle( "provider" ).getBundleContext();
+        ServiceRegistration used = provider.registerService( List.class.getName(), new ArrayList<>(), null );
+
+        OTRBundle bundle = createBundle( new CountingActivator() {
+            @Override
+            public void start( BundleContext context ) {
+                super.start( context );
+                context.getService( context.getServiceReference( List.class.getName() ) );
+            }
+        } );
+        AtomicInteger unregistering = new AtomicInteger();
+        provider.addServiceListener( event -> {
+            if ( event.getType() == ServiceEvent.UNREGISTERING ) {
+                unregistering.incrementAndGet();
+            }
+        }, "(objectClass=java.lang.Runnable)" );
+
+        bundle.start();
+        assertEquals( 1, bundle.getRegisteredServices().length );
+        assertEquals( 1, used.getReference().getUsingBundles().length );
+
+        bundle.stop();
+        assertEquals( 0, bundle.getRegisteredServices().length );
+        assertNull( bundle.getServicesInUse() );
+        assertNull( used.getReference().getUsingBundles() );
+        assertEquals( 1, unregistering.get() );
+        assertNull( provider.getServiceReference( Runnable.class.getName() ) );
+    }
+
+    @Test
+    public void removeUnregistersServicesOfBundleNeverStarted() {
+        OTRBundle bundle = createBundle( null );
+        ServiceRegistration registration = bundle.getBundleContext().registerService( Runnable.class.getName(),
+                (Runnable) () -> {}, null );
+        ServiceReference reference = registration.getReference();
+        BundleContext consumer = this.tools.createBundle( "consumer" ).getBundleContext();
+
+        this.tools.removeBundle( bundle );
+        assertNull( consumer.getService( reference ) );
+        assertNull( consumer.getServiceReference( Runnable.class.getName() ) );
+    }
+
+    @Test
+    public void activatorIsNotCalledHoldingTheLifecycleLock() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger statesSeen = new AtomicInteger();
+        OTRBundle bundle = createBundle( new CountingActivator() {
+            @Override
+            public void start( BundleContext context ) {
+                super.start( context );
+                // A class load of the lazy bundle on another thread must not wait for this activation.
+                Thread loader = new Thread( () -> {
+                    try {
+                        context.getBundle().loadClass( "java.util.ArrayList" );
+                        statesSeen.set( context.getBundle().getState() );
+                    }
+                    catch ( Throwable t ) {
+                        failure.set( t );
+                    }
+                } );
+                loader.start();
+                try {
+                    loader.join( 5000 );
+                }
+                catch ( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                }
+                if ( loader.isAlive() ) {
+                    failure.set( new AssertionError( "Class load waited for the activator!" ) );
+                }
+            }
+        }, Constants.BUNDLE_ACTIVATIONPOLICY, Constants.ACTIVATION_LAZY );
+        bundle.start( Bundle.START_ACTIVATION_POLICY );
+
+        bundle.loadClass( "java.lang.String" );
+        assertNull( failure.get() );
+        assertEquals( Bundle.STARTING, statesSeen.get() );
+        assertEquals( Bundle.ACTIVE, bundle.getState() );
+        assertTrue( this.tools.getFrameworkErrors().isEmpty() );
+    }
+
+    @Test
+    public void failingLazyActivationIsReportedAsFrameworkError() throws Exception {
+        OTRTestResults testResults = new OTRTestResults();
+        this.tools.setSlowListenerWatchdog( 10, TimeUnit.SECONDS, testResults );
+        List<FrameworkEvent> received = new ArrayList<>();
+        this.tools.createBundle( "observer" ).getBundleContext().addFrameworkListener( received::add );
+
+        OTRBundle bundle = createBundle( new BundleActivator() {
+            @Override
+            public void start( BundleContext context ) {
+                throw new IllegalStateException( "Broken!" );
+            }
+
+            @Override
+            public void stop( BundleContext context ) {
+            }
+        }, Constants.BUNDLE_ACTIVATIONPOLICY, Constants.ACTIVATION_LAZY );
+        bundle.start( Bundle.START_ACTIVATION_POLICY );
+
+        bundle.loadClass( "java.util.ArrayList" );
+        assertEquals( Bundle.RESOLVED, bundle.getState() );
+
+        assertEquals( 1, this.tools.getFrameworkErrors().size() );
+        FrameworkEvent error = this.tools.getFrameworkErrors().get( 0 );
+        assertEquals( FrameworkEvent.ERROR, error.getType() );
+        assertSame( bundle, error.getBundle() );
+        assertTrue( error.getThrowable() instanceof BundleException );
+        assertEquals( Collections.singletonList( error ), received );
+        assertFalse( testResults.testOK );
+    }
+
+    @Test
+    public void failingStopOnRemoveIsReportedAsFrameworkError() throws Exception {
+        OTRBundle bundle = createBundle( new BundleActivator() {
+            @Override
+            public void start( BundleContext context ) {
+            }
+
+            @Override
+            public void stop( BundleContext context ) {
+                throw new IllegalStateException( "Broken!" );
+            }
+        } );
+        bundle.start();
+
+        this.tools.removeBundle( bundle );
+        assertEquals( Bundle.UNINSTALLED, bundle.getState() );
+        assertEquals( 1, this.tools.getFrameworkErrors().size() );
+        assertTrue( this.tools.getFrameworkErrors().get( 0 ).getThrowable().getCause() instanceof IllegalStateException );
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the framework level registry of bundle listeners.
+ */
+public class OTRBundleListenerTest {
+
+    /**
+     * Records the events it gets as "type:symbolicName". Synchronous so that events are seen when sent.
+     */
+    private static class RecordingListener implements SynchronousBundleListener {
+        private List<String> events = Collections.synchronizedList( new ArrayList<>() );
+
+        @Override
+        public void bundleChanged( BundleEvent event ) {
+            this.events.add( event.getType() + ":" + event.getBundle().getSymbolicName() );
+        }
+    }
+
+    //
+    // Private Members
+    //
+
+    private OTROSGiServiceTestTools tools;
+
+    //
+    // Setup
+    //
+
+    @Before
+    public void setUp() {
+        this.tools = new OTROSGiServiceTestTools();
+    }
+
+    @After
+    public void tearDown() {
+        this.tools.shutdown();
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void listenerGetsEventsOfAllBundles() {
+        OTRBundle listening = this.tools.createBundle( "listening" );
+        RecordingListener listener = new RecordingListener();
+        listening.getBundleContext().addBundleListener( listener );
+
+        OTRBundle other = this.tools.createBundle( "other" );
+        this.tools.removeBundle( other );
+
+        assertEquals( Arrays.asList( BundleEvent.INSTALLED + ":other", BundleEvent.UNINSTALLED + ":other" ),
+                listener.events );
+    }
+
+    @Test
+    public void addingTheSameListenerTwiceDeliversOnce() {
+        OTRBundle listening = this.tools.createBundle( "listening" );
+        RecordingListener listener = new RecordingListener();
+        listening.getBundleContext().addBundleListener( listener );
+        listening.getBundleContext().addBundleListener( listener );
+
+        this.tools.createBundle( "other" );
+
+        assertEquals( Collections.singletonList( BundleEvent.INSTALLED + ":other" ), listener.events );
+    }
+
+    @Test
+    public void sameListenerAddedByTwoBundlesIsKeptPerBundle() {
+        OTRBundle first = this.tools.createBundle( "first" );
+        OTRBundle second = this.tools.createBundle( "second" );
+        RecordingListener listener = new RecordingListener();
+        first.getBundleContext().addBundleListener( listener );
+        second.getBundleContext().addBundleListener( listener );
+
+        this.tools.createBundle( "third" );
+        assertEquals( 2, listener.events.size() );
+
+        first.getBundleContext().removeBundleListener( listener );
+        this.tools.createBundle( "fourth" );
+        assertEquals( 3, listener.events.size() );
+    }
+
+    @Test
+    public void removedListenerGetsNoMoreEvents() {
+        OTRBundle listening = this.tools.createBundle( "listening" );
+        RecordingListener listener = new RecordingListener();
+        listening.getBundleContext().addBundleListener( listener );
+        this.tools.createBundle( "before" );
+
+        listening.getBundleContext().removeBundleListener( listener );
+        listening.getBundleContext().removeBundleListener( listener );
+        this.tools.createBundle( "after" );
+
+        assertEquals( Collections.singletonList( BundleEvent.INSTALLED + ":before" ), listener.events );
+    }
+
+    @Test
+    public void listenersOfRemovedBundleAreDropped() {
+        OTRBundle listening = this.tools.createBundle( "listening" );
+        RecordingListener listener = new RecordingListener();
+        listening.getBundleContext().addBundleListener( listener );
+
+        this.tools.removeBundle( listening );
+        this.tools.createBundle( "after" );
+
+        assertFalse( listener.events.contains( BundleEvent.INSTALLED + ":after" ) );
+    }
+}
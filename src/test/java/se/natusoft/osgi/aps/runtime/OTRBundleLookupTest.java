@@ -0,0 +1,153 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the lookup of bundles by id and by symbolic name.
+ */
+public class OTRBundleLookupTest {
+
+    //
+    // Private Members
+    //
+
+    private OTROSGiServiceTestTools tools;
+
+    //
+    // Setup
+    //
+
+    @Before
+    public void setUp() {
+        this.tools = new OTROSGiServiceTestTools();
+    }
+
+    @After
+    public void tearDown() {
+        this.tools.shutdown();
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void getBundleByIdReturnsThatBundleAndNotTheCaller() {
+        OTRBundle caller = this.tools.createBundle( "caller" );
+        OTRBundle first = this.tools.createBundle( "first" );
+        OTRBundle second = this.tools.createBundle( "second" );
+
+        assertSame( first, caller.getBundleContext().getBundle( first.getBundleId() ) );
+        assertSame( second, caller.getBundleContext().getBundle( second.getBundleId() ) );
+        assertSame( caller, caller.getBundleContext().getBundle( caller.getBundleId() ) );
+        assertSame( second, this.tools.getBundleById( second.getBundleId() ) );
+    }
+
+    @Test
+    public void getBundleByUnknownIdReturnsNull() {
+        OTRBundle caller = this.tools.createBundle( "caller" );
+
+        assertNull( caller.getBundleContext().getBundle( 4711 ) );
+        assertNull( caller.getBundleContext().getBundle( -1 ) );
+    }
+
+    @Test
+    public void removedBundleIsNoLongerFound() {
+        OTRBundle caller = this.tools.createBundle( "caller" );
+        OTRBundle removed = this.tools.createBundle( "removed" );
+
+        this.tools.removeBundle( removed );
+
+        assertNull( caller.getBundleContext().getBundle( removed.getBundleId() ) );
+        assertNull( this.tools.getBundleBySymbolicName( "removed" ) );
+        assertEquals( 1, caller.getBundleContext().getBundles().length );
+        assertFalse( this.tools.getBundles().contains( removed ) );
+    }
+
+    @Test
+    public void symbolicNameLookupReturnsHighestVersion() {
+        OTRBundle old = this.tools.createBundle( "lib" );
+        old.setVersion( new Version( "1.0.0" ) );
+        OTRBundle newest = this.tools.createBundle( "lib" );
+        newest.setVersion( new Version( "2.1.0" ) );
+        OTRBundle middle = this.tools.createBundle( "lib" );
+        middle.setVersion( new Version( "2.0.0" ) );
+
+        assertSame( newest, this.tools.getBundleBySymbolicName( "lib" ) );
+        assertSame( middle, this.tools.getBundleBySymbolicName( "lib", new Version( "2.0.0" ) ) );
+        assertSame( old, this.tools.getBundleBySymbolicName( "lib", new Version( "1.0.0" ) ) );
+        assertNull( this.tools.getBundleBySymbolicName( "lib", new Version( "3.0.0" ) ) );
+        assertNull( this.tools.getBundleBySymbolicName( "other" ) );
+
+        this.tools.removeBundle( newest );
+        assertSame( middle, this.tools.getBundleBySymbolicName( "lib" ) );
+    }
+
+    @Test
+    public void bundleContextLookupsByName() {
+        OTRBundle caller = this.tools.createBundle( "caller" );
+        OTRBundle lib = this.tools.createBundle( "lib" );
+        lib.setVersion( new Version( "1.2.3" ) );
+
+        OTRBundleContext context = (OTRBundleContext) caller.getBundleContext();
+        assertSame( lib, context.getBundle( "lib" ) );
+        assertSame( lib, context.getBundle( "lib", new Version( "1.2.3" ) ) );
+        assertNull( context.getBundle( "lib", new Version( "1.2.4" ) ) );
+
+        Bundle[] bundles = context.getBundles();
+        assertArrayEquals( new Bundle[]{ caller, lib }, bundles );
+    }
+
+    @Test
+    @SuppressWarnings( "deprecation" )
+    public void frameworkInstancesDoNotSeeEachOthersBundles() {
+        OTROSGiServiceTestTools otherTools = new OTROSGiServiceTestTools();
+        try {
+            OTRBundle mine = this.tools.createBundle( "shared.name" );
+            OTRBundle theirs = otherTools.createBundle( "shared.name" );
+            theirs.getBundleContext().registerService( Runnable.class.getName(), (Runnable) () -> {}, null );
+
+            assertEquals( Collections.singletonList( mine ), this.tools.getBundles() );
+            assertEquals( Collections.singletonList( theirs ), otherTools.getBundles() );
+            assertEquals( this.tools.getBundles(), this.tools.getInternalBundles() );
+            assertSame( mine, this.tools.getBundleBySymbolicName( "shared.name" ) );
+            assertArrayEquals( new Bundle[]{ mine }, mine.getBundleContext().getBundles() );
+            assertNull( mine.getBundleContext().getServiceReference( Runnable.class.getName() ) );
+
+            // The returned list is a copy.
+            List<OTRBundle> bundles = this.tools.getBundles();
+            this.tools.createBundle( "later" );
+            assertEquals( 1, bundles.size() );
+            assertEquals( 2, this.tools.getBundles().size() );
+        }
+        finally {
+            otherTools.shutdown();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that lookups by indexed service properties follow registrations, modifications and unregistrations.
+ */
+public class OTRIndexedLookupTest {
+
+    //
+    // Private Members
+    //
+
+    private OTROSGiServiceTestTools tools;
+
+    private BundleContext context;
+
+    //
+    // Setup
+    //
+
+    @Before
+    public void setUp() {
+        this.tools = new OTROSGiServiceTestTools();
+        this.tools.indexServiceProperties( "color" );
+        this.context = this.tools.createBundle( "bundle" ).getBundleContext();
+    }
+
+    @After
+    public void tearDown() {
+        this.tools.shutdown();
+    }
+
+    //
+    // Support
+    //
+
+    private static Dictionary<String, Object> props( Object... keysAndValues ) {
+        Hashtable<String, Object> props = new Hashtable<>();
+        for ( int i = 0; i < keysAndValues.length; i += 2 ) {
+            props.put( (String) keysAndValues[ i ], keysAndValues[ i + 1 ] );
+        }
+        return props;
+    }
+
+    private int count( String filter ) throws Exception {
+        ServiceReference[] refs = this.context.getServiceReferences( Runnable.class.getName(), filter );
+        return refs != null ? refs.length : 0;
+    }
+
+    private ServiceRegistration register( Dictionary<String, Object> props ) {
+        return this.context.registerService( Runnable.class.getName(), (Runnable) () -> {}, props );
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void lookupFollowsRegisterModifyAndUnregister() throws Exception {
+        ServiceRegistration red = register( props( Constants.SERVICE_PID, "pid.red", "color", "red" ) );
+        register( props( Constants.SERVICE_PID, "pid.blue", "color", new String[]{ "blue", "green" } ) );
+
+        assertEquals( 1, count( "(color=red)" ) );
+        assertEquals( 1, count( "(color=green)" ) );
+        assertEquals( 2, count( "(color=*)" ) );
+        assertEquals( 1, count( "(service.pid=pid.red)" ) );
+
+        red.setProperties( props( Constants.SERVICE_PID, "pid.red", "color", "green" ) );
+        assertEquals( 0, count( "(color=red)" ) );
+        assertEquals( 2, count( "(color=green)" ) );
+        assertEquals( 2, count( "(color=*)" ) );
+
+        // A change of an unindexed property keeps the indexed values.
+        red.setProperties( props( Constants.SERVICE_PID, "pid.red", "color", "green", "size", 3 ) );
+        assertEquals( 2, count( "(color=green)" ) );
+        assertEquals( 1, count( "(&(color=green)(size=3))" ) );
+
+        red.setProperties( props( Constants.SERVICE_PID, "pid.red" ) );
+        assertEquals( 1, count( "(color=*)" ) );
+        assertEquals( 1, count( "(service.pid=pid.red)" ) );
+
+        red.unregister();
+        assertEquals( 0, count( "(service.pid=pid.red)" ) );
+        assertEquals( 1, count( "(color=green)" ) );
+        assertEquals( 1, this.tools.getServiceRegistrySnapshot().size() );
+    }
+
+    @Test
+    public void rankingChangeReordersIndexedLookup() throws Exception {
+        ServiceRegistration first = register( props( "color", "red" ) );
+        ServiceRegistration second = register( props( "color", "red" ) );
+
+        ServiceReference[] refs = this.context.getServiceReferences( Runnable.class.getName(), "(color=red)" );
+        assertEquals( first.getReference(), refs[ 0 ] );
+
+        second.setProperties( props( "color", "red", Constants.SERVICE_RANKING, 10 ) );
+        refs = this.context.getServiceReferences( Runnable.class.getName(), "(color=red)" );
+        assertEquals( second.getReference(), refs[ 0 ] );
+        assertEquals( second.getReference(), this.context.getServiceReference( Runnable.class.getName() ) );
+    }
+
+    @Test
+    public void manyDistinctPids() throws Exception {
+        for ( int i = 0; i < 2000; i++ ) {
+            register( props( Constants.SERVICE_PID, "pid." + i ) );
+        }
+        assertEquals( 1, count( "(service.pid=pid.1234)" ) );
+        assertEquals( 2000, count( "(service.pid=*)" ) );
+        assertEquals( 2000, this.tools.getServiceRegistrySnapshot().size() );
+    }
+
+    @Test
+    public void changingPropertyValuesAfterRegistrationDoesNotChangeTheService() throws Exception {
+        String[] colors = { "red" };
+        List<String> shapes = new ArrayList<>( Arrays.asList( "round" ) );
+        ServiceRegistration registration = register( props( "color", colors, "shape", shapes ) );
+
+        colors[ 0 ] = "blue";
+        shapes.set( 0, "square" );
+        assertEquals( 1, count( "(color=red)" ) );
+        assertEquals( 0, count( "(color=blue)" ) );
+        assertEquals( 1, count( "(shape=round)" ) );
+
+        ServiceReference reference = registration.getReference();
+        ( (String[]) reference.getProperty( "color" ) )[ 0 ] = "blue";
+        reference.getPropertyKeys()[ 0 ] = "changed";
+        ( (String[]) reference.getProperty( Constants.OBJECTCLASS ) )[ 0 ] = "changed";
+        assertArrayEquals( new String[]{ "red" }, (String[]) reference.getProperty( "color" ) );
+        assertEquals( 1, count( "(color=red)" ) );
+        assertTrue( Arrays.asList( reference.getPropertyKeys() ).contains( Constants.OBJECTCLASS ) );
+        assertEquals( Runnable.class.getName(), ( (String[]) reference.getProperty( Constants.OBJECTCLASS ) )[ 0 ] );
+    }
+
+    @Test
+    public void referencesCompareByRankingAndThenServiceId() {
+        ServiceReference first = register( props() ).getReference();
+        ServiceReference second = register( props() ).getReference();
+        ServiceReference ranked = register( props( Constants.SERVICE_RANKING, 10 ) ).getReference();
+
+        assertTrue( first.compareTo( second ) > 0 );
+        assertTrue( second.compareTo( first ) < 0 );
+        assertTrue( ranked.compareTo( first ) > 0 );
+        assertEquals( 0, first.compareTo( first ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void comparingToForeignReferenceFails() {
+        ServiceReference foreign = (ServiceReference) Proxy.newProxyInstance( getClass().getClassLoader(),
+                new Class<?>[]{ ServiceReference.class }, ( proxy, method, args ) -> null );
+
+        register( props() ).getReference().compareTo( foreign );
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the counters and latency histograms of the service registry instrumentation.
+ */
+public class OTRRegistryStatsTest {
+
+    /**
+     * A listener with a class of its own, taking at least a millisecond per event.
+     */
+    private static class SlowishListener implements ServiceListener {
+        @Override
+        public void serviceChanged( ServiceEvent event ) {
+            try {
+                Thread.sleep( 1 );
+            }
+            catch ( InterruptedException ignore ) {
+            }
+        }
+    }
+
+    //
+    // Private Members
+    //
+
+    private OTROSGiServiceTestTools tools;
+
+    private OTRBundle provider;
+    private OTRBundle consumer;
+
+    //
+    // Setup
+    //
+
+    @Before
+    public void setUp() {
+        this.tools = new OTROSGiServiceTestTools();
+        this.provider = this.tools.createBundle( "provider" );
+        this.consumer = this.tools.createBundle( "consumer" );
+    }
+
+    @After
+    public void tearDown() {
+        this.tools.shutdown();
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void disabledByDefault() {
+        assertNull( this.tools.getServiceRegistryStats() );
+
+        this.tools.setServiceRegistryStats( true );
+        assertNotNull( this.tools.getServiceRegistryStats() );
+
+        this.tools.setServiceRegistryStats( false );
+        assertNull( this.tools.getServiceRegistryStats() );
+    }
+
+    @Test
+    public void operationsAreCounted() throws Exception {
+        this.tools.setServiceRegistryStats( true );
+        OTRRegistryStats stats = this.tools.getServiceRegistryStats();
+
+        ServiceRegistration registration = this.provider.getBundleContext().registerService(
+                Runnable.class.getName(), (Runnable) () -> {}, null );
+        this.provider.getBundleContext().registerService( CharSequence.class.getName(), "svc", null );
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put( "modified", true );
+        registration.setProperties( props );
+        this.consumer.getBundleContext().getServiceReferences( Runnable.class.getName(), "(modified=true)" );
+        this.consumer.getBundleContext().getServiceReference( CharSequence.class.getName() );
+        registration.unregister();
+
+        assertEquals( 2, stats.getRegistrations() );
+        assertEquals( 1, stats.getModifications() );
+        assertEquals( 2, stats.getLookups() );
+        assertEquals( 1, stats.getUnregistrations() );
+        assertTrue( stats.getFilterEvaluations() >= 1 );
+
+        assertEquals( 2, stats.getRegistrationLatency().getCount() );
+        assertEquals( 1, stats.getModificationLatency().getCount() );
+        assertEquals( 2, stats.getLookupLatency().getCount() );
+        assertEquals( 1, stats.getUnregistrationLatency().getCount() );
+    }
+
+    @Test
+    public void enablingStartsOver() {
+        this.tools.setServiceRegistryStats( true );
+        this.provider.getBundleContext().registerService( Runnable.class.getName(), (Runnable) () -> {}, null );
+        assertEquals( 1, this.tools.getServiceRegistryStats().getRegistrations() );
+
+        this.tools.setServiceRegistryStats( true );
+        assertEquals( 0, this.tools.getServiceRegistryStats().getRegistrations() );
+        assertEquals( 0, this.tools.getServiceRegistryStats().getRegistrationLatency().getPercentile( 99 ) );
+    }
+
+    @Test
+    public void dispatchesAreRecordedPerListenerAndBundle() {
+        this.tools.setServiceRegistryStats( true );
+        OTRRegistryStats stats = this.tools.getServiceRegistryStats();
+        this.consumer.getBundleContext().addServiceListener( new SlowishListener() );
+
+        ServiceRegistration registration = this.provider.getBundleContext().registerService(
+                Runnable.class.getName(), (Runnable) () -> {}, null );
+        registration.unregister();
+
+        assertEquals( 2, stats.getDispatches() );
+        assertEquals( 2, stats.getDispatchLatency().getCount() );
+
+        OTRLatencyHistogram byListener = stats.getDispatchLatency( SlowishListener.class );
+        assertEquals( 2, byListener.getCount() );
+        assertTrue( byListener.getMax() >= TimeUnit.MILLISECONDS.toNanos( 1 ) );
+        assertTrue( byListener.getPercentile( 50, TimeUnit.MICROSECONDS ) >= 800 );
+        assertTrue( byListener.getPercentile( 99 ) <= byListener.getMax() );
+        assertTrue( byListener.getMean() <= byListener.getMax() );
+
+        assertEquals( 2, stats.getDispatchLatency( this.consumer ).getCount() );
+        assertEquals( 0, stats.getDispatchLatency( this.provider ).getCount() );
+        assertEquals( 0, stats.getDispatchLatency( Runnable.class ).getCount() );
+
+        assertTrue( stats.getDispatchLatencyByListener().containsKey( SlowishListener.class ) );
+        assertTrue( stats.getDispatchLatencyByBundle().containsKey( this.consumer ) );
+    }
+
+    @Test
+    public void filterEvaluationsAreCountedOncePerFilterMatch() throws Exception {
+        this.tools.setServiceRegistryStats( true );
+        OTRRegistryStats stats = this.tools.getServiceRegistryStats();
+        this.consumer.getBundleContext().addServiceListener( event -> {}, "(objectClass=java.lang.Runnable)" );
+        this.consumer.getBundleContext().addServiceListener( event -> {}, "(color=red)" );
+        this.consumer.getBundleContext().addServiceListener( event -> {} );
+
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put( "color", "red" );
+        ServiceRegistration registration = this.provider.getBundleContext().registerService(
+                Runnable.class.getName(), (Runnable) () -> {}, props );
+        // One evaluation per listener with a filter. No filter is never evaluated.
+        assertEquals( 2, stats.getFilterEvaluations() );
+
+        props.put( "color", "blue" );
+        registration.setProperties( props );
+        // The objectClass filter matches the new properties, while the color filter has to be evaluated against
+        // both the new and the old properties to send MODIFIED_ENDMATCH.
+        assertEquals( 5, stats.getFilterEvaluations() );
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the delivery of service events to service listeners.
+ */
+public class OTRServiceEventTest {
+
+    //
+    // Private Members
+    //
+
+    private OTROSGiServiceTestTools tools;
+
+    private BundleContext provider;
+    private BundleContext listening;
+
+    //
+    // Setup
+    //
+
+    @Before
+    public void setUp() {
+        this.tools = new OTROSGiServiceTestTools();
+        this.provider = this.tools.createBundle( "provider" ).getBundleContext();
+        this.listening = this.tools.createBundle( "listening" ).getBundleContext();
+    }
+
+    @After
+    public void tearDown() {
+        this.tools.shutdown();
+    }
+
+    //
+    // Support
+    //
+
+    private static Hashtable<String, Object> color( String color ) {
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put( "color", color );
+        return props;
+    }
+
+    /**
+     * Adds a listener recording the type and the color at delivery of each event.
+     */
+    private List<String> listen( String filter ) throws Exception {
+        List<String> events = Collections.synchronizedList( new ArrayList<>() );
+        this.listening.addServiceListener( event -> events.add( event.getType() + ":" +
+                event.getServiceReference().getProperty( "color" ) ), filter );
+        return events;
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void serviceCanBeGotWhileUnregistering() throws Exception {
+        List<Object> gotten = new ArrayList<>();
+        this.listening.addServiceListener( event -> {
+            if ( event.getType() == ServiceEvent.UNREGISTERING ) {
+                gotten.add( this.listening.getService( event.getServiceReference() ) );
+                this.listening.ungetService( event.getServiceReference() );
+            }
+        }, "(objectClass=java.lang.Runnable)" );
+
+        Runnable service = () -> {};
+        ServiceRegistration registration = this.provider.registerService( Runnable.class.getName(), service, null );
+        registration.unregister();
+
+        assertEquals( 1, gotten.size() );
+        assertSame( service, gotten.get( 0 ) );
+
+        assertNull( this.listening.getService( registration.getReference() ) );
+        assertNull( this.listening.getServiceReference( Runnable.class.getName() ) );
+    }
+
+    @Test
+    public void serviceCanNotBeModifiedOrUnregisteredAgainWhileUnregistering() throws Exception {
+        List<Class<?>> failures = new ArrayList<>();
+        ServiceRegistration[] registration = new ServiceRegistration[ 1 ];
+        this.listening.addServiceListener( event -> {
+            if ( event.getType() == ServiceEvent.UNREGISTERING ) {
+                try {
+                    registration[ 0 ].setProperties( new Hashtable<>() );
+                }
+                catch ( IllegalStateException ise ) {
+                    failures.add( ise.getClass() );
+                }
+                try {
+                    registration[ 0 ].unregister();
+                }
+                catch ( IllegalStateException ise ) {
+                    failures.add( ise.getClass() );
+                }
+            }
+        }, "(objectClass=java.lang.Runnable)" );
+
+        registration[ 0 ] = this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, null );
+        registration[ 0 ].unregister();
+
+        assertEquals( 2, failures.size() );
+    }
+
+    @Test
+    public void removingListenerOfOneBundleKeepsSameFilterOfOtherBundle() throws Exception {
+        BundleContext other = this.tools.createBundle( "other" ).getBundleContext();
+        String filter = "(&(objectClass=java.lang.Runnable)(color=red))";
+        List<Integer> events = new ArrayList<>();
+        List<Integer> otherEvents = new ArrayList<>();
+        ServiceListener listener = event -> events.add( event.getType() );
+        ServiceListener otherListener = event -> otherEvents.add( event.getType() );
+        this.listening.addServiceListener( listener, filter );
+        other.addServiceListener( otherListener, filter );
+
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put( "color", "red" );
+        this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, props );
+        assertEquals( 1, events.size() );
+        assertEquals( 1, otherEvents.size() );
+
+        other.removeServiceListener( otherListener );
+        ServiceRegistration registration =
+                this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, props );
+        registration.unregister();
+
+        assertEquals( Arrays.asList( ServiceEvent.REGISTERED, ServiceEvent.REGISTERED, ServiceEvent.UNREGISTERING ),
+                events );
+        assertEquals( 1, otherEvents.size() );
+    }
+
+    @Test
+    public void removingSharedListenerFromOneBundleKeepsItForOtherBundle() throws Exception {
+        BundleContext other = this.tools.createBundle( "other" ).getBundleContext();
+        List<Integer> events = new ArrayList<>();
+        ServiceListener listener = event -> events.add( event.getType() );
+        this.listening.addServiceListener( listener, "(objectClass=java.lang.Runnable)" );
+        other.addServiceListener( listener, "(objectClass=java.lang.Runnable)" );
+
+        this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, null );
+        assertEquals( 2, events.size() );
+
+        other.removeServiceListener( listener );
+        this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, null );
+        assertEquals( 3, events.size() );
+    }
+
+    @Test
+    public void modificationsSendModifiedAndModifiedEndmatch() throws Exception {
+        List<String> events = listen( "(color=red)" );
+        ServiceRegistration registration =
+                this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, color( "red" ) );
+
+        registration.setProperties( color( "red" ) );
+        registration.setProperties( color( "blue" ) );
+        registration.setProperties( color( "green" ) );
+        registration.setProperties( color( "red" ) );
+
+        assertEquals( Arrays.asList( ServiceEvent.REGISTERED + ":red", ServiceEvent.MODIFIED + ":red",
+                ServiceEvent.MODIFIED_ENDMATCH + ":blue", ServiceEvent.MODIFIED + ":red" ), events );
+    }
+
+    @Test
+    public void modificationsWithinWindowAreCoalesced() throws Exception {
+        this.tools.setServiceModifiedEventWindow( 100, TimeUnit.MILLISECONDS );
+        List<String> events = listen( "(objectClass=java.lang.Runnable)" );
+        ServiceRegistration registration =
+                this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, color( "red" ) );
+
+        registration.setProperties( color( "blue" ) );
+        registration.setProperties( color( "green" ) );
+        registration.setProperties( color( "yellow" ) );
+        assertEquals( Collections.singletonList( ServiceEvent.REGISTERED + ":red" ), events );
+
+        assertTrue( this.tools.awaitServiceEvents( 5, TimeUnit.SECONDS ) );
+        assertEquals( Arrays.asList( ServiceEvent.REGISTERED + ":red", ServiceEvent.MODIFIED + ":yellow" ), events );
+
+        // A new window starts with the next modification.
+        registration.setProperties( color( "black" ) );
+        assertTrue( this.tools.awaitServiceEvents( 5, TimeUnit.SECONDS ) );
+        assertEquals( 3, events.size() );
+        assertEquals( ServiceEvent.MODIFIED + ":black", events.get( 2 ) );
+    }
+
+    @Test
+    public void coalescedModificationsAreMatchedAgainstFirstAndLastProperties() throws Exception {
+        this.tools.setServiceModifiedEventWindow( 100, TimeUnit.MILLISECONDS );
+        List<String> events = listen( "(color=red)" );
+        ServiceRegistration leaving =
+                this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, color( "red" ) );
+        ServiceRegistration returning =
+                this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, color( "red" ) );
+
+        leaving.setProperties( color( "blue" ) );
+        leaving.setProperties( color( "green" ) );
+        returning.setProperties( color( "blue" ) );
+        returning.setProperties( color( "red" ) );
+
+        assertTrue( this.tools.awaitServiceEvents( 5, TimeUnit.SECONDS ) );
+        assertEquals( 4, events.size() );
+        assertTrue( events.contains( ServiceEvent.MODIFIED_ENDMATCH + ":green" ) );
+        assertTrue( events.contains( ServiceEvent.MODIFIED + ":red" ) );
+    }
+
+    @Test
+    public void pendingModificationIsSentBeforeUnregistering() throws Exception {
+        this.tools.setServiceModifiedEventWindow( 10, TimeUnit.SECONDS );
+        List<String> events = listen( "(objectClass=java.lang.Runnable)" );
+        ServiceRegistration registration =
+                this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, color( "red" ) );
+
+        registration.setProperties( color( "blue" ) );
+        registration.unregister();
+
+        assertEquals( Arrays.asList( ServiceEvent.REGISTERED + ":red", ServiceEvent.MODIFIED + ":blue",
+                ServiceEvent.UNREGISTERING + ":blue" ), events );
+        assertTrue( this.tools.awaitServiceEvents( 5, TimeUnit.SECONDS ) );
+        assertEquals( 3, events.size() );
+    }
+
+    @Test
+    public void asyncEventsOfEachServiceAreDeliveredInOrder() throws Exception {
+        this.tools.setAsyncServiceEvents( true );
+        Map<Object, List<Integer>> eventsByService = new ConcurrentHashMap<>();
+        List<Thread> deliveringThreads = Collections.synchronizedList( new ArrayList<>() );
+        this.listening.addServiceListener( event -> {
+            deliveringThreads.add( Thread.currentThread() );
+            eventsByService.computeIfAbsent( event.getServiceReference().getProperty( "name" ),
+                    name -> Collections.synchronizedList( new ArrayList<>() ) ).add( event.getType() );
+        }, "(objectClass=java.lang.Runnable)" );
+
+        int modifications = 20;
+        List<Thread> registering = new ArrayList<>();
+        for ( int t = 0; t < 4; t++ ) {
+            String name = "service" + t;
+            Thread thread = new Thread( () -> {
+                Hashtable<String, Object> props = new Hashtable<>();
+                props.put( "name", name );
+                ServiceRegistration registration =
+                        this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, props );
+                for ( int i = 0; i < modifications; i++ ) {
+                    props.put( "count", i );
+                    registration.setProperties( props );
+                }
+                registration.unregister();
+            } );
+            thread.start();
+            registering.add( thread );
+        }
+        for ( Thread thread : registering ) {
+            thread.join();
+        }
+        assertTrue( this.tools.awaitServiceEvents( 5, TimeUnit.SECONDS ) );
+
+        List<Integer> expected = new ArrayList<>();
+        expected.add( ServiceEvent.REGISTERED );
+        for ( int i = 0; i < modifications; i++ ) {
+            expected.add( ServiceEvent.MODIFIED );
+        }
+        expected.add( ServiceEvent.UNREGISTERING );
+        assertEquals( 4, eventsByService.size() );
+        for ( List<Integer> events : eventsByService.values() ) {
+            assertEquals( expected, events );
+        }
+        for ( Thread thread : deliveringThreads ) {
+            assertFalse( registering.contains( thread ) );
+        }
+    }
+
+    @Test
+    public void listenersAreCalledWithoutHoldingTheRegistryLock() throws Exception {
+        AtomicBoolean otherThreadDone = new AtomicBoolean();
+        this.listening.addServiceListener( event -> {
+            if ( event.getType() != ServiceEvent.REGISTERED ) {
+                return;
+            }
+            // Would deadlock if the registering thread held the registry lock while calling us.
+            Thread other = new Thread( () -> {
+                ServiceRegistration registration =
+                        this.provider.registerService( List.class.getName(), new ArrayList<>(), null );
+                registration.unregister();
+                otherThreadDone.set( this.listening.getServiceReference( Runnable.class.getName() ) != null );
+            } );
+            other.start();
+            try {
+                other.join( 5000 );
+            }
+            catch ( InterruptedException ie ) {
+                Thread.currentThread().interrupt();
+            }
+        }, "(objectClass=java.lang.Runnable)" );
+
+        this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, null );
+        assertTrue( otherThreadDone.get() );
+    }
+}
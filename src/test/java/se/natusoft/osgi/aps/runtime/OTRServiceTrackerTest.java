@@ -0,0 +1,185 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the selection of the best ranked service and the callbacks of OTRServiceTracker.
+ */
+public class OTRServiceTrackerTest {
+
+    //
+    // Private Members
+    //
+
+    private OTROSGiServiceTestTools tools;
+
+    private OTRBundleContext provider;
+    private OTRBundleContext consumer;
+
+    private List<String> events = Collections.synchronizedList( new ArrayList<>() );
+
+    //
+    // Setup
+    //
+
+    @Before
+    public void setUp() {
+        this.tools = new OTROSGiServiceTestTools();
+        this.provider = (OTRBundleContext) this.tools.createBundle( "provider" ).getBundleContext();
+        this.consumer = (OTRBundleContext) this.tools.createBundle( "consumer" ).getBundleContext();
+    }
+
+    @After
+    public void tearDown() {
+        this.tools.shutdown();
+    }
+
+    //
+    // Support
+    //
+
+    private static Dictionary<String, Object> props( Object... keysAndValues ) {
+        Hashtable<String, Object> props = new Hashtable<>();
+        for ( int i = 0; i < keysAndValues.length; i += 2 ) {
+            props.put( (String) keysAndValues[ i ], keysAndValues[ i + 1 ] );
+        }
+        return props;
+    }
+
+    private ServiceRegistration register( String name, int ranking ) {
+        return this.provider.registerService( CharSequence.class.getName(), name,
+                props( Constants.SERVICE_RANKING, ranking, "name", name ) );
+    }
+
+    private OTRServiceTracker track( String filter ) {
+        return this.consumer.trackService( CharSequence.class.getName(), filter )
+                .onAdded( ( reference, service ) -> this.events.add( "added " + service ) )
+                .onModified( ( reference, service ) -> this.events.add( "modified " + service ) )
+                .onRemoved( ( reference, service ) -> this.events.add( "removed " + service ) );
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void tracksServicesRegisteredBeforeAndAfterOpen() {
+        register( "before", 0 );
+        OTRServiceTracker tracker = track( null ).open();
+        assertEquals( "before", tracker.getService() );
+
+        register( "after", 0 );
+        assertEquals( 2, tracker.size() );
+        assertEquals( Arrays.asList( "added before", "added after" ), this.events );
+    }
+
+    @Test
+    public void bestRankedServiceIsSelected() {
+        OTRServiceTracker tracker = track( null ).open();
+        assertNull( tracker.getService() );
+        assertNull( tracker.getServiceReference() );
+
+        ServiceRegistration low = register( "low", 1 );
+        assertEquals( "low", tracker.getService() );
+
+        ServiceRegistration high = register( "high", 10 );
+        assertEquals( "high", tracker.getService() );
+        assertEquals( high.getReference(), tracker.getServiceReference() );
+
+        // Equal ranking prefers the lowest service id, which is the earliest registered.
+        register( "high2", 10 );
+        assertEquals( "high", tracker.getService() );
+
+        low.setProperties( props( Constants.SERVICE_RANKING, 100, "name", "low" ) );
+        assertEquals( "low", tracker.getService() );
+
+        low.unregister();
+        high.unregister();
+        assertEquals( "high2", tracker.getService() );
+    }
+
+    @Test
+    public void callbacksFollowTheTrackedServices() {
+        OTRServiceTracker tracker = track( "(name=a*)" ).open();
+
+        ServiceRegistration registration = register( "abc", 0 );
+        register( "xyz", 0 );
+        registration.setProperties( props( "name", "abc", "extra", true ) );
+        registration.setProperties( props( "name", "zzz" ) );
+        assertNull( tracker.getService() );
+        registration.setProperties( props( "name", "abc" ) );
+        registration.unregister();
+
+        assertEquals( Arrays.asList( "added abc", "modified abc", "removed abc", "added abc", "removed abc" ),
+                this.events );
+        assertEquals( 0, tracker.size() );
+        assertNull( tracker.getServiceReferences() );
+    }
+
+    @Test
+    public void closeReleasesTrackedServices() {
+        ServiceRegistration registration = register( "svc", 0 );
+        OTRServiceTracker tracker = track( null ).open();
+        assertNotNull( registration.getReference().getUsingBundles() );
+
+        tracker.close();
+
+        assertNull( registration.getReference().getUsingBundles() );
+        assertNull( tracker.getService() );
+        assertEquals( Arrays.asList( "added svc", "removed svc" ), this.events );
+
+        register( "later", 0 );
+        assertEquals( 0, tracker.size() );
+    }
+
+    @Test
+    public void waitForServiceReturnsServiceRegisteredLater() throws Exception {
+        OTRServiceTracker tracker = track( null ).open();
+        assertNull( tracker.waitForService( 10, TimeUnit.MILLISECONDS ) );
+
+        Thread registerer = new Thread( () -> {
+            try {
+                Thread.sleep( 50 );
+            }
+            catch ( InterruptedException ignore ) {
+            }
+            register( "late", 0 );
+        } );
+        registerer.start();
+
+        assertEquals( "late", tracker.waitForService( 5, TimeUnit.SECONDS ) );
+        registerer.join();
+    }
+
+    @Test( expected = IllegalStateException.class )
+    public void openTwiceIsRejected() {
+        OTRServiceTracker tracker = track( null ).open();
+        tracker.open();
+    }
+}
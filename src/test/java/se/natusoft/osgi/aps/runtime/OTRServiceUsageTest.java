@@ -0,0 +1,271 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the counting of service usage per bundle.
+ */
+public class OTRServiceUsageTest {
+
+    //
+    // Private Members
+    //
+
+    private OTROSGiServiceTestTools tools;
+
+    private BundleContext provider;
+    private BundleContext user;
+    private BundleContext otherUser;
+
+    private ServiceRegistration registration;
+
+    //
+    // Setup
+    //
+
+    @Before
+    public void setUp() {
+        this.tools = new OTROSGiServiceTestTools();
+        this.provider = this.tools.createBundle( "provider" ).getBundleContext();
+        this.user = this.tools.createBundle( "user" ).getBundleContext();
+        this.otherUser = this.tools.createBundle( "otherUser" ).getBundleContext();
+
+        this.registration = this.provider.registerService( Runnable.class.getName(), (Runnable) () -> {}, null );
+    }
+
+    @After
+    public void tearDown() {
+        this.tools.shutdown();
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void serviceIsInUseUntilUngotAsManyTimesAsGot() {
+        ServiceReference reference = this.registration.getReference();
+        assertNull( reference.getUsingBundles() );
+        assertNull( this.user.getBundle().getServicesInUse() );
+
+        assertNotNull( this.user.getService( reference ) );
+        assertNotNull( this.user.getService( reference ) );
+        assertArrayEquals( new Bundle[]{ this.user.getBundle() }, reference.getUsingBundles() );
+        assertArrayEquals( new ServiceReference[]{ reference }, this.user.getBundle().getServicesInUse() );
+
+        assertTrue( this.user.ungetService( reference ) );
+        assertArrayEquals( new Bundle[]{ this.user.getBundle() }, reference.getUsingBundles() );
+
+        assertTrue( this.user.ungetService( reference ) );
+        assertNull( reference.getUsingBundles() );
+        assertNull( this.user.getBundle().getServicesInUse() );
+    }
+
+    @Test
+    public void ungetWithoutGetReturnsFalse() {
+        ServiceReference reference = this.registration.getReference();
+        assertFalse( this.user.ungetService( reference ) );
+
+        this.user.getService( reference );
+        assertTrue( this.user.ungetService( reference ) );
+        assertFalse( this.user.ungetService( reference ) );
+        assertNull( reference.getUsingBundles() );
+    }
+
+    @Test
+    public void usageIsCountedPerBundle() {
+        ServiceReference reference = this.registration.getReference();
+        this.user.getService( reference );
+        this.otherUser.getService( reference );
+        assertEquals( 2, reference.getUsingBundles().length );
+
+        assertTrue( this.otherUser.ungetService( reference ) );
+        assertArrayEquals( new Bundle[]{ this.user.getBundle() }, reference.getUsingBundles() );
+        assertNull( this.otherUser.getBundle().getServicesInUse() );
+        assertNotNull( this.user.getBundle().getServicesInUse() );
+    }
+
+    @Test
+    public void unregisterReleasesAllUses() {
+        ServiceReference reference = this.registration.getReference();
+        this.user.getService( reference );
+        this.otherUser.getService( reference );
+
+        this.registration.unregister();
+
+        assertNull( reference.getUsingBundles() );
+        assertNull( this.user.getBundle().getServicesInUse() );
+        assertNull( this.user.getService( reference ) );
+        assertFalse( this.user.ungetService( reference ) );
+    }
+
+    @Test
+    public void concurrentFactoryGetsCreateOneInstancePerBundle() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        Map<Bundle, AtomicInteger> ungot = new ConcurrentHashMap<>();
+        ServiceRegistration factoryRegistration = this.provider.registerService( Runnable.class.getName(),
+                new ServiceFactory() {
+                    @Override
+                    public Object getService( Bundle bundle, ServiceRegistration registration ) {
+                        created.incrementAndGet();
+                        return (Runnable) () -> {};
+                    }
+
+                    @Override
+                    public void ungetService( Bundle bundle, ServiceRegistration registration, Object service ) {
+                        ungot.computeIfAbsent( bundle, b -> new AtomicInteger() ).incrementAndGet();
+                    }
+                }, null );
+        ServiceReference reference = factoryRegistration.getReference();
+
+        int threadsPerBundle = 8;
+        int getsPerThread = 100;
+        BundleContext[] users = { this.user, this.otherUser };
+        Map<Bundle, Object> instances = new ConcurrentHashMap<>();
+        AtomicInteger differentInstances = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch( 1 );
+        List<Thread> threads = new ArrayList<>();
+        for ( BundleContext user : users ) {
+            for ( int t = 0; t < threadsPerBundle; t++ ) {
+                Thread thread = new Thread( () -> {
+                    try {
+                        go.await();
+                    }
+                    catch ( InterruptedException ie ) {
+                        return;
+                    }
+                    for ( int i = 0; i < getsPerThread; i++ ) {
+                        Object service = user.getService( reference );
+                        if ( instances.putIfAbsent( user.getBundle(), service ) != null &&
+                                instances.get( user.getBundle() ) != service ) {
+                            differentInstances.incrementAndGet();
+                        }
+                    }
+                } );
+                thread.start();
+                threads.add( thread );
+            }
+        }
+        go.countDown();
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+
+        assertEquals( 0, differentInstances.get() );
+        assertEquals( users.length, created.get() );
+        assertEquals( 2, reference.getUsingBundles().length );
+
+        // The instance is given back to the factory when the last use by the bundle is ungot.
+        for ( int i = 0; i < threadsPerBundle * getsPerThread; i++ ) {
+            assertTrue( this.user.ungetService( reference ) );
+        }
+        assertFalse( this.user.ungetService( reference ) );
+        assertEquals( 1, ungot.get( this.user.getBundle() ).get() );
+        assertNull( ungot.get( this.otherUser.getBundle() ) );
+        assertArrayEquals( new Bundle[]{ this.otherUser.getBundle() }, reference.getUsingBundles() );
+
+        factoryRegistration.unregister();
+        assertEquals( 1, ungot.get( this.otherUser.getBundle() ).get() );
+        assertEquals( 1, ungot.get( this.user.getBundle() ).get() );
+        assertNull( reference.getUsingBundles() );
+    }
+
+    @Test
+    public void bundlesAreForgottenWhenTheyStopUsingServices() {
+        ServiceReference reference = this.registration.getReference();
+        OTRBundle userBundle = (OTRBundle) this.user.getBundle();
+        this.user.getService( reference );
+        this.otherUser.getService( reference );
+        assertEquals( 2, userBundle.getServiceRegistry().getUsingBundleCount() );
+
+        // Reaching zero uses.
+        assertTrue( this.user.ungetService( reference ) );
+        assertEquals( 1, userBundle.getServiceRegistry().getUsingBundleCount() );
+
+        // Getting the service again.
+        assertNotNull( this.user.getService( reference ) );
+        assertArrayEquals( new ServiceReference[]{ reference }, this.user.getBundle().getServicesInUse() );
+        assertEquals( 2, userBundle.getServiceRegistry().getUsingBundleCount() );
+
+        // Removing the bundle.
+        this.tools.removeBundle( userBundle );
+        assertEquals( 1, userBundle.getServiceRegistry().getUsingBundleCount() );
+        assertArrayEquals( new Bundle[]{ this.otherUser.getBundle() }, reference.getUsingBundles() );
+
+        // Unregistering the service.
+        this.registration.unregister();
+        assertEquals( 0, userBundle.getServiceRegistry().getUsingBundleCount() );
+    }
+
+    @Test
+    public void concurrentGetsAndUngetsKeepServiceInUse() throws Exception {
+        ServiceReference reference = this.registration.getReference();
+        OTRBundle userBundle = (OTRBundle) this.user.getBundle();
+        CountDownLatch go = new CountDownLatch( 1 );
+        List<Thread> threads = new ArrayList<>();
+        for ( int t = 0; t < 8; t++ ) {
+            Thread thread = new Thread( () -> {
+                try {
+                    go.await();
+                }
+                catch ( InterruptedException ie ) {
+                    return;
+                }
+                for ( int i = 0; i < 1000; i++ ) {
+                    this.user.getService( reference );
+                    this.user.ungetService( reference );
+                }
+                // Each thread ends up holding one use.
+                this.user.getService( reference );
+            } );
+            thread.start();
+            threads.add( thread );
+        }
+        go.countDown();
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+
+        assertArrayEquals( new ServiceReference[]{ reference }, this.user.getBundle().getServicesInUse() );
+        assertEquals( 1, userBundle.getServiceRegistry().getUsingBundleCount() );
+        for ( int i = 0; i < threads.size(); i++ ) {
+            assertTrue( this.user.ungetService( reference ) );
+        }
+        assertFalse( this.user.ungetService( reference ) );
+        assertNull( this.user.getBundle().getServicesInUse() );
+        assertEquals( 0, userBundle.getServiceRegistry().getUsingBundleCount() );
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a CompiledFilter matches exactly like a filter from FrameworkUtil.createFilter(...).
+ */
+public class CompiledFilterConformanceTest {
+
+    /**
+     * A ServiceReference of properties not registered with any framework, with case insensitive keys.
+     */
+    private static class PropertiesReference implements ServiceReference {
+        private ServiceProperties properties;
+
+        PropertiesReference( ServiceProperties properties ) {
+            this.properties = properties;
+        }
+
+        @Override
+        public Object getProperty( String key ) {
+            return this.properties.get( key );
+        }
+
+        @Override
+        public String[] getPropertyKeys() {
+            return this.properties.getKeys().clone();
+        }
+
+        @Override
+        public Bundle getBundle() {
+            return null;
+        }
+
+        @Override
+        public Bundle[] getUsingBundles() {
+            return null;
+        }
+
+        @Override
+        public boolean isAssignableTo( Bundle bundle, String className ) {
+            return true;
+        }
+
+        @Override
+        public int compareTo( Object reference ) {
+            return 0;
+        }
+    }
+
+    //
+    // Private Members
+    //
+
+    private FilterCache filterCache = new FilterCache();
+
+    //
+    // Support
+    //
+
+    private static Dictionary<String, Object> props( Object... keysAndValues ) {
+        Hashtable<String, Object> props = new Hashtable<>();
+        for ( int i = 0; i < keysAndValues.length; i += 2 ) {
+            props.put( (String) keysAndValues[ i ], keysAndValues[ i + 1 ] );
+        }
+        return props;
+    }
+
+    /**
+     * Asserts that the compiled filter and the reference filter give the same result for match(Dictionary),
+     * matchCase(Dictionary) and match(ServiceReference), that the compiled filter gives the same result for the
+     * ServiceProperties the registry matches, and that the result is the expected one.
+     */
+    private void assertConforms( String filter, Dictionary<String, Object> props, boolean expected )
+            throws InvalidSyntaxException {
+        Filter reference = FrameworkUtil.createFilter( filter );
+        CompiledFilter compiled = (CompiledFilter) this.filterCache.getFilter( filter );
+
+        assertEquals( "reference match of " + filter + " against " + props, expected, reference.match( props ) );
+        assertEquals( "compiled match of " + filter + " against " + props, expected, compiled.match( props ) );
+        assertEquals( "matchCase of " + filter + " against " + props, reference.matchCase( props ),
+                compiled.matchCase( props ) );
+
+        ServiceProperties properties = ServiceProperties.of( props, new String[]{ Runnable.class.getName() }, 1 );
+        ServiceReference serviceReference = new PropertiesReference( properties );
+        assertEquals( "reference match of " + filter + " against reference " + props, expected,
+                reference.match( serviceReference ) );
+        assertEquals( "compiled match of " + filter + " against reference " + props, expected,
+                compiled.match( serviceReference ) );
+        assertEquals( "compiled match of " + filter + " against service properties " + props, expected,
+                compiled.match( properties ) );
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void strings() throws Exception {
+        Dictionary<String, Object> props = props( "name", "hello", "spaced", " a b " );
+
+        assertConforms( "(name=hello)", props, true );
+        assertConforms( "(name=Hello)", props, false );
+        assertConforms( "(name>=hell)", props, true );
+        assertConforms( "(name>=help)", props, false );
+        assertConforms( "(name<=hello)", props, true );
+        assertConforms( "(name<=a)", props, false );
+        assertConforms( "(spaced= a b )", props, true );
+        assertConforms( "(spaced=a b)", props, false );
+        assertConforms( "(missing=hello)", props, false );
+    }
+
+    @Test
+    public void numbers() throws Exception {
+        Dictionary<String, Object> props = props( "int", 42, "long", 42L, "short", (short) 42, "byte", (byte) 42,
+                "float", 4.5f, "double", 4.5d, "big", new BigDecimal( "4.50" ) );
+
+        assertConforms( "(int=42)", props, true );
+        assertConforms( "(int= 42 )", props, true );
+        assertConforms( "(int>=43)", props, false );
+        assertConforms( "(int<=42)", props, true );
+        assertConforms( "(long=42)", props, true );
+        assertConforms( "(long>=41)", props, true );
+        assertConforms( "(short=42)", props, true );
+        assertConforms( "(byte<=41)", props, false );
+        assertConforms( "(float=4.5)", props, true );
+        assertConforms( "(double>=4.6)", props, false );
+        assertConforms( "(double<=4.6)", props, true );
+        assertConforms( "(big=4.5)", props, true );
+        assertConforms( "(big>=5)", props, false );
+    }
+
+    @Test
+    public void otherTypes() throws Exception {
+        Dictionary<String, Object> props = props( "flag", true, "char", 'x', "version", new org.osgi.framework.Version( "1.2.3" ) );
+
+        assertConforms( "(flag=true)", props, true );
+        assertConforms( "(flag=TRUE)", props, true );
+        assertConforms( "(flag=false)", props, false );
+        assertConforms( "(char=x)", props, true );
+        assertConforms( "(char~=X)", props, true );
+        assertConforms( "(char>=y)", props, false );
+        assertConforms( "(version>=1.2.0)", props, true );
+        assertConforms( "(version=1.2.3)", props, true );
+        assertConforms( "(version<=1.0)", props, false );
+    }
+
+    @Test
+    public void arrays() throws Exception {
+        Dictionary<String, Object> props = props( "strings", new String[]{ "a", "b" }, "ints", new int[]{ 1, 2, 3 },
+                "longs", new long[]{ 5L }, "booleans", new boolean[]{ false }, "chars", new char[]{ 'q' },
+                "empty", new String[ 0 ] );
+
+        assertConforms( "(strings=b)", props, true );
+        assertConforms( "(strings=c)", props, false );
+        assertConforms( "(ints=2)", props, true );
+        assertConforms( "(ints>=4)", props, false );
+        assertConforms( "(longs<=5)", props, true );
+        assertConforms( "(booleans=false)", props, true );
+        assertConforms( "(chars=q)", props, true );
+        assertConforms( "(empty=a)", props, false );
+        assertConforms( "(empty=*)", props, true );
+    }
+
+    @Test
+    public void collections() throws Exception {
+        Dictionary<String, Object> props = props( "list", Arrays.asList( "x", "y" ), "numbers", new Vector<>( Arrays.asList( 10, 20 ) ),
+                "set", new LinkedHashSet<>( Collections.singletonList( 7L ) ) );
+
+        assertConforms( "(list=y)", props, true );
+        assertConforms( "(list=z)", props, false );
+        assertConforms( "(numbers>=15)", props, true );
+        assertConforms( "(numbers<=5)", props, false );
+        assertConforms( "(set=7)", props, true );
+    }
+
+    @Test
+    public void approx() throws Exception {
+        Dictionary<String, Object> props = props( "name", "Hello World", "ints", new int[]{ 3 } );
+
+        assertConforms( "(name~=helloworld)", props, true );
+        assertConforms( "(name~=HELLO   WORLD)", props, true );
+        assertConforms( "(name~=hello)", props, false );
+        assertConforms( "(ints~=3)", props, true );
+    }
+
+    @Test
+    public void substrings() throws Exception {
+        Dictionary<String, Object> props = props( "name", "hello world", "tags", new String[]{ "alpha", "beta" },
+                "number", 123 );
+
+        assertConforms( "(name=hello*)", props, true );
+        assertConforms( "(name=*world)", props, true );
+        assertConforms( "(name=*lo w*)", props, true );
+        assertConforms( "(name=h*o*d)", props, true );
+        assertConforms( "(name=h*x*d)", props, false );
+        assertConforms( "(name=*)", props, true );
+        assertConforms( "(name=world*)", props, false );
+        assertConforms( "(tags=*et*)", props, true );
+        assertConforms( "(number=1*)", props, false );
+    }
+
+    @Test
+    public void presentAndNot() throws Exception {
+        Dictionary<String, Object> props = props( "a", "1", "b", 2 );
+
+        assertConforms( "(a=*)", props, true );
+        assertConforms( "(c=*)", props, false );
+        assertConforms( "(!(a=1))", props, false );
+        assertConforms( "(!(c=*))", props, true );
+        assertConforms( "(&(a=1)(b=2))", props, true );
+        assertConforms( "(&(a=1)(b=3))", props, false );
+        assertConforms( "(|(a=2)(b=2))", props, true );
+        assertConforms( "(|(a=2)(!(b=*)))", props, false );
+        assertConforms( "(&(a=*)(!(|(b=1)(b=3))))", props, true );
+    }
+
+    @Test
+    public void caseInsensitiveKeys() throws Exception {
+        Dictionary<String, Object> props = props( "Service.Name", "svc" );
+
+        // match(Dictionary) ignores the case of keys, matchCase(Dictionary) does not.
+        assertConforms( "(service.name=svc)", props, true );
+        assertConforms( "(SERVICE.NAME=svc)", props, true );
+        assertFalse( this.filterCache.getFilter( "(service.name=svc)" ).matchCase( props ) );
+        assertTrue( this.filterCache.getFilter( "(Service.Name=svc)" ).matchCase( props ) );
+    }
+
+    @Test
+    public void badSyntaxIsRejected() {
+        for ( String filter : new String[]{ "(name=)", "name=a", "(name=a", "(&)", "(!(a=1)(b=2))", "(=a)" } ) {
+            boolean referenceRejects = false;
+            try {
+                FrameworkUtil.createFilter( filter );
+            }
+            catch ( InvalidSyntaxException ise ) {
+                referenceRejects = true;
+            }
+            boolean compiledRejects = false;
+            try {
+                this.filterCache.getFilter( filter );
+            }
+            catch ( InvalidSyntaxException ise ) {
+                compiledRejects = true;
+            }
+            assertEquals( "syntax check of " + filter, referenceRejects, compiledRejects );
+        }
+    }
+
+    @Test
+    public void caseVariantsOfKeyAreRejected() throws Exception {
+        Dictionary<String, Object> props = props( "name", "a", "NAME", "b" );
+
+        try {
+            FrameworkUtil.createFilter( "(name=a)" ).match( props );
+            fail( "Reference filter accepted case variants of a key!" );
+        }
+        catch ( IllegalArgumentException expected ) {
+            // Reference behavior.
+        }
+        try {
+            this.filterCache.getFilter( "(name=a)" ).match( props );
+            fail( "Compiled filter accepted case variants of a key!" );
+        }
+        catch ( IllegalArgumentException expected ) {
+            // Same as the reference.
+        }
+    }
+
+    /**
+     * The documented deviation: where the reference filter throws NumberFormatException because the filter value
+     * can not be converted to the type of the property, the compiled filter just does not match.
+     */
+    @Test
+    public void unconvertibleValueDoesNotMatchInsteadOfThrowing() throws Exception {
+        Dictionary<String, Object> props = props( "port", 8080 );
+
+        try {
+            FrameworkUtil.createFilter( "(port=abc)" ).match( props );
+            fail( "Reference filter is expected to throw NumberFormatException!" );
+        }
+        catch ( NumberFormatException expected ) {
+            // Reference behavior.
+        }
+
+        assertFalse( this.filterCache.getFilter( "(port=abc)" ).match( props ) );
+        assertFalse( this.filterCache.getFilter( "(port=abc)" ).matchCase( props ) );
+        assertTrue( this.filterCache.getFilter( "(!(port=abc))" ).match( props ) );
+    }
+
+    @Test
+    public void toStringIsTheFilterString() throws Exception {
+        Filter spaced = this.filterCache.getFilter( "(&(a=1) (b=2))" );
+        Filter reordered = this.filterCache.getFilter( "(&(b=2)(a=1))" );
+
+        assertEquals( "(&(a=1) (b=2))", spaced.toString() );
+        assertEquals( "(&(b=2)(a=1))", reordered.toString() );
+        assertEquals( spaced, reordered );
+        assertEquals( spaced.hashCode(), reordered.hashCode() );
+    }
+
+    @Test
+    public void equalsIsSymmetricWithFrameworkFilters() throws Exception {
+        Filter compiled = this.filterCache.getFilter( "(&(b=2)(a=1))" );
+        Filter reference = FrameworkUtil.createFilter( "(&(b=2)(a=1))" );
+        Filter reordered = FrameworkUtil.createFilter( "(&(a=1)(b=2))" );
+
+        assertEquals( reference.equals( compiled ), compiled.equals( reference ) );
+        assertEquals( reordered.equals( compiled ), compiled.equals( reordered ) );
+        assertFalse( compiled.equals( reordered ) );
+    }
+}
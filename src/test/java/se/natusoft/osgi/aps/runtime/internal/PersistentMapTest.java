@@ -0,0 +1,137 @@
+/*
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package se.natusoft.osgi.aps.runtime.internal;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a PersistentMap behaves like a HashMap, and that older versions are not affected by changes.
+ */
+public class PersistentMapTest {
+
+    /**
+     * A key with a chosen hash code, to force collisions.
+     */
+    private static class Key {
+        private final int id;
+        private final int hash;
+
+        private Key( int id, int hash ) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals( Object other ) {
+            return other instanceof Key && ( (Key) other ).id == this.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    //
+    // Tests
+    //
+
+    @Test
+    public void behavesLikeHashMap() {
+        Random random = new Random( 4711 );
+        Map<Integer, String> expected = new HashMap<>();
+        PersistentMap<Integer, String> map = PersistentMap.empty();
+
+        for ( int i = 0; i < 20000; i++ ) {
+            int key = random.nextInt( 2000 ) - 1000;
+            if ( random.nextInt( 3 ) == 0 ) {
+                expected.remove( key );
+                map = map.minus( key );
+            }
+            else {
+                expected.put( key, "v" + i );
+                map = map.plus( key, "v" + i );
+            }
+            assertEquals( expected.get( key ), map.get( key ) );
+            assertEquals( expected.size(), map.size() );
+        }
+
+        assertEquals( expected, map );
+        assertEquals( expected.keySet(), map.keySet() );
+    }
+
+    @Test
+    public void olderVersionsAreUnchanged() {
+        PersistentMap<String, String> empty = PersistentMap.empty();
+        PersistentMap<String, String> one = empty.plus( "a", "1" );
+        PersistentMap<String, String> two = one.plus( "b", "2" );
+        PersistentMap<String, String> replaced = two.plus( "a", "3" );
+        PersistentMap<String, String> removed = replaced.minus( "b" );
+
+        assertTrue( empty.isEmpty() );
+        assertEquals( "1", one.get( "a" ) );
+        assertNull( one.get( "b" ) );
+        assertEquals( "1", two.get( "a" ) );
+        assertEquals( "3", replaced.get( "a" ) );
+        assertEquals( "2", replaced.get( "b" ) );
+        assertEquals( 1, removed.size() );
+        assertEquals( "2", two.get( "b" ) );
+    }
+
+    @Test
+    public void unchangedMapIsReturnedAsIs() {
+        String value = "1";
+        PersistentMap<String, String> map = PersistentMap.<String, String>empty().plus( "a", value );
+
+        assertSame( map, map.plus( "a", value ) );
+        assertSame( map, map.minus( "b" ) );
+    }
+
+    @Test
+    public void collidingHashes() {
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        for ( int i = 0; i < 100; i++ ) {
+            // Ten keys per hash, where hashes share their low bits.
+            map = map.plus( new Key( i, ( i % 10 ) << 20 ), i );
+        }
+        assertEquals( 100, map.size() );
+        for ( int i = 0; i < 100; i++ ) {
+            assertEquals( Integer.valueOf( i ), map.get( new Key( i, ( i % 10 ) << 20 ) ) );
+        }
+        assertNull( map.get( new Key( 100, 0 ) ) );
+
+        for ( int i = 0; i < 100; i += 2 ) {
+            map = map.minus( new Key( i, ( i % 10 ) << 20 ) );
+        }
+        assertEquals( 50, map.size() );
+        for ( int i = 0; i < 100; i++ ) {
+            assertEquals( i % 2 == 0 ? null : Integer.valueOf( i ), map.get( new Key( i, ( i % 10 ) << 20 ) ) );
+        }
+    }
+
+    @Test( expected = UnsupportedOperationException.class )
+    public void canNotBeModifiedThroughMap() {
+        PersistentMap.<String, String>empty().plus( "a", "1" ).put( "b", "2" );
+    }
+}